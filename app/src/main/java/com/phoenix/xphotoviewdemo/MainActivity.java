@@ -25,7 +25,7 @@ public class MainActivity extends AppCompatActivity
 
     private void setupViewPager()
     {
-        ViewPager pager = (ViewPager) findViewById(R.id.viewPager);
+        final ViewPager pager = (ViewPager) findViewById(R.id.viewPager);
 
         pager.setAdapter(new PagerAdapter()
         {
@@ -45,8 +45,12 @@ public class MainActivity extends AppCompatActivity
             public Object instantiateItem(ViewGroup container, int position)
             {
                 View view = View.inflate(MainActivity.this, R.layout.layout_page, null);
+                view.setTag(position);
                 view.findViewById(R.id.progress).setVisibility(View.VISIBLE);
-                setupXPhotoView((XPhotoView) view.findViewById(R.id.xphoto_view), (ProgressBar) view.findViewById(R.id.progress), position);
+                XPhotoView photoView = (XPhotoView) view.findViewById(R.id.xphoto_view);
+                // 预加载的相邻页面不可见，不播放 GIF 也不解析高清单元格
+                photoView.setUserVisible(position == pager.getCurrentItem());
+                setupXPhotoView(photoView, (ProgressBar) view.findViewById(R.id.progress), position);
                 container.addView(view);
 
                 return view;
@@ -58,6 +62,21 @@ public class MainActivity extends AppCompatActivity
                 container.removeView((View) object);
             }
         });
+
+        pager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener()
+        {
+            @Override
+            public void onPageSelected(int position)
+            {
+                for (int i = 0; i < pager.getChildCount(); ++i) {
+                    View page = pager.getChildAt(i);
+                    XPhotoView photoView = (XPhotoView) page.findViewById(R.id.xphoto_view);
+                    if (photoView != null) {
+                        photoView.setUserVisible(Integer.valueOf(position).equals(page.getTag()));
+                    }
+                }
+            }
+        });
     }
 
     private void setupXPhotoView(XPhotoView imageView, final ProgressBar progressBar, int pos)
@@ -0,0 +1,164 @@
+package com.phoenix.xphotoview.tiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * XPhotoView 预切片金字塔容器格式（.xpt）
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 文件布局（全部为大端序）：
+ * - [0, 64)        固定长度的文件头
+ * - [64, index)    各层级的瓦片数据，每块都是独立编码的 JPEG 或 PNG
+ * - [index, EOF)   偏移索引，每块瓦片 12 字节：offset(long) + length(int)
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 文件头：
+ * - 0   magic       'X' 'P' 'T' 'L'
+ * - 4   version     int
+ * - 8   width       int，原图宽
+ * - 12  height      int，原图高
+ * - 16  tileSize    int，瓦片边长，2 的幂
+ * - 20  levelCount  int，层级数，level 0 为原图
+ * - 24  tileFormat  int，1 = JPEG，2 = PNG
+ * - 28  reserved    int
+ * - 32  indexOffset long
+ * - 40  indexLength long
+ * - 48  reserved    16 字节
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 层级：
+ * - level n 的宽高为 level n - 1 的一半（向上取整），直到宽高都不超过 tileSize 为止
+ * - 索引按 level 0 到 level n 依次排列，每层内按行优先排列
+ * - Android 端的读取实现为 com.phoenix.xphotoview.TiledImageRegionDecoder，修改格式时两边需要同步
+ */
+public final class TiledImageFormat {
+
+    public static final byte[] MAGIC = {'X', 'P', 'T', 'L'};
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int INDEX_ENTRY_SIZE = 12;
+
+    public static final int TILE_FORMAT_JPEG = 1;
+    public static final int TILE_FORMAT_PNG = 2;
+
+    public static final int MIN_TILE_SIZE = 64;
+    public static final int MAX_TILE_SIZE = 4096;
+
+    public final int width;
+    public final int height;
+    public final int tileSize;
+    public final int levelCount;
+    public final int tileFormat;
+    public final long indexOffset;
+    public final long indexLength;
+
+    public TiledImageFormat(int width, int height, int tileSize, int tileFormat, long indexOffset, long indexLength) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.levelCount = levelCount(width, height, tileSize);
+        this.tileFormat = tileFormat;
+        this.indexOffset = indexOffset;
+        this.indexLength = indexLength;
+    }
+
+    /**
+     * 计算层级数，最后一层宽高均不超过 tileSize
+     */
+    public static int levelCount(int width, int height, int tileSize) {
+        int count = 1;
+        while (width > tileSize || height > tileSize) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 第 level 层的边长
+     */
+    public static int levelSize(int size, int level) {
+        for (int i = 0; i < level; ++i) {
+            size = (size + 1) / 2;
+        }
+        return size;
+    }
+
+    public static int tileCount(int size, int tileSize) {
+        return (size + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * @return 索引中瓦片的总数
+     */
+    public long totalTileCount() {
+        long total = 0;
+        for (int level = 0; level < levelCount; ++level) {
+            total += (long) tileCount(levelSize(width, level), tileSize) * tileCount(levelSize(height, level), tileSize);
+        }
+        return total;
+    }
+
+    public static boolean isTiledImage(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeHeader(ByteBuffer buffer) {
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(tileSize);
+        buffer.putInt(levelCount);
+        buffer.putInt(tileFormat);
+        buffer.putInt(0);
+        buffer.putLong(indexOffset);
+        buffer.putLong(indexLength);
+        buffer.putLong(0);
+        buffer.putLong(0);
+    }
+
+    public static TiledImageFormat readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Truncated header");
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!isTiledImage(magic, magic.length)) {
+            throw new IOException("Not a tiled image");
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int tileSize = buffer.getInt();
+        int levelCount = buffer.getInt();
+        int tileFormat = buffer.getInt();
+        buffer.getInt();
+        long indexOffset = buffer.getLong();
+        long indexLength = buffer.getLong();
+
+        if (width <= 0 || height <= 0 || tileSize < MIN_TILE_SIZE || tileSize > MAX_TILE_SIZE) {
+            throw new IOException("Invalid dimensions");
+        }
+
+        TiledImageFormat format = new TiledImageFormat(width, height, tileSize, tileFormat, indexOffset, indexLength);
+        if (format.levelCount != levelCount || format.totalTileCount() * INDEX_ENTRY_SIZE != indexLength) {
+            throw new IOException("Corrupted index");
+        }
+        return format;
+    }
+}
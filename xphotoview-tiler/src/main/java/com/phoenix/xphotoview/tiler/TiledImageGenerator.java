@@ -0,0 +1,80 @@
+package com.phoenix.xphotoview.tiler;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 命令行入口
+ * java -jar xphotoview-tiler.jar [-tile 256] [-format jpg|png] [-quality 0.9] [-strip 1024] input output
+ */
+public final class TiledImageGenerator {
+
+    private TiledImageGenerator() {
+    }
+
+    public static void main(String[] args) {
+        int tileSize = TiledImageWriter.DEFAULT_TILE_SIZE;
+        int tileFormat = TiledImageFormat.TILE_FORMAT_JPEG;
+        float quality = TiledImageWriter.DEFAULT_QUALITY;
+        int stripHeight = 0;
+        String input = null;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if ("-tile".equals(arg)) {
+                    tileSize = Integer.parseInt(args[++i]);
+                } else if ("-format".equals(arg)) {
+                    tileFormat = parseFormat(args[++i]);
+                } else if ("-quality".equals(arg)) {
+                    quality = Float.parseFloat(args[++i]);
+                } else if ("-strip".equals(arg)) {
+                    stripHeight = Integer.parseInt(args[++i]);
+                } else if (input == null) {
+                    input = arg;
+                } else if (output == null) {
+                    output = arg;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+            }
+            if (input == null || output == null) {
+                throw new IllegalArgumentException("Missing input or output");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        try {
+            TiledImageWriter writer = new TiledImageWriter(tileSize, tileFormat, quality);
+            if (stripHeight > 0) {
+                writer.setStripHeight(stripHeight);
+            }
+
+            long start = System.currentTimeMillis();
+            writer.write(new File(input), new File(output));
+            System.out.println("Wrote " + output + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int parseFormat(String format) {
+        if ("jpg".equalsIgnoreCase(format) || "jpeg".equalsIgnoreCase(format)) {
+            return TiledImageFormat.TILE_FORMAT_JPEG;
+        }
+        if ("png".equalsIgnoreCase(format)) {
+            return TiledImageFormat.TILE_FORMAT_PNG;
+        }
+        throw new IllegalArgumentException("Unknown format " + format);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar xphotoview-tiler.jar [-tile 256] [-format jpg|png] [-quality 0.9] [-strip 1024] input output");
+    }
+}
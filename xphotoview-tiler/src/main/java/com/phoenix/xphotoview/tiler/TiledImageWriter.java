@@ -0,0 +1,298 @@
+package com.phoenix.xphotoview.tiler;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * 将一张大图转换为 TiledImageFormat 容器
+ * - 以条带为单位读取原图，每次只持有一条条带，不会把整张图读入内存
+ * - 每层只保留一条 tileSize 高的条带缓冲，条带满了就切出瓦片写入文件，并 2x2 平均缩小后交给下一层
+ * - 瓦片按产生的顺序写入，最后写入索引并回填文件头
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 内存占用约为 原图宽 * (stripHeight + 2 * tileSize) * 4 字节
+ * ImageIO 读取区域时需要从头解码到该区域，条带越高重复解码越少，可通过 stripHeight 调整
+ */
+public final class TiledImageWriter {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final float DEFAULT_QUALITY = 0.9f;
+
+    private final int mTileSize;
+    private final int mTileFormat;
+    private final float mQuality;
+    private int mStripHeight;
+
+    private RandomAccessFile mOutput;
+    private long mWritePosition;
+    private ImageWriter mImageWriter;
+    private ImageWriteParam mWriteParam;
+
+    private Level[] mLevels;
+
+    /**
+     * @param tileSize   瓦片边长，2 的幂
+     * @param tileFormat TiledImageFormat.TILE_FORMAT_JPEG 或 TILE_FORMAT_PNG
+     * @param quality    JPEG 质量 0 ~ 1
+     */
+    public TiledImageWriter(int tileSize, int tileFormat, float quality) {
+        if (tileSize < TiledImageFormat.MIN_TILE_SIZE || tileSize > TiledImageFormat.MAX_TILE_SIZE
+                || Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("tileSize must be a power of two in ["
+                    + TiledImageFormat.MIN_TILE_SIZE + ", " + TiledImageFormat.MAX_TILE_SIZE + "]");
+        }
+        if (tileFormat != TiledImageFormat.TILE_FORMAT_JPEG && tileFormat != TiledImageFormat.TILE_FORMAT_PNG) {
+            throw new IllegalArgumentException("Unknown tile format " + tileFormat);
+        }
+        mTileSize = tileSize;
+        mTileFormat = tileFormat;
+        mQuality = quality;
+        mStripHeight = tileSize * 4;
+    }
+
+    /**
+     * @param stripHeight 每次从原图读取的行数，会向上取整为 tileSize 的整数倍
+     */
+    public void setStripHeight(int stripHeight) {
+        mStripHeight = Math.max(1, (stripHeight + mTileSize - 1) / mTileSize) * mTileSize;
+    }
+
+    /**
+     * 转换 input 为容器文件 output
+     */
+    public void write(File input, File output) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(input);
+        if (iis == null) {
+            throw new IOException("Cannot open " + input);
+        }
+
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image " + input);
+            }
+            reader = readers.next();
+            reader.setInput(iis, true, true);
+
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            mOutput = new RandomAccessFile(output, "rw");
+            mOutput.setLength(0);
+            mWritePosition = TiledImageFormat.HEADER_SIZE;
+            prepareImageWriter();
+            prepareLevels(width, height);
+
+            for (int y = 0; y < height; y += mStripHeight) {
+                int rows = Math.min(mStripHeight, height - y);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y, width, rows));
+                BufferedImage strip = reader.read(0, param);
+                pushRows(0, strip, rows);
+            }
+
+            writeIndexAndHeader(width, height);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            if (mImageWriter != null) {
+                mImageWriter.dispose();
+                mImageWriter = null;
+            }
+            if (mOutput != null) {
+                mOutput.close();
+                mOutput = null;
+            }
+            iis.close();
+            mLevels = null;
+        }
+    }
+
+    private void prepareImageWriter() throws IOException {
+        String formatName = mTileFormat == TiledImageFormat.TILE_FORMAT_JPEG ? "jpeg" : "png";
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for " + formatName);
+        }
+        mImageWriter = writers.next();
+        mWriteParam = mImageWriter.getDefaultWriteParam();
+        if (mTileFormat == TiledImageFormat.TILE_FORMAT_JPEG) {
+            mWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            mWriteParam.setCompressionQuality(mQuality);
+        }
+    }
+
+    private void prepareLevels(int width, int height) {
+        int levelCount = TiledImageFormat.levelCount(width, height, mTileSize);
+        int imageType = mTileFormat == TiledImageFormat.TILE_FORMAT_PNG ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        mLevels = new Level[levelCount];
+        for (int i = 0; i < levelCount; ++i) {
+            mLevels[i] = new Level(TiledImageFormat.levelSize(width, i), TiledImageFormat.levelSize(height, i), imageType);
+        }
+    }
+
+    /**
+     * 将 source 的前 rows 行追加到第 level 层的条带中
+     */
+    private void pushRows(int level, BufferedImage source, int rows) throws IOException {
+        Level l = mLevels[level];
+        int[] line = new int[l.width];
+        int y = 0;
+        while (y < rows) {
+            int count = Math.min(rows - y, mTileSize - l.bandRows);
+            for (int i = 0; i < count; ++i) {
+                source.getRGB(0, y + i, l.width, 1, line, 0, l.width);
+                l.band.setRGB(0, l.bandRows + i, l.width, 1, line, 0, l.width);
+            }
+            l.bandRows += count;
+            y += count;
+
+            if (l.bandRows == mTileSize || l.bandTop + l.bandRows == l.height) {
+                flushBand(level);
+            }
+        }
+    }
+
+    /**
+     * 条带满了（或到达该层底部），切出一行瓦片，缩小后交给下一层
+     */
+    private void flushBand(int level) throws IOException {
+        Level l = mLevels[level];
+        int row = l.bandTop / mTileSize;
+        for (int col = 0; col < l.cols; ++col) {
+            int x = col * mTileSize;
+            int w = Math.min(mTileSize, l.width - x);
+            BufferedImage tile = l.band.getSubimage(x, 0, w, l.bandRows);
+            int index = row * l.cols + col;
+            l.offsets[index] = mWritePosition;
+            l.lengths[index] = writeTile(tile);
+        }
+
+        if (level + 1 < mLevels.length) {
+            BufferedImage half = downsample(l.band, l.width, l.bandRows, mLevels[level + 1]);
+            pushRows(level + 1, half, (l.bandRows + 1) / 2);
+        }
+
+        l.bandTop += l.bandRows;
+        l.bandRows = 0;
+    }
+
+    /**
+     * 2x2 平均缩小，边缘不足 2 像素的按实际像素平均
+     */
+    private BufferedImage downsample(BufferedImage band, int width, int rows, Level next) {
+        int outRows = (rows + 1) / 2;
+        BufferedImage out = new BufferedImage(next.width, outRows, band.getType());
+        int[] line0 = new int[width];
+        int[] line1 = new int[width];
+        int[] result = new int[next.width];
+        for (int y = 0; y < outRows; ++y) {
+            int y0 = y * 2;
+            int y1 = Math.min(y0 + 1, rows - 1);
+            band.getRGB(0, y0, width, 1, line0, 0, width);
+            band.getRGB(0, y1, width, 1, line1, 0, width);
+            for (int x = 0; x < next.width; ++x) {
+                int x0 = x * 2;
+                int x1 = Math.min(x0 + 1, width - 1);
+                result[x] = average(line0[x0], line0[x1], line1[x0], line1[x1]);
+            }
+            out.setRGB(0, y, next.width, 1, result, 0, next.width);
+        }
+        return out;
+    }
+
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+        int r = (((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2) >> 2;
+        int g = (((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2) >> 2;
+        int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private int writeTile(BufferedImage tile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(bytes);
+        try {
+            mImageWriter.setOutput(ios);
+            mImageWriter.write(null, new IIOImage(tile, null, null), mWriteParam);
+        } finally {
+            ios.close();
+        }
+
+        byte[] data = bytes.toByteArray();
+        mOutput.seek(mWritePosition);
+        mOutput.write(data);
+        mWritePosition += data.length;
+        return data.length;
+    }
+
+    private void writeIndexAndHeader(int width, int height) throws IOException {
+        long indexOffset = mWritePosition;
+        long indexLength = 0;
+        for (Level l : mLevels) {
+            indexLength += (long) l.offsets.length * TiledImageFormat.INDEX_ENTRY_SIZE;
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(TiledImageFormat.INDEX_ENTRY_SIZE);
+        mOutput.seek(indexOffset);
+        for (Level l : mLevels) {
+            for (int i = 0; i < l.offsets.length; ++i) {
+                entry.clear();
+                entry.putLong(l.offsets[i]);
+                entry.putInt(l.lengths[i]);
+                mOutput.write(entry.array());
+            }
+        }
+
+        TiledImageFormat format = new TiledImageFormat(width, height, mTileSize, mTileFormat, indexOffset, indexLength);
+        ByteBuffer header = ByteBuffer.allocate(TiledImageFormat.HEADER_SIZE);
+        format.writeHeader(header);
+        mOutput.seek(0);
+        mOutput.write(header.array());
+    }
+
+    /**
+     * 单个层级的条带缓冲及索引
+     */
+    private final class Level {
+        final int width;
+        final int height;
+        final int cols;
+        final BufferedImage band;
+        final long[] offsets;
+        final int[] lengths;
+
+        /**
+         * 条带顶部在该层的 y 坐标，以及条带中已填充的行数
+         */
+        int bandTop = 0;
+        int bandRows = 0;
+
+        Level(int width, int height, int imageType) {
+            this.width = width;
+            this.height = height;
+            this.cols = TiledImageFormat.tileCount(width, mTileSize);
+            int rows = TiledImageFormat.tileCount(height, mTileSize);
+            this.band = new BufferedImage(width, mTileSize, imageType);
+            this.offsets = new long[cols * rows];
+            this.lengths = new int[cols * rows];
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.phoenix.xphotoview;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 惯性滑动每帧进度的基准测试，在设备上运行
+ * - 原方式：每帧以剩余速度调用 getSplineFlingDistance，即一次 Math.log 加一次 Math.exp
+ * - 现方式：getSplinePosition 查表并线性插值
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 每种方式先预热，再取 ITERATIONS 次中最快的一次
+ */
+@RunWith(AndroidJUnit4.class)
+public class XPhotoViewFlingerBenchmark {
+
+    private static final String TAG = "XPhotoViewFlingerBenchmark";
+
+    private static final float[] VELOCITIES = {50f, 300f, 1000f, 4000f, 8000f, 24000f};
+    private static final int FRAMES = 120;
+    private static final int FLINGS = 2000;
+    private static final int ITERATIONS = 5;
+
+    private double mSink;
+
+    @Test
+    public void tableVersusAnalytic() {
+        XPhotoViewFlinger flinger = new XPhotoViewFlinger(InstrumentationRegistry.getTargetContext(), null);
+
+        for (int i = 0; i < ITERATIONS; ++i) {
+            runTable(flinger);
+            runAnalytic(flinger);
+        }
+
+        long table = Long.MAX_VALUE;
+        long analytic = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            table = Math.min(table, runTable(flinger));
+            analytic = Math.min(analytic, runAnalytic(flinger));
+        }
+
+        int frames = FLINGS * VELOCITIES.length * (FRAMES + 1);
+        Log.i(TAG, String.format(Locale.US, "%d frames: spline table %.3fms, analytic %.3fms (sink %.1f)",
+                frames, table / 1e6, analytic / 1e6, mSink));
+        assertTrue("table " + table + "ns, analytic " + analytic + "ns", table <= analytic);
+    }
+
+    /**
+     * @return 纳秒
+     */
+    private long runTable(XPhotoViewFlinger flinger) {
+        long start = System.nanoTime();
+        double sum = 0;
+        for (int n = 0; n < FLINGS; ++n) {
+            for (float velocity : VELOCITIES) {
+                double total = flinger.getSplineFlingDistance(velocity);
+                for (int frame = 0; frame <= FRAMES; ++frame) {
+                    sum += XPhotoViewFlinger.getSplinePosition(frame * 1f / FRAMES) * total;
+                }
+            }
+        }
+        mSink += sum;
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return 纳秒
+     */
+    private long runAnalytic(XPhotoViewFlinger flinger) {
+        long start = System.nanoTime();
+        double sum = 0;
+        for (int n = 0; n < FLINGS; ++n) {
+            for (float velocity : VELOCITIES) {
+                double total = flinger.getSplineFlingDistance(velocity);
+                for (int frame = 0; frame <= FRAMES; ++frame) {
+                    sum += total - flinger.getSplineFlingDistance((1 - frame * 1f / FRAMES) * velocity);
+                }
+            }
+        }
+        mSink += sum;
+        return System.nanoTime() - start;
+    }
+}
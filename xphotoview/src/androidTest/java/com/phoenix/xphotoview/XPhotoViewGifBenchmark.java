@@ -0,0 +1,272 @@
+package com.phoenix.xphotoview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Movie;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Choreographer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GIF 播放的基准测试，在设备上运行：每秒播放消耗的 CPU 时间及 UI 线程时间
+ * - 原方式：onDraw 中 Movie.setTime + Movie.draw 到软件层，每帧都 invalidate，全部在 UI 线程
+ * - 现方式：XPhotoViewGifEngine 在解析线程渲染到后台缓冲，UI 线程只换帧和 drawBitmap，按帧延时刷新
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 两种方式都绘制到与 GIF 同样大小的 bitmap，不计缩放和上传纹理的开销；UI 线程时间只统计 GIF 相关的工作
+ */
+@RunWith(AndroidJUnit4.class)
+public class XPhotoViewGifBenchmark {
+
+    private static final String TAG = "XPhotoViewGifBenchmark";
+
+    private static final int GIF_SIZE = 480;
+    private static final int FRAME_COUNT = 24;
+    private static final int FRAME_DELAY_CS = 4;
+    private static final long PLAY_MS = 5000;
+
+    @Test
+    public void engineVersusMovieOnDraw() {
+        final byte[] gif = encodeGif(GIF_SIZE, FRAME_COUNT, FRAME_DELAY_CS);
+
+        final MovieOnDraw legacy = new MovieOnDraw(gif);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                legacy.start();
+            }
+        });
+        SystemClock.sleep(PLAY_MS);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                legacy.stop();
+            }
+        });
+
+        final EngineView engineView = new EngineView(InstrumentationRegistry.getTargetContext());
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                engineView.start(gif);
+            }
+        });
+        SystemClock.sleep(PLAY_MS);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                engineView.stop();
+            }
+        });
+
+        double seconds = PLAY_MS / 1000.0;
+        double legacyMain = legacy.mMainNanos / 1e6 / seconds;
+        double engineMain = engineView.mEngine.getMainThreadNanos() / 1e6 / seconds;
+        double engineRender = engineView.mEngine.getRenderThreadCpuNanos() / 1e6 / seconds;
+        Log.i(TAG, String.format(Locale.US,
+                "per second of playback: Movie.draw in onDraw main %.2fms (%d frames), "
+                        + "engine main %.2fms + render cpu %.2fms = %.2fms (%d frames)",
+                legacyMain, legacy.mFrames, engineMain, engineRender, engineMain + engineRender,
+                engineView.mEngine.getFramesShown()));
+
+        assertTrue(legacy.mFrames > 0);
+        assertTrue(engineView.mEngine.getFramesShown() > 0);
+        assertTrue("engine main " + engineMain + "ms/s, legacy main " + legacyMain + "ms/s", engineMain < legacyMain);
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    /**
+     * 原方式：每个 vsync 在 UI 线程按当前时间 setTime + draw
+     */
+    private static final class MovieOnDraw implements Choreographer.FrameCallback {
+        private final Movie mMovie;
+        private final Bitmap mLayer;
+        private final Canvas mCanvas;
+        private Choreographer mChoreographer;
+        private long mStartTime;
+        private long mMainNanos;
+        private long mFrames;
+        private boolean mRunning;
+
+        MovieOnDraw(byte[] gif) {
+            mMovie = Movie.decodeByteArray(gif, 0, gif.length);
+            assertNotNull(mMovie);
+            mLayer = Bitmap.createBitmap(mMovie.width(), mMovie.height(), Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mLayer);
+        }
+
+        void start() {
+            mChoreographer = Choreographer.getInstance();
+            mStartTime = SystemClock.uptimeMillis();
+            mRunning = true;
+            mChoreographer.postFrameCallback(this);
+        }
+
+        void stop() {
+            mRunning = false;
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            int duration = Math.max(1, mMovie.duration());
+            mMovie.setTime((int) ((SystemClock.uptimeMillis() - mStartTime) % duration));
+            mMovie.draw(mCanvas, 0, 0);
+            mMainNanos += System.nanoTime() - start;
+            ++mFrames;
+
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * 现方式：引擎请求重绘时在 UI 线程绘制一次
+     */
+    private static final class EngineView implements IXPhotoView {
+        private final Context mContext;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Canvas mCanvas = new Canvas();
+        private XPhotoViewGifEngine mEngine;
+        private boolean mInvalidated;
+
+        private final Runnable mDrawRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mInvalidated = false;
+                mEngine.draw(mCanvas, mEngine.getWidth(), mEngine.getHeight());
+            }
+        };
+
+        EngineView(Context context) {
+            mContext = context;
+        }
+
+        void start(byte[] gif) {
+            mEngine = XPhotoViewGifEngine.create(this, gif);
+            assertNotNull(mEngine);
+            mCanvas.setBitmap(Bitmap.createBitmap(mEngine.getWidth(), mEngine.getHeight(), Bitmap.Config.ARGB_8888));
+            mEngine.start();
+        }
+
+        void stop() {
+            mEngine.stop();
+            mHandler.removeCallbacks(mDrawRunnable);
+            mEngine.release();
+        }
+
+        @Override
+        public void callPostInvalidate() {
+            if (!mInvalidated) {
+                mInvalidated = true;
+                mHandler.post(mDrawRunnable);
+            }
+        }
+
+        @Override
+        public DoubleTabScale getDoubleTabScale() {
+            return DoubleTabScale.CENTER_INSIDE;
+        }
+
+        @Override
+        public void onSingleTab() {
+        }
+
+        @Override
+        public void onLongTab() {
+        }
+
+        @Override
+        public Context getContext() {
+            return mContext;
+        }
+
+        @Override
+        public String getCachedDir() {
+            return mContext.getCacheDir().getAbsolutePath();
+        }
+
+        @Override
+        public void onSetImageFinished(IXPhotoViewLinker bm, boolean success, Rect image) {
+        }
+
+        @Override
+        public void interceptParentTouchEvent(boolean intercept) {
+        }
+
+        @Override
+        public void recycleAll() {
+        }
+    }
+
+    /**
+     * 生成 size * size 的动画 GIF，每帧是一组平移的斜条纹
+     * 128 色，LZW 码长固定为 8 位：每 100 个像素发一次清除码，码表不会增长到 9 位，每个码正好一个字节
+     */
+    private static byte[] encodeGif(int size, int frames, int delayCs) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(os, 'G', 'I', 'F', '8', '9', 'a');
+        write(os, size & 0xff, size >> 8, size & 0xff, size >> 8, 0x80 | 0x06, 0, 0);
+        for (int i = 0; i < 128; ++i) {
+            write(os, i * 2, 255 - i * 2, (i * 37) & 0xff);
+        }
+        // NETSCAPE2.0 循环
+        write(os, 0x21, 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0);
+
+        byte[] codes = new byte[size * size + size * size / 100 + 2];
+        for (int f = 0; f < frames; ++f) {
+            write(os, 0x21, 0xF9, 4, 0, delayCs & 0xff, delayCs >> 8, 0, 0);
+            write(os, 0x2C, 0, 0, 0, 0, size & 0xff, size >> 8, size & 0xff, size >> 8, 0);
+            write(os, 7);
+
+            int n = 0;
+            int pixels = 0;
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    if (pixels % 100 == 0) {
+                        codes[n++] = (byte) 128;
+                    }
+                    codes[n++] = (byte) (((x + y + f * 8) / 4) & 0x7f);
+                    ++pixels;
+                }
+            }
+            codes[n++] = (byte) 129;
+
+            for (int offset = 0; offset < n; offset += 255) {
+                int length = Math.min(255, n - offset);
+                os.write(length);
+                os.write(codes, offset, length);
+            }
+            os.write(0);
+        }
+        write(os, 0x3B);
+        return os.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream os, int... bytes) {
+        for (int b : bytes) {
+            os.write(b);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.phoenix.xphotoview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缩略图的基准测试，在设备上用 demo 的图片运行：从打开解析器到所有缩略图解析完成的耗时
+ * - 逐个单元格：每个单元格进入一次 RegionDecoder
+ * - 图集：XPhotoViewThumbAtlas 每页进入一次 RegionDecoder，一般图片只有一页
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 单元格大小、缩略图 SampleSize 与 XPhotoViewLinker 初始化时的计算相同，View 大小取屏幕大小
+ * 每种方式先预热一次，再取 ITERATIONS 次中最快的一次
+ */
+@RunWith(AndroidJUnit4.class)
+public class XPhotoViewThumbnailBenchmark {
+
+    private static final String TAG = "XPhotoViewThumbnailBenchmark";
+
+    private static final String[] ASSETS = {"a.jpg", "b.jpg", "c.jpg"};
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void atlasVersusPerCell() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        int viewWidth = metrics.widthPixels;
+        int viewHeight = metrics.heightPixels;
+        int cellSize = XPhotoViewDecodeProfiler.getInstance(context).getCellSize(viewWidth, viewHeight);
+
+        for (String asset : ASSETS) {
+            RegionDecoder decoder = open(asset);
+            try {
+                int width = decoder.getWidth();
+                int height = decoder.getHeight();
+                int thumbSampleSize = XPhotoViewLinker.getThumbSampleSize(width, height, viewWidth, viewHeight);
+                XPhotoViewViewport viewport = new XPhotoViewViewport(viewWidth, viewHeight, width, height,
+                        width, height, 0, 0, thumbSampleSize, thumbSampleSize, cellSize);
+                XPhotoViewThumbAtlas atlas = new XPhotoViewThumbAtlas(viewport, thumbSampleSize,
+                        XPhotoViewMemoryGovernor.getInstance(context).newOwner(null));
+
+                decodePerCell(decoder, viewport);
+                decodeAtlas(decoder, atlas, thumbSampleSize);
+                long perCell = Long.MAX_VALUE;
+                long paged = Long.MAX_VALUE;
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    perCell = Math.min(perCell, decodePerCell(decoder, viewport));
+                    paged = Math.min(paged, decodeAtlas(decoder, atlas, thumbSampleSize));
+                }
+
+                int cells = viewport.gridRows * viewport.gridCols;
+                Log.i(TAG, String.format(Locale.US, "%s %dx%d sample %d: %d cells per cell %dms, %d pages atlas %dms",
+                        asset, width, height, thumbSampleSize, cells, perCell, atlas.getPageCount(), paged));
+                if (cells > atlas.getPageCount()) {
+                    assertTrue(asset + " atlas " + paged + "ms, per cell " + perCell + "ms", paged <= perCell);
+                }
+            } finally {
+                decoder.close();
+            }
+        }
+    }
+
+    private static RegionDecoder open(String asset) throws IOException {
+        InputStream is = InstrumentationRegistry.getContext().getAssets().open(asset);
+        try {
+            RegionDecoder decoder = DefaultRegionDecoder.FACTORY.create();
+            decoder.open(is);
+            return decoder;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return 毫秒
+     */
+    private static long decodePerCell(RegionDecoder decoder, XPhotoViewViewport viewport) {
+        long start = SystemClock.elapsedRealtime();
+        for (int n = 0; n < viewport.gridRows; ++n) {
+            for (int m = 0; m < viewport.gridCols; ++m) {
+                Rect rect = viewport.getImageUnitRect(n, m);
+                if (rect != null) {
+                    recycle(decoder.decodeRegion(rect, viewport.thumbSampleSize, Bitmap.Config.ARGB_8888));
+                }
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * @return 毫秒
+     */
+    private static long decodeAtlas(RegionDecoder decoder, XPhotoViewThumbAtlas atlas, int sampleSize) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < atlas.getPageCount(); ++i) {
+            Rect rect = atlas.getPage(i).imageRect;
+            if (!rect.isEmpty()) {
+                recycle(decoder.decodeRegion(rect, sampleSize, Bitmap.Config.ARGB_8888));
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 默认的局部解析器，基于 BitmapRegionDecoder
+ */
+final class DefaultRegionDecoder implements RegionDecoder {
+
+    static final Factory FACTORY = new Factory() {
+        @Override
+        public RegionDecoder create() {
+            return new DefaultRegionDecoder();
+        }
+    };
+
+    private BitmapRegionDecoder mBitmapRegionDecoder;
+
+    @Override
+    public void open(InputStream source) throws IOException {
+        mBitmapRegionDecoder = BitmapRegionDecoder.newInstance(source, false);
+        if (mBitmapRegionDecoder == null) {
+            throw new IOException("Unsupported image format");
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmapRegionDecoder == null ? 0 : mBitmapRegionDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmapRegionDecoder == null ? 0 : mBitmapRegionDecoder.getHeight();
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+        if (isClosed()) {
+            return null;
+        }
+
+        BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
+        tmpOptions.inPreferredConfig = config;
+        tmpOptions.inSampleSize = sampleSize;
+        tmpOptions.inJustDecodeBounds = false;
+
+        return mBitmapRegionDecoder.decodeRegion(rect, tmpOptions);
+    }
+
+    @Override
+    public void close() {
+        if (mBitmapRegionDecoder != null) {
+            mBitmapRegionDecoder.recycle();
+            mBitmapRegionDecoder = null;
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mBitmapRegionDecoder == null || mBitmapRegionDecoder.isRecycled();
+    }
+}
@@ -1,5 +1,6 @@
 package com.phoenix.xphotoview;
 
+import android.content.Context;
 import android.graphics.Rect;
 
 /**
@@ -24,6 +25,8 @@ interface IXPhotoView {
 
     void onLongTab();
 
+    Context getContext();
+
     String getCachedDir();
 
     void callPostInvalidate();
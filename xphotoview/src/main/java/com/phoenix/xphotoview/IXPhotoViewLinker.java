@@ -5,6 +5,7 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.support.annotation.NonNull;
 
+import java.io.File;
 import java.io.InputStream;
 
 interface IXPhotoViewLinker {
@@ -50,10 +51,38 @@ interface IXPhotoViewLinker {
 
     /**
      * @param is 设置输入流
-     * @param config config
+     * @param config config，null 表示根据图片是否有透明通道自动选择
      */
     void setInputStream(InputStream is, Bitmap.Config config);
 
+    /**
+     * 直接使用已经构造好的 RegionDecoder，open 时传入的数据源为 null
+     *
+     * @param decoder 解析器
+     * @param config config，null 表示根据图片是否有透明通道自动选择
+     */
+    void setRegionDecoder(RegionDecoder decoder, Bitmap.Config config);
+
+    /**
+     * 通过文件设置图片，从 XPhotoViewDecoderRegistry 获取共享的解析器，同一个文件在多个 View 中只打开一次
+     * JPEG 没有透明通道直接使用 RGB_565，其他格式由 linker 探测
+     *
+     * @param format 已经探测出的格式，TILED 按预切片容器随机读取
+     */
+    void setImageFile(File file, XPhotoViewFormat format);
+
+    /**
+     * 使用 XPhotoViewPreloader 准备好的解析器和缩略图，解析器由 linker 接管
+     *
+     * @param prepared 准备结果
+     */
+    void setPreparedImage(XPhotoViewPreloader.Prepared prepared);
+
+    /**
+     * @param factory 设置 RegionDecoder 的工厂，传 null 恢复默认的 BitmapRegionDecoder 实现
+     */
+    void setRegionDecoderFactory(RegionDecoder.Factory factory);
+
     /**
      * 获取图片真实的
      *
@@ -169,7 +198,41 @@ interface IXPhotoViewLinker {
     void updateSampleSize();
 
     /**
-     * 当这个 BitmapManager 被丢弃时，必须要执行这个 destroy(), 确保线程已经退出
+     * 手势或动画开始，之后的 scale / move 只更新位置，绘制时通过 Matrix 变换开始时的单元格
+     */
+    void beginTransientTransform();
+
+    /**
+     * 手势或动画结束，按最终位置重新计算单元格，之后需要 updateSampleSize
+     */
+    void endTransientTransform();
+
+    /**
+     * 开启或关闭滚动缓存，见 XPhotoViewBackBuffer
+     * @param enabled 是否开启
+     */
+    void setScrollCacheEnabled(boolean enabled);
+
+    /**
+     * 设置帧追踪，见 XPhotoViewFrameTracer
+     * @param tracer 为 null 表示关闭
+     */
+    void setFrameTracer(XPhotoViewFrameTracer tracer);
+
+    /**
+     * View 的可见性改变，不可见时暂停高清单元格的解析，可见时立即恢复
+     * @param visible 是否真正可见
+     */
+    void setVisible(boolean visible);
+
+    /**
+     * 响应内存压力，按级别释放 bitmap，View 重新可见时恢复
+     * @param level XPhotoViewMemoryTrimmer.TRIM_* 级别
+     */
+    void trimMemory(int level);
+
+    /**
+     * 当这个 BitmapManager 被丢弃时，必须要执行这个 destroy(), 确保尚未执行的解析任务已经取消
      */
     void destroy();
 }
@@ -0,0 +1,93 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 内存数据源的局部解析器
+ * - 直接持有外部设置进来的 Bitmap，或者在 open 时把整个数据源解析为一张 Bitmap
+ * - 适用于本身不大的图片，局部解析只是把原图的一块缩放绘制到新的 Bitmap
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 不用 createBitmap(source, x, y, w, h, matrix, true)：
+ * - 结果总是沿用原图的 Config，linker 对不透明的图片要求的 RGB_565 得不到，还要再 copy 一次
+ * - 原图不可变且取整张、不缩放时直接返回原图本身，单元格被回收时会连原图一起回收
+ * 按要求的 Config 创建目标 Bitmap 后用 Canvas 绘制，每个区域只分配一次
+ */
+final class InMemoryRegionDecoder implements RegionDecoder {
+
+    private volatile Bitmap mSourceBitmap;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    InMemoryRegionDecoder() {
+    }
+
+    InMemoryRegionDecoder(Bitmap bitmap) {
+        mSourceBitmap = bitmap;
+    }
+
+    @Override
+    public void open(InputStream source) throws IOException {
+        if (mSourceBitmap != null) {
+            return;
+        }
+
+        mSourceBitmap = BitmapFactory.decodeStream(source);
+        if (mSourceBitmap == null) {
+            throw new IOException("Unsupported image format");
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        Bitmap bitmap = mSourceBitmap;
+        return bitmap == null ? 0 : bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        Bitmap bitmap = mSourceBitmap;
+        return bitmap == null ? 0 : bitmap.getHeight();
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+        Bitmap source = mSourceBitmap;
+        if (source == null || source.isRecycled()) {
+            return null;
+        }
+
+        int right = Math.min(rect.right, source.getWidth());
+        int bottom = Math.min(rect.bottom, source.getHeight());
+        if (right <= rect.left || bottom <= rect.top) {
+            return null;
+        }
+
+        if (config == null) {
+            config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        }
+        int sample = Math.max(1, sampleSize);
+        int width = Math.max(1, (right - rect.left) / sample);
+        int height = Math.max(1, (bottom - rect.top) / sample);
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        Rect src = new Rect(rect.left, rect.top, right, bottom);
+        new Canvas(bitmap).drawBitmap(source, src, new Rect(0, 0, width, height), mPaint);
+        return bitmap;
+    }
+
+    @Override
+    public void close() {
+        mSourceBitmap = null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mSourceBitmap == null;
+    }
+}
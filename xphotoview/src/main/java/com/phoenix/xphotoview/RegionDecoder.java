@@ -0,0 +1,65 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 局部解析器接口，XPhotoView 的网格解析只依赖这个接口
+ * - 默认实现基于 BitmapRegionDecoder
+ * - 可以替换为预切片格式、内存数据源或者测试用的模拟解析器
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 线程约定：
+ * - open 在解析线程中调用一次
+ * - decodeRegion 可能被多个解析线程同时调用
+ * - close 不会与 decodeRegion 并发调用
+ */
+public interface RegionDecoder {
+
+    /**
+     * 打开数据源并读取图片的宽高
+     *
+     * @param source 数据源
+     * @throws IOException 数据源无法解析
+     */
+    void open(InputStream source) throws IOException;
+
+    /**
+     * @return 原图宽度
+     */
+    int getWidth();
+
+    /**
+     * @return 原图高度
+     */
+    int getHeight();
+
+    /**
+     * 解析原图中的一块区域
+     *
+     * @param rect       原图坐标系中的区域
+     * @param sampleSize 采样率，结果 bitmap 的宽高约为 rect 的 1 / sampleSize
+     * @param config     期望的 Bitmap.Config
+     * @return bitmap，失败时返回 null
+     */
+    Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config);
+
+    /**
+     * 释放解析器持有的资源，之后不再可用
+     */
+    void close();
+
+    /**
+     * @return 是否已经 close
+     */
+    boolean isClosed();
+
+    /**
+     * 每设置一张图片创建一个新的 RegionDecoder
+     */
+    interface Factory {
+        RegionDecoder create();
+    }
+}
@@ -0,0 +1,257 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 预切片金字塔容器（.xpt）的局部解析器
+ * - 格式定义见 xphotoview-tiler 模块的 TiledImageFormat，两边需要同步修改
+ * - 偏移索引通过内存映射读取，查找瓦片只是对 MappedByteBuffer 的绝对位置读取，不产生拷贝
+ * - 按 sampleSize 选择最接近的层级，只解码与区域相交的几块瓦片，不再需要从整张 JPEG 中局部解析
+ */
+final class TiledImageRegionDecoder implements RegionDecoder {
+
+    private static final byte[] MAGIC = {'X', 'P', 'T', 'L'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int TILE_FORMAT_PNG = 2;
+
+    private final File mFile;
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mIndex;
+
+    private int mWidth;
+    private int mHeight;
+    private int mTileSize;
+    private int mTileFormat;
+
+    /**
+     * 每层的宽高、列数，以及该层第一块瓦片在索引中的序号
+     */
+    private int[] mLevelWidth;
+    private int[] mLevelHeight;
+    private int[] mLevelCols;
+    private int[] mLevelIndexBase;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    TiledImageRegionDecoder(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 只根据文件头的 magic 判断是否为容器文件
+     */
+    static boolean isTiledImage(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 容器按文件随机读取，不使用传入的流
+     */
+    @Override
+    public void open(InputStream source) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "r");
+        mChannel = mRandomAccessFile.getChannel();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!isTiledImage(magic, magic.length) || header.getInt() != VERSION) {
+                throw new IOException("Not a tiled image " + mFile);
+            }
+
+            mWidth = header.getInt();
+            mHeight = header.getInt();
+            mTileSize = header.getInt();
+            int levelCount = header.getInt();
+            mTileFormat = header.getInt();
+            header.getInt();
+            long indexOffset = header.getLong();
+            long indexLength = header.getLong();
+
+            if (mWidth <= 0 || mHeight <= 0 || mTileSize <= 0 || levelCount <= 0
+                    || indexLength > Integer.MAX_VALUE || indexOffset + indexLength > mChannel.size()) {
+                throw new IOException("Corrupted header " + mFile);
+            }
+
+            mLevelWidth = new int[levelCount];
+            mLevelHeight = new int[levelCount];
+            mLevelCols = new int[levelCount];
+            mLevelIndexBase = new int[levelCount];
+
+            long tiles = 0;
+            int w = mWidth;
+            int h = mHeight;
+            for (int level = 0; level < levelCount; ++level) {
+                mLevelWidth[level] = w;
+                mLevelHeight[level] = h;
+                mLevelCols[level] = (w + mTileSize - 1) / mTileSize;
+                mLevelIndexBase[level] = (int) tiles;
+                tiles += (long) mLevelCols[level] * ((h + mTileSize - 1) / mTileSize);
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+            }
+
+            if (tiles * INDEX_ENTRY_SIZE != indexLength) {
+                throw new IOException("Corrupted index " + mFile);
+            }
+
+            mIndex = mChannel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+        if (isClosed()) {
+            return null;
+        }
+
+        // 选择不超过 sampleSize 的最粗层级，剩余的倍数交给 BitmapFactory 的 inSampleSize
+        int level = 0;
+        while (level + 1 < mLevelWidth.length && (2 << level) <= sampleSize) {
+            level++;
+        }
+        int levelSample = Math.max(1, sampleSize >> level);
+
+        int left = rect.left >> level;
+        int top = rect.top >> level;
+        int right = Math.min(mLevelWidth[level], (rect.right + (1 << level) - 1) >> level);
+        int bottom = Math.min(mLevelHeight[level], (rect.bottom + (1 << level) - 1) >> level);
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+
+        Bitmap.Config outConfig = mTileFormat == TILE_FORMAT_PNG ? Bitmap.Config.ARGB_8888 : config;
+        int outWidth = (right - left + levelSample - 1) / levelSample;
+        int outHeight = (bottom - top + levelSample - 1) / levelSample;
+        Bitmap out = Bitmap.createBitmap(outWidth, outHeight, outConfig);
+        Canvas canvas = new Canvas(out);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = outConfig;
+        options.inSampleSize = levelSample;
+
+        int cols = mLevelCols[level];
+        for (int r = top / mTileSize; r <= (bottom - 1) / mTileSize; ++r) {
+            for (int c = left / mTileSize; c <= (right - 1) / mTileSize; ++c) {
+                byte[] data = readTile(mLevelIndexBase[level] + r * cols + c);
+                if (data == null) {
+                    continue;
+                }
+
+                Bitmap tile = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (tile == null) {
+                    continue;
+                }
+
+                int tileLeft = c * mTileSize;
+                int tileTop = r * mTileSize;
+                int tileRight = Math.min(tileLeft + mTileSize, mLevelWidth[level]);
+                int tileBottom = Math.min(tileTop + mTileSize, mLevelHeight[level]);
+
+                RectF dst = new RectF((tileLeft - left) * 1f / levelSample, (tileTop - top) * 1f / levelSample,
+                        (tileRight - left) * 1f / levelSample, (tileBottom - top) * 1f / levelSample);
+                canvas.drawBitmap(tile, null, dst, mPaint);
+                tile.recycle();
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * 根据索引读取一块瓦片的编码数据
+     */
+    private byte[] readTile(int index) {
+        MappedByteBuffer indexBuffer = mIndex;
+        if (indexBuffer == null) {
+            return null;
+        }
+
+        int position = index * INDEX_ENTRY_SIZE;
+        long offset = indexBuffer.getLong(position);
+        int length = indexBuffer.getInt(position + 8);
+        if (length <= 0) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        try {
+            readFully(ByteBuffer.wrap(data), offset);
+        } catch (IOException e) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * FileChannel 的定位读取不改变 channel 的 position，多个解析线程可以同时读取
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + mFile);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() {
+        mIndex = null;
+        mChannel = null;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException ignored) { }
+            mRandomAccessFile = null;
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mIndex == null;
+    }
+}
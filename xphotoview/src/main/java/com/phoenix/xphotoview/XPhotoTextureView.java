@@ -0,0 +1,405 @@
+package com.phoenix.xphotoview;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.TextureView;
+import android.view.View;
+import android.view.ViewParent;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在独立渲染线程中绘制的 XPhotoView
+ * - 手势、linker 及解析流程与 XPhotoView 完全一致，只是 linker.draw 从 UI 线程的 onDraw 挪到渲染线程的 TextureView 画布上
+ * - UI 线程繁忙（列表滑动、复杂布局）时漫游和缩放仍然流畅，单元格很多的帧也不占用 UI 线程
+ * - callPostInvalidate 合并为一次渲染请求，渲染线程处理完当前帧才会绘制下一帧
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 线程：
+ * - 手势和 View 大小在 UI 线程中更新，linker 把视口与手势中的当前位置作为一个不可变快照一次发布，渲染线程每帧只读取一次
+ * - mRenderLock 保证渲染一帧期间 Surface 不被销毁、linker 的 View 大小不被修改
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 限制：
+ * - 需要 API 14 及以上，且窗口开启硬件加速（TextureView 的要求）
+ * - 不支持 GIF，也没有预置的 drawable，第一帧缩略图解析完成前为透明
+ * - 加载回调 XPhotoViewCallback 以 XPhotoView 为参数，这里不提供
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class XPhotoTextureView extends TextureView implements IXPhotoView, TextureView.SurfaceTextureListener {
+
+    private static final String TAG = "XPhotoTextureView";
+
+    private IXPhotoViewLinker mPhotoViewLinker;
+
+    private XPhotoViewGestureManager mGestureManager;
+    private XPhotoView.OnTabListener mSingleTabListener;
+    private DoubleTabScale mDefaultDoubleTabScale = DoubleTabScale.CENTER_CROP;
+
+    private boolean mScaleEnable = true;
+
+    /**
+     * 与 XPhotoView 相同，mVisible 为综合外部设置、窗口、View 树可见性后的结果
+     */
+    private boolean mUserVisible = true;
+    private boolean mVisible = false;
+
+    /**
+     * 帧追踪，解析线程也会请求重绘，所以是 volatile
+     */
+    private volatile XPhotoViewFrameTracer mFrameTracer;
+
+    /**
+     * 渲染线程，attach 时创建，detach 时退出
+     */
+    private HandlerThread mRenderThread;
+    private volatile Handler mRenderHandler;
+
+    /**
+     * 已经有一次渲染在排队，之后的请求合并到这一次
+     */
+    private final AtomicBoolean mRenderRequested = new AtomicBoolean(false);
+
+    /**
+     * 保护以下字段，UI 线程修改大小或销毁 Surface 时与渲染线程互斥
+     */
+    private final Object mRenderLock = new Object();
+    private boolean mSurfaceReady = false;
+    private int mRenderWidth = 0;
+    private int mRenderHeight = 0;
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRenderRequested.set(false);
+            renderFrame();
+        }
+    };
+
+    public XPhotoTextureView(Context context) {
+        this(context, null, 0);
+    }
+
+    public XPhotoTextureView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public XPhotoTextureView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        // 未绘制的区域透出背景，与 XPhotoView 一致
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+        mPhotoViewLinker = new XPhotoViewLinker(this);
+        mGestureManager = new XPhotoViewGestureManager(this.getContext(), this, mPhotoViewLinker);
+    }
+
+    public void setScaleEnable(boolean flag) {
+        mScaleEnable = flag;
+    }
+
+    public void setSingleTabListener(XPhotoView.OnTabListener listener) {
+        mSingleTabListener = listener;
+    }
+
+    /**
+     * 见 XPhotoView.setUserVisible
+     */
+    public void setUserVisible(boolean visible) {
+        mUserVisible = visible;
+        updateVisibility();
+    }
+
+    public boolean isUserVisible() {
+        return mUserVisible;
+    }
+
+    /**
+     * 滚动缓存：平移时复用上一帧的画面，只重画新露出的部分，缩放时整体重建
+     * 适合每帧缩放绘制大量单元格开销较大的设备，代价是两块 View 大小的 ARGB_8888 缓冲，且高清单元格不再使用 HARDWARE bitmap
+     */
+    public void setScrollCacheEnabled(boolean enabled) {
+        mPhotoViewLinker.setScrollCacheEnabled(enabled);
+    }
+
+    /**
+     * 帧追踪：统计每帧的绘制耗时、单元格数及掉帧原因，见 XPhotoViewFrameTracer
+     *
+     * @param tracer 为 null 表示关闭，一个 tracer 只应该设置给一个 View
+     */
+    public void setFrameTracer(XPhotoViewFrameTracer tracer) {
+        mFrameTracer = tracer;
+        mPhotoViewLinker.setFrameTracer(tracer);
+    }
+
+    /**
+     * 替换局部解析器，在下一次 setImage 时生效
+     *
+     * @param factory RegionDecoder 工厂，null 表示使用默认的 BitmapRegionDecoder
+     */
+    public void setRegionDecoderFactory(RegionDecoder.Factory factory) {
+        mPhotoViewLinker.setRegionDecoderFactory(factory);
+    }
+
+    public void setImage(Bitmap image) {
+        mPhotoViewLinker.setBitmap(image, false);
+    }
+
+    public void setImage(String path) {
+        setImage(new File(path));
+    }
+
+    public void setImage(File file) {
+        if (file == null || !file.exists()) {
+            mPhotoViewLinker.setInputStream(null, null);
+            return;
+        }
+
+        // 已经通过 XPhotoViewPreloader 准备好的图片直接接管
+        XPhotoViewPreloader.Prepared prepared = XPhotoViewPreloader.getInstance(getContext()).take(file);
+        if (prepared != null) {
+            mPhotoViewLinker.setPreparedImage(prepared);
+            return;
+        }
+
+        XPhotoViewFormat format = XPhotoViewFormat.of(file);
+        if (format == XPhotoViewFormat.GIF) {
+            Log.e(TAG, "gif is not supported, use XPhotoView instead");
+            mPhotoViewLinker.setInputStream(null, null);
+            return;
+        }
+
+        mPhotoViewLinker.setImageFile(file, format);
+    }
+
+    /**
+     * 通过流设置图片，流由 linker 接管，读取完成后关闭
+     */
+    public void setImageWithStream(InputStream ios) {
+        if (ios == null) {
+            mPhotoViewLinker.setInputStream(null, null);
+            return;
+        }
+
+        PushbackInputStream is = XPhotoViewFormat.wrap(ios);
+        mPhotoViewLinker.setInputStream(is, XPhotoViewFormat.of(is).getBitmapConfig());
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        updateRenderSize(width, height);
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        updateRenderSize(width, height);
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        synchronized (mRenderLock) {
+            mSurfaceReady = false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    /**
+     * 在 UI 线程中更新 linker 的 View 大小，不会与正在渲染的帧交错
+     */
+    private void updateRenderSize(int width, int height) {
+        synchronized (mRenderLock) {
+            mSurfaceReady = true;
+            mRenderWidth = width;
+            mRenderHeight = height;
+            mPhotoViewLinker.onViewSizeChanged(width, height);
+        }
+        callPostInvalidate();
+    }
+
+    /**
+     * 在渲染线程中绘制一帧
+     */
+    private void renderFrame() {
+        synchronized (mRenderLock) {
+            if (!mSurfaceReady) {
+                return;
+            }
+
+            Canvas canvas = lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+
+            try {
+                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                mPhotoViewLinker.draw(canvas, mRenderWidth, mRenderHeight);
+            } finally {
+                unlockCanvasAndPost(canvas);
+            }
+        }
+    }
+
+    private void startRenderThread() {
+        if (mRenderThread != null) {
+            return;
+        }
+
+        mRenderThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mRenderRequested.set(false);
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+    }
+
+    private void stopRenderThread() {
+        if (mRenderThread == null) {
+            return;
+        }
+
+        mRenderHandler = null;
+        mRenderThread.quit();
+        mRenderThread = null;
+    }
+
+    @Override
+    public void interceptParentTouchEvent(boolean intercept) {
+        ViewParent parent = getParent();
+        if (parent != null) {
+            parent.requestDisallowInterceptTouchEvent(intercept);
+        }
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        if (mScaleEnable) {
+            switch (event.getAction()) {
+                case MotionEvent.ACTION_DOWN:
+                    if (mPhotoViewLinker != null && !mPhotoViewLinker.isNotAvailable()) {
+                        interceptParentTouchEvent(true);
+                    }
+                    break;
+                case MotionEvent.ACTION_UP:
+                    interceptParentTouchEvent(false);
+                    break;
+            }
+        }
+
+        return mGestureManager.onTouchEvent(event);
+    }
+
+    @Override
+    public void onSingleTab() {
+        if (mSingleTabListener != null) {
+            mSingleTabListener.onSingleTab();
+        }
+    }
+
+    @Override
+    public void onLongTab() {
+        if (mSingleTabListener != null) {
+            mSingleTabListener.onLongTab();
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibility();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        startRenderThread();
+        XPhotoViewMemoryTrimmer.getInstance(getContext()).register(mPhotoViewLinker);
+        updateVisibility();
+    }
+
+    private void updateVisibility() {
+        // 父类构造过程中也可能回调 onVisibilityChanged
+        if (mPhotoViewLinker == null) {
+            return;
+        }
+
+        boolean visible = mUserVisible && getWindowVisibility() == VISIBLE && isShown();
+        if (visible != mVisible) {
+            Log.d(TAG, "visibility changed " + visible);
+        }
+
+        mVisible = visible;
+        mPhotoViewLinker.setVisible(visible);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        XPhotoViewMemoryTrimmer.getInstance(getContext()).unregister(mPhotoViewLinker);
+        mVisible = false;
+        stopRenderThread();
+
+        // quit 不会等待正在进行的 renderFrame，在锁内销毁，之后排队的帧也不再绘制
+        synchronized (mRenderLock) {
+            mSurfaceReady = false;
+            mPhotoViewLinker.destroy();
+        }
+    }
+
+    @Override
+    public void recycleAll() {
+        this.onDetachedFromWindow();
+    }
+
+    @Override
+    public DoubleTabScale getDoubleTabScale() {
+        return mDefaultDoubleTabScale;
+    }
+
+    @Override
+    public String getCachedDir() {
+        return getContext().getFilesDir().getAbsolutePath();
+    }
+
+    /**
+     * 任意线程调用，请求渲染线程绘制一帧
+     */
+    @Override
+    public void callPostInvalidate() {
+        XPhotoViewFrameTracer tracer = mFrameTracer;
+        if (tracer != null) {
+            tracer.onInvalidate();
+        }
+        Handler handler = mRenderHandler;
+        if (handler != null && mRenderRequested.compareAndSet(false, true)) {
+            handler.post(mRenderRunnable);
+        }
+    }
+
+    @Override
+    public void onSetImageFinished(IXPhotoViewLinker bm, boolean success, Rect image) {
+        Log.d(TAG, "set image finished " + success);
+    }
+}
@@ -4,12 +4,12 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Movie;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
@@ -21,9 +21,9 @@ import android.view.ViewParent;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 
 /**
  * 1. 首先它能显示图片初始的样子（无论是全貌还是概貌）
@@ -45,10 +45,37 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
 
     private boolean mScaleEnable = true;
 
-    private Movie mMovie;
-    private long mMovieStart;
+    private XPhotoViewGifEngine mGifEngine;
     private boolean mGif = false;
 
+    /**
+     * 小图的整图解析在解析线程中进行，完成后回到 UI 线程交给 linker
+     */
+    private final XPhotoViewDecodeScheduler.TaskQueue mSmallImageQueue = XPhotoViewDecodeScheduler.getInstance().newQueue();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 每次设置图片递增，小图解析完成时不一致说明已经换了图片，丢弃结果
+     */
+    private int mImageGeneration = 0;
+
+    /**
+     * mUserVisible 由外部设置（如 ViewPager 的当前页），mVisible 为综合窗口、View 树可见性后的结果
+     * 不可见时暂停 GIF 换帧和高清单元格的解析
+     */
+    private boolean mUserVisible = true;
+    private boolean mVisible = false;
+
+    /**
+     * 帧追踪，解析线程也会请求重绘，所以是 volatile
+     */
+    private volatile XPhotoViewFrameTracer mFrameTracer;
+
+    /**
+     * 手势录制，只在 UI 线程访问
+     */
+    private XPhotoViewGestureRecorder mGestureRecorder;
+
     public XPhotoView(Context context) {
         this(context, null, 0);
     }
@@ -89,8 +116,62 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
         mSingleTabListener = listener;
     }
 
+    /**
+     * 告知 View 是否处于用户可见的位置，例如 ViewPager 中只有当前页为 true
+     * 窗口和 View 树的可见性会自动跟踪，不需要在这里设置
+     */
+    public void setUserVisible(boolean visible) {
+        mUserVisible = visible;
+        updateVisibility();
+    }
+
+    public boolean isUserVisible() {
+        return mUserVisible;
+    }
+
+    /**
+     * 滚动缓存：平移时复用上一帧的画面，只重画新露出的部分，缩放时整体重建
+     * 适合每帧缩放绘制大量单元格开销较大的设备，代价是两块 View 大小的 ARGB_8888 缓冲，且高清单元格不再使用 HARDWARE bitmap
+     */
+    public void setScrollCacheEnabled(boolean enabled) {
+        mPhotoViewLinker.setScrollCacheEnabled(enabled);
+    }
+
+    /**
+     * 帧追踪：统计每帧的绘制耗时、单元格数及掉帧原因，见 XPhotoViewFrameTracer
+     *
+     * @param tracer 为 null 表示关闭，一个 tracer 只应该设置给一个 View
+     */
+    public void setFrameTracer(XPhotoViewFrameTracer tracer) {
+        mFrameTracer = tracer;
+        mPhotoViewLinker.setFrameTracer(tracer);
+    }
+
+    XPhotoViewFrameTracer getFrameTracer() {
+        return mFrameTracer;
+    }
+
+    /**
+     * 手势录制：记录之后收到的触摸事件，保存后可以用 XPhotoViewGestureReplayer 回放
+     *
+     * @param recorder 为 null 表示停止录制
+     */
+    public void setGestureRecorder(XPhotoViewGestureRecorder recorder) {
+        mGestureRecorder = recorder;
+    }
+
+    /**
+     * 替换局部解析器，在下一次 setImage 时生效
+     *
+     * @param factory RegionDecoder 工厂，null 表示使用默认的 BitmapRegionDecoder
+     */
+    public void setRegionDecoderFactory(RegionDecoder.Factory factory) {
+        mPhotoViewLinker.setRegionDecoderFactory(factory);
+    }
+
     @Override
     public void setImageDrawable(@Nullable Drawable drawable) {
+        ++mImageGeneration;
         super.setImageDrawable(drawable);
         onSetImageFinished(null, true, null);
     }
@@ -108,7 +189,9 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
         if (mGif) {
             return;
         }
-        super.setImageBitmap(image);
+        ++mImageGeneration;
+        // 由 linker 绘制，不再交给 ImageView，否则 super.onDraw 会把同一张图再画一次
+        super.setImageDrawable(null);
         if (mListener != null) {
             mListener.onImageLoadStart(this);
             Log.d(TAG, "setImage: time: " + System.currentTimeMillis());
@@ -121,26 +204,53 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
     }
 
     public void setImage(File file) {
-
+        ++mImageGeneration;
         if (file == null || !file.exists()) {
             setImageWithStream(null);
             return;
         }
 
-        presetImage(file);
+        // 已经通过 XPhotoViewPreloader 准备好的图片直接接管，不再打开文件
+        XPhotoViewPreloader.Prepared prepared = XPhotoViewPreloader.getInstance(getContext()).take(file);
+        if (prepared != null) {
+            mGif = false;
+            releaseGif();
+            super.setImageDrawable(null);
+            if (mListener != null) {
+                mListener.onImageLoadStart(this);
+            }
+            mPhotoViewLinker.setPreparedImage(prepared);
+            return;
+        }
 
-        FileInputStream fileInputStream = null;
+        PushbackInputStream is = null;
         try {
-            // 检查是否是 GIF
-            checkGifPicture(file);
-            fileInputStream = new FileInputStream(file);
-            setImageWithStream(fileInputStream);
-        } catch (FileNotFoundException exp) {
+            is = XPhotoViewFormat.wrap(new FileInputStream(file));
+            XPhotoViewFormat format = XPhotoViewFormat.sniff(is);
+
+            if (format == XPhotoViewFormat.GIF) {
+                setImageAsStream(is, format, file.length());
+            } else {
+                // 不再预置整图，第一帧由缩略图图集或小图提供；清掉上一张图的 drawable
+                super.setImageDrawable(null);
+                mGif = false;
+                releaseGif();
+                if (mListener != null) {
+                    mListener.onImageLoadStart(this);
+                }
+                if (format == XPhotoViewFormat.TILED) {
+                    setFileDecoder(file, format);
+                } else {
+                    setSmallImage(file, format);
+                }
+            }
+        } catch (IOException exp) {
             Log.e(TAG, "setImage failed file " + exp.getMessage());
+            setImageAsStream(null, XPhotoViewFormat.UNKNOWN, 0);
         } finally {
-            if (fileInputStream != null) {
+            if (is != null) {
                 try {
-                    fileInputStream.close();
+                    is.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -149,16 +259,83 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
     }
 
     /**
-     * 预置图片
-     * @param file
+     * 小图快速路径：在解析线程中打开一次文件，先只读取尺寸，不大于一个单元格时接着解析为一张 bitmap
+     * 跳过 RegionDecoder、网格和缩略图，由 linker 以一个 Matrix 直接绘制
+     * 不是小图或整图解析失败时回到 UI 线程走局部解析
      */
-    private void presetImage(File file) {
-        if (file.exists()) {
-            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
-            super.setImageBitmap(bitmap);
+    private void setSmallImage(final File file, final XPhotoViewFormat format) {
+        final Context context = getContext();
+        final int generation = mImageGeneration;
+        mSmallImageQueue.clear();
+        mSmallImageQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decodeSmallImage(context, file, format);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mImageGeneration) {
+                            if (bitmap != null) {
+                                bitmap.recycle();
+                            }
+                            return;
+                        }
+
+                        if (bitmap == null) {
+                            setFileDecoder(file, format);
+                        } else {
+                            Log.d(TAG, "small image " + bitmap.getWidth() + "x" + bitmap.getHeight());
+                            mPhotoViewLinker.setBitmap(bitmap, false);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在解析线程中调用，尺寸和像素从同一个文件描述符读取，decodeFileDescriptor 不改变描述符的读取位置
+     *
+     * @return 不是小图或解析失败时返回 null
+     */
+    private static Bitmap decodeSmallImage(Context context, File file, XPhotoViewFormat format) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fis.getFD(), null, options);
+            if (!XPhotoViewLinker.isSmallImage(context, options.outWidth, options.outHeight)) {
+                return null;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = format == XPhotoViewFormat.JPEG ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            return BitmapFactory.decodeFileDescriptor(fis.getFD(), null, options);
+        } catch (IOException e) {
+            Log.e(TAG, "small image failed " + e.getMessage());
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "small image out of memory " + file);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) { }
+            }
         }
+        return null;
     }
 
+    /**
+     * 同一个文件在多个 View 中显示时共享解析器，预切片容器也直接按文件随机读取
+     */
+    private void setFileDecoder(File file, XPhotoViewFormat format) {
+        mPhotoViewLinker.setImageFile(file, format);
+    }
+
+    /**
+     * 通过流设置图片，流由 XPhotoView 接管，读取完成后关闭
+     */
     public void setImageWithStream(InputStream ios) {
         this.setImageAsStream(ios);
     }
@@ -168,72 +345,92 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
     }
 
     private void setImageAsStream(InputStream ios) {
+        ++mImageGeneration;
+        if (ios == null) {
+            setImageAsStream(null, XPhotoViewFormat.UNKNOWN, 0);
+            return;
+        }
+
+        PushbackInputStream is = XPhotoViewFormat.wrap(ios);
+        XPhotoViewFormat format = XPhotoViewFormat.of(is);
+        setImageAsStream(is, format, 0);
+        if (format == XPhotoViewFormat.GIF) {
+            try {
+                is.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * 按文件头判断出的格式选择解析流程
+     * - GIF 读入内存交给 XPhotoViewGifEngine，流由调用者关闭
+     * - 其他格式交给 linker 局部解析，流由 linker 关闭
+     *
+     * @param sizeHint 流的长度，未知时为 0
+     */
+    private void setImageAsStream(InputStream ios, XPhotoViewFormat format, long sizeHint) {
         if (mListener != null) {
             mListener.onImageLoadStart(this);
-            Log.d(TAG, "setImage: time: " + System.currentTimeMillis());
+            Log.d(TAG, "setImage: time: " + System.currentTimeMillis() + " format: " + format);
         }
 
+        mGif = format == XPhotoViewFormat.GIF;
         if (mGif) {
+            byte[] byteArray = null;
             try {
-                byte[] byteArray = inputStreamToByte(ios);
-                mMovie = Movie.decodeByteArray(byteArray, 0, byteArray.length);
+                byteArray = inputStreamToByte(ios, sizeHint);
             } catch (IOException ignored) { }
-
-            if (mMovie != null) {
-                // it's a gif
-                mScaleEnable = false;
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                    setLayerType(View.LAYER_TYPE_SOFTWARE, null);
-                }
-            }
+            setGifData(byteArray);
             onSetImageFinished(null, true, null);
         } else {
-            mPhotoViewLinker.setInputStream(ios, Bitmap.Config.RGB_565);
+            releaseGif();
+            mPhotoViewLinker.setInputStream(ios, format.getBitmapConfig());
         }
     }
 
-    private byte[] inputStreamToByte(InputStream in) throws IOException {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        byte[] data = new byte[1024];
+    private byte[] inputStreamToByte(InputStream in, long sizeHint) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint : 32 * 1024);
+        byte[] data = new byte[16 * 1024];
         int count;
-        while ((count = in.read(data, 0, 1024)) != -1) {
+        while ((count = in.read(data, 0, data.length)) != -1) {
             outStream.write(data, 0, count);
         }
         return outStream.toByteArray();
     }
 
+    /**
+     * 格式由文件头自动判断，setImage 时会覆盖这里的设置
+     */
     public void setGif(boolean sGif) {
         this.mGif = sGif;
     }
 
     public void setGif(byte[] byteArray) {
+        ++mImageGeneration;
         mGif = true;
-        mMovie = Movie.decodeByteArray(byteArray, 0, byteArray.length);
-        if (mMovie != null) {
+        setGifData(byteArray);
+        onSetImageFinished(null, true, null);
+    }
+
+    /**
+     * 帧在解析线程中渲染到 bitmap，这里只需要 drawBitmap，不再需要关闭硬件加速
+     */
+    private void setGifData(byte[] byteArray) {
+        releaseGif();
+        mGifEngine = XPhotoViewGifEngine.create(this, byteArray);
+        if (mGifEngine != null) {
+            // it's a gif
             mScaleEnable = false;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+            if (mVisible) {
+                mGifEngine.start();
             }
         }
-        onSetImageFinished(null, true, null);
     }
 
-    private void checkGifPicture(File file) {
-        FileInputStream fileInputStream = null;
-        try {
-            fileInputStream = new FileInputStream(file);
-            mMovie = Movie.decodeStream(fileInputStream);
-            mGif = mMovie != null;
-        } catch (Exception e) {
-            Log.e(TAG, "checkGifPicture occur a exception " + e.getMessage());
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    private void releaseGif() {
+        if (mGifEngine != null) {
+            mGifEngine.release();
+            mGifEngine = null;
         }
     }
 
@@ -247,6 +444,10 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
 
     @Override
     public boolean dispatchTouchEvent(MotionEvent event) {
+        if (mGestureRecorder != null) {
+            mGestureRecorder.record(event, getWidth(), getHeight());
+        }
+
         if (mScaleEnable) {
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
@@ -282,57 +483,68 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mGif && mMovie != null) {
-            onGifDraw(canvas);
+        if (mGif && mGifEngine != null) {
+            mGifEngine.draw(canvas, getWidth(), getHeight());
         } else if (!mGif) {
             mPhotoViewLinker.draw(canvas, getWidth(), getHeight());
         }
     }
 
-    private void onGifDraw(Canvas canvas) {
-        canvas.drawColor(Color.TRANSPARENT);
-        int vH = getHeight();
-        int vW = getWidth();
-        int mH = mMovie.height();
-        int mW = mMovie.width();
-        float scaleX = (float) getWidth() * 1f / mMovie.width();
-        float scaleY = (float) getHeight() * 1f / mMovie.height();
-        float scale = Math.min(scaleX, scaleY);
-        canvas.scale(scale, scale);
-
-        //make sure picture shown in center
-        int startY = Math.round((vH * 1f / scale - mH) / 2);
-        int startX = Math.round((vW * 1f / scale - mW) / 2);
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
 
-        long now = android.os.SystemClock.uptimeMillis();
+        mPhotoViewLinker.onViewSizeChanged(w, h);
+    }
 
-        if (mMovieStart == 0) {
-            mMovieStart = (int) now;
-        }
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibility();
+    }
 
-        int duration;
-        if (mMovie != null) {
-            duration = mMovie.duration() == 0 ? 500 : mMovie.duration();
-            int relTime = (int) ((now - mMovieStart) % duration);
-            mMovie.setTime(relTime);
-            mMovie.draw(canvas, startX, startY);
-            this.invalidate();
-        }
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
     }
 
     @Override
-    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        super.onSizeChanged(w, h, oldw, oldh);
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        XPhotoViewMemoryTrimmer.getInstance(getContext()).register(mPhotoViewLinker);
+        updateVisibility();
+    }
 
-        mPhotoViewLinker.onViewSizeChanged(w, h);
+    private void updateVisibility() {
+        // 父类构造过程中也可能回调 onVisibilityChanged
+        if (mPhotoViewLinker == null) {
+            return;
+        }
+
+        // linker 自己去重，这里每次都同步，避免两边初始状态不一致
+        boolean visible = mUserVisible && getWindowVisibility() == VISIBLE && isShown();
+        if (visible != mVisible) {
+            Log.d(TAG, "visibility changed " + visible);
+        }
+
+        mVisible = visible;
+        if (mGifEngine != null) {
+            if (visible) {
+                mGifEngine.start();
+            } else {
+                mGifEngine.stop();
+            }
+        }
+        mPhotoViewLinker.setVisible(visible);
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        if (mGif && mMovie != null) {
-            mMovie = null;
-        }
+        XPhotoViewMemoryTrimmer.getInstance(getContext()).unregister(mPhotoViewLinker);
+        mVisible = false;
+        releaseGif();
         mPhotoViewLinker.destroy();
     }
 
@@ -353,6 +565,10 @@ public class XPhotoView extends AppCompatImageView implements IXPhotoView {
 
     @Override
     public void callPostInvalidate() {
+        XPhotoViewFrameTracer tracer = mFrameTracer;
+        if (tracer != null) {
+            tracer.onInvalidate();
+        }
         postInvalidate();
     }
 
@@ -0,0 +1,191 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * 滚动缓存：保存上一次合成好的 View 大小的画面
+ * - 平移时把上一帧整体移位拷贝到另一块缓冲（乒乓缓冲），只重画新露出来的条带，每帧的缩放绘制只有条带内的几个单元格
+ * - 缩放、SampleSize 或图片内容改变时整体重建
+ * - 高清单元格解析完成后只重画该单元格所在的区域
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 注意：
+ * - 缓冲是软件 bitmap，开启后高清单元格不再解析为 HARDWARE（软件画布不能绘制 HARDWARE bitmap）
+ * - 两块缓冲共占 2 * View 宽 * View 高 * 4 字节，记入内存预算；内存紧张时释放，下一帧重新分配
+ * - 所有方法都加锁，绘制线程与解析线程（标记脏区域）互斥
+ */
+final class XPhotoViewBackBuffer {
+
+    private static final String TAG = "XPhotoViewBackBuffer";
+
+    /**
+     * 在缓冲上绘制指定视口
+     */
+    interface Renderer {
+
+        /**
+         * @param clip 需要重画的区域，View 坐标系；画布已经裁剪到这个区域，只需要画与之相交的内容
+         */
+        void render(Canvas canvas, XPhotoViewViewport viewport, Rect clip);
+    }
+
+    private final XPhotoViewMemoryGovernor.Owner mMemoryOwner;
+
+    /**
+     * 前台缓冲为上一帧的合成结果，后台缓冲用于合成下一帧
+     */
+    private Bitmap mFront;
+    private Bitmap mBack;
+    private Canvas mFrontCanvas;
+    private Canvas mBackCanvas;
+
+    /**
+     * 前台缓冲对应的视口，为 null 表示需要整体重建
+     */
+    private XPhotoViewViewport mViewport;
+
+    /**
+     * 需要重画的区域，Show Bitmap 坐标系，与位移无关
+     */
+    private final Rect mDirty = new Rect();
+
+    XPhotoViewBackBuffer(XPhotoViewMemoryGovernor.Owner owner) {
+        mMemoryOwner = owner;
+    }
+
+    /**
+     * 图片内容改变，下一帧整体重建
+     */
+    synchronized void invalidate() {
+        mViewport = null;
+        mDirty.setEmpty();
+    }
+
+    /**
+     * 某一块内容改变（例如高清单元格解析完成）
+     *
+     * @param showRect Show Bitmap 坐标系
+     */
+    synchronized void invalidate(Rect showRect) {
+        if (mViewport != null && showRect != null) {
+            mDirty.union(showRect);
+        }
+    }
+
+    /**
+     * 通过缓冲绘制一帧
+     *
+     * @return 缓冲分配失败时返回 false，由调用者直接绘制
+     */
+    synchronized boolean draw(Canvas canvas, XPhotoViewViewport viewport, Renderer renderer) {
+        int width = viewport.viewWidth;
+        int height = viewport.viewHeight;
+        if (!ensureBuffers(width, height)) {
+            return false;
+        }
+
+        XPhotoViewViewport last = mViewport;
+        Rect dirty = mDirty.isEmpty() ? null : viewport.toViewCoordinate(mDirty);
+        mDirty.setEmpty();
+
+        int dx = last == null ? 0 : viewport.viewLeft - last.viewLeft;
+        int dy = last == null ? 0 : viewport.viewTop - last.viewTop;
+        boolean rebuild = last == null || !viewport.isTranslationOf(last) || Math.abs(dx) >= width || Math.abs(dy) >= height;
+
+        if (rebuild) {
+            mBack.eraseColor(Color.TRANSPARENT);
+            renderer.render(mBackCanvas, viewport, new Rect(0, 0, width, height));
+            swap();
+        } else if (dx != 0 || dy != 0) {
+            // 上一帧整体移位，露出的条带及脏区域重画
+            mBack.eraseColor(Color.TRANSPARENT);
+            mBackCanvas.drawBitmap(mFront, -dx, -dy, null);
+            if (dx > 0) {
+                renderClipped(mBackCanvas, viewport, new Rect(width - dx, 0, width, height), renderer);
+            } else if (dx < 0) {
+                renderClipped(mBackCanvas, viewport, new Rect(0, 0, -dx, height), renderer);
+            }
+            if (dy > 0) {
+                renderClipped(mBackCanvas, viewport, new Rect(0, height - dy, width, height), renderer);
+            } else if (dy < 0) {
+                renderClipped(mBackCanvas, viewport, new Rect(0, 0, width, -dy), renderer);
+            }
+            if (dirty != null) {
+                renderClipped(mBackCanvas, viewport, dirty, renderer);
+            }
+            swap();
+        } else if (dirty != null) {
+            // 没有移动，直接在前台缓冲上重画脏区域
+            renderClipped(mFrontCanvas, viewport, dirty, renderer);
+        }
+
+        mViewport = viewport;
+        canvas.drawBitmap(mFront, 0, 0, null);
+        return true;
+    }
+
+    /**
+     * 释放两块缓冲，下一帧重新分配并整体重建
+     */
+    synchronized void release() {
+        setBuffers(null, null);
+        mViewport = null;
+        mDirty.setEmpty();
+    }
+
+    private void renderClipped(Canvas canvas, XPhotoViewViewport viewport, Rect clip, Renderer renderer) {
+        if (!clip.intersect(0, 0, viewport.viewWidth, viewport.viewHeight)) {
+            return;
+        }
+
+        int count = canvas.save();
+        canvas.clipRect(clip);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        renderer.render(canvas, viewport, clip);
+        canvas.restoreToCount(count);
+    }
+
+    private void swap() {
+        Bitmap bitmap = mFront;
+        mFront = mBack;
+        mBack = bitmap;
+
+        Canvas canvas = mFrontCanvas;
+        mFrontCanvas = mBackCanvas;
+        mBackCanvas = canvas;
+    }
+
+    private boolean ensureBuffers(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (mFront != null && mFront.getWidth() == width && mFront.getHeight() == height) {
+            return true;
+        }
+
+        setBuffers(null, null);
+        mViewport = null;
+        try {
+            setBuffers(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888),
+                    Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+        } catch (OutOfMemoryError e) {
+            Log.d(TAG, "allocate back buffer failed " + width + "x" + height);
+            setBuffers(null, null);
+            return false;
+        }
+        return true;
+    }
+
+    private void setBuffers(Bitmap front, Bitmap back) {
+        mMemoryOwner.onBitmapReplaced(mFront, front);
+        mMemoryOwner.onBitmapReplaced(mBack, back);
+        mFront = front;
+        mBack = back;
+        mFrontCanvas = front == null ? null : new Canvas(front);
+        mBackCanvas = back == null ? null : new Canvas(back);
+    }
+}
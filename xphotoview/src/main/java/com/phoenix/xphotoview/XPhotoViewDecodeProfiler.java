@@ -0,0 +1,158 @@
+package com.phoenix.xphotoview;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * 按实测的解析速度选择网格参数
+ * - 每次 SampleSize 为 1 的高清单元格解析记录输出像素数及耗时，以指数滑动平均得到本机的解析速度（像素 / 毫秒）
+ * - 速度保存在 SharedPreferences 中，下次启动直接使用，不需要重新测量
+ * - 还没有测量结果时所有参数与固定公式一致
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 根据速度选择：
+ * - 单元格边长：SampleSize 为 1 时一个单元格的解析时间不超过 TARGET_TILE_MS，慢的设备单元格更小，首块高清更早出现
+ * - 预取圈数：解析一屏足够快时，把可见区域外一到两圈单元格也提前解析，漫游时不会先看到缩略图
+ * - 中间层：解析一屏超过 TARGET_VIEWPORT_MS 时，先以两倍 SampleSize 解析一张粗略的高清图替换缩略图
+ */
+public final class XPhotoViewDecodeProfiler {
+
+    private static final String TAG = "XPhotoViewDecodeProfiler";
+
+    private static final String PREFS_NAME = "xphotoview_decode_profile";
+    /**
+     * 早期版本把缩略图等大 SampleSize 的解析也记入了速度，换一个 key 丢弃保存的旧值
+     */
+    private static final String KEY_THROUGHPUT = "throughput_sample1";
+
+    /**
+     * 单元格的最小边长
+     */
+    private static final int MIN_CELL_SIZE = 256;
+
+    /**
+     * 单个单元格的目标解析时间
+     */
+    private static final int TARGET_TILE_MS = 60;
+
+    /**
+     * 一屏高清的目标解析时间
+     */
+    private static final int TARGET_VIEWPORT_MS = 250;
+
+    private static final int MAX_PREFETCH_DEPTH = 2;
+
+    /**
+     * 滑动平均的权重，以及过小的样本（计时误差大）的阈值
+     */
+    private static final float SMOOTHING = 0.1f;
+    private static final long MIN_SAMPLE_PIXELS = 128 * 128;
+    private static final int SAVE_INTERVAL = 16;
+
+    private static volatile XPhotoViewDecodeProfiler sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * 像素 / 毫秒，0 表示还没有测量结果，由 this 保护
+     */
+    private float mThroughput;
+    private int mUnsavedSamples = 0;
+
+    public static XPhotoViewDecodeProfiler getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (XPhotoViewDecodeProfiler.class) {
+                if (sInstance == null) {
+                    sInstance = new XPhotoViewDecodeProfiler(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private XPhotoViewDecodeProfiler(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mThroughput = mPrefs.getFloat(KEY_THROUGHPUT, 0);
+        Log.d(TAG, "saved throughput " + mThroughput + " px/ms");
+    }
+
+    /**
+     * @return 本机的解析速度，像素 / 毫秒，还没有测量结果时为 0
+     */
+    public synchronized float getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * 清除测量结果，例如系统升级后重新测量
+     */
+    public synchronized void reset() {
+        mThroughput = 0;
+        mUnsavedSamples = 0;
+        mPrefs.edit().putFloat(KEY_THROUGHPUT, 0).apply();
+    }
+
+    /**
+     * 记录一次解析
+     *
+     * @param pixels 解析出的 bitmap 像素数，只接受 SampleSize 为 1 的解析
+     * @param nanos  耗时
+     */
+    void record(long pixels, long nanos) {
+        if (pixels < MIN_SAMPLE_PIXELS || nanos <= 0) {
+            return;
+        }
+
+        float sample = pixels * 1000000f / nanos;
+        boolean save;
+        float throughput;
+        synchronized (this) {
+            mThroughput = mThroughput <= 0 ? sample : mThroughput + (sample - mThroughput) * SMOOTHING;
+            save = ++mUnsavedSamples >= SAVE_INTERVAL;
+            if (save) {
+                mUnsavedSamples = 0;
+            }
+            throughput = mThroughput;
+        }
+
+        if (save) {
+            mPrefs.edit().putFloat(KEY_THROUGHPUT, throughput).apply();
+        }
+    }
+
+    /**
+     * 单元格边长，原图坐标系
+     * 不超过 View 的短边（固定公式的取值），慢的设备按 TARGET_TILE_MS 缩小，SampleSize 为 1 时单元格也能及时解析完
+     */
+    synchronized int getCellSize(int viewWidth, int viewHeight) {
+        int size = Math.max(MIN_CELL_SIZE, Math.min(viewWidth, viewHeight));
+        if (mThroughput > 0) {
+            int fit = (int) Math.sqrt(mThroughput * TARGET_TILE_MS);
+            size = Math.max(MIN_CELL_SIZE, Math.min(size, fit));
+        }
+        return size;
+    }
+
+    /**
+     * 可见区域之外预先解析的圈数
+     * 解析一屏的时间不超过目标的 1/4 时预取两圈，不超过 1/2 时预取一圈
+     */
+    synchronized int getPrefetchDepth(int viewWidth, int viewHeight) {
+        if (mThroughput <= 0) {
+            return 0;
+        }
+
+        float viewportMs = (float) viewWidth * viewHeight / mThroughput;
+        if (viewportMs * 4 <= TARGET_VIEWPORT_MS) {
+            return MAX_PREFETCH_DEPTH;
+        }
+        return viewportMs * 2 <= TARGET_VIEWPORT_MS ? 1 : 0;
+    }
+
+    /**
+     * 解析一屏高清超过目标时间时，先解析一层两倍 SampleSize 的中间层
+     */
+    synchronized boolean shouldDecodeIntermediate(int viewWidth, int viewHeight) {
+        return mThroughput > 0 && (float) viewWidth * viewHeight / mThroughput > TARGET_VIEWPORT_MS;
+    }
+}
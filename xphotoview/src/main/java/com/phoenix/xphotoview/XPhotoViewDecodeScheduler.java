@@ -0,0 +1,276 @@
+package com.phoenix.xphotoview;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程内所有 XPhotoView 共享的解析调度器
+ * - 线程数只与 CPU 核数有关，与 XPhotoView 的个数无关
+ * - 每个 View 拥有自己的任务队列 TaskQueue，调度器在各队列之间轮转取任务，避免某个 View 的大量任务饿死其他 View
+ * - 队列默认串行，同一时刻只有一个任务在执行，与原来每个 View 一个 HandlerThread 的语义一致
+ * - 互不依赖的任务（高清单元格）可以使用并行队列，同一队列的任务可以同时在多个线程上执行
+ * - 线程空闲一段时间后自动退出，View 没有 destroy 也不会泄漏线程
+ */
+final class XPhotoViewDecodeScheduler {
+
+    private static final String TAG = "DecodeScheduler";
+    private static final String THREAD_TAG = "XPhotoViewDecoder-";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 至少一个线程，最多 4 个，并为 UI 线程留出一个核
+     */
+    private static final int POOL_SIZE = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+
+    /**
+     * 线程空闲多久后退出
+     */
+    private static final long KEEP_ALIVE_SECONDS = 3;
+
+    private static volatile XPhotoViewDecodeScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * 有待执行任务的队列，按轮转顺序排列
+     * 由 this 保护
+     */
+    private final ArrayDeque<TaskQueue> mReadyQueues = new ArrayDeque<>();
+
+    /**
+     * 每投递一个任务就向线程池提交一次，执行时按轮转顺序取出下一个任务
+     * 串行队列的任务执行完后才重新排队，若还有任务则再提交一次
+     */
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            TaskQueue queue;
+            Runnable task;
+            synchronized (XPhotoViewDecodeScheduler.this) {
+                queue = mReadyQueues.poll();
+                if (queue == null) {
+                    return;
+                }
+                task = takeTask(queue);
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "decode task failed " + e.getMessage(), e);
+            } finally {
+                if (queue.mSerial && finishTask(queue)) {
+                    mExecutor.execute(mWorker);
+                }
+            }
+        }
+    };
+
+    static XPhotoViewDecodeScheduler getInstance() {
+        if (sInstance == null) {
+            synchronized (XPhotoViewDecodeScheduler.class) {
+                if (sInstance == null) {
+                    sInstance = new XPhotoViewDecodeScheduler();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private XPhotoViewDecodeScheduler() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DecodeThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 为一个 View 创建串行的任务队列
+     */
+    TaskQueue newQueue() {
+        return new TaskQueue(true);
+    }
+
+    /**
+     * 创建并行的任务队列，只用于互不依赖、自身线程安全的任务
+     */
+    TaskQueue newParallelQueue() {
+        return new TaskQueue(false);
+    }
+
+    /**
+     * @return 当前存活的解析线程数
+     */
+    int getThreadCount() {
+        return mExecutor.getPoolSize();
+    }
+
+    /**
+     * @return 队列是否处于可执行状态，暂停的队列不需要唤醒线程
+     */
+    private synchronized boolean enqueue(TaskQueue queue, Runnable task) {
+        queue.mTasks.offer(task);
+        if (queue.mPaused || queue.mRunning) {
+            return false;
+        }
+        if (!queue.mScheduled) {
+            queue.mScheduled = true;
+            mReadyQueues.offer(queue);
+        }
+        return true;
+    }
+
+    /**
+     * 从刚出队的队列中取一个任务，由 this 保护
+     */
+    private Runnable takeTask(TaskQueue queue) {
+        Runnable task = queue.mTasks.poll();
+        if (queue.mSerial) {
+            // 串行队列在任务结束前不再排队
+            queue.mScheduled = false;
+            queue.mRunning = true;
+        } else if (queue.mTasks.isEmpty()) {
+            queue.mScheduled = false;
+        } else {
+            // 还有任务则排到队尾，轮到其他队列
+            mReadyQueues.offer(queue);
+        }
+        return task;
+    }
+
+    /**
+     * 串行队列的任务结束
+     *
+     * @return 队列重新排队，需要再提交一次
+     */
+    private synchronized boolean finishTask(TaskQueue queue) {
+        queue.mRunning = false;
+        if (queue.mPaused || queue.mScheduled || queue.mTasks.isEmpty()) {
+            return false;
+        }
+        queue.mScheduled = true;
+        mReadyQueues.offer(queue);
+        return true;
+    }
+
+    private synchronized void removeFromQueue(TaskQueue queue, Runnable task) {
+        while (queue.mTasks.remove(task)) {
+            // 移除所有相同的任务
+        }
+        if (queue.mTasks.isEmpty() && queue.mScheduled) {
+            queue.mScheduled = false;
+            mReadyQueues.remove(queue);
+        }
+    }
+
+    private synchronized void pauseQueue(TaskQueue queue) {
+        queue.mPaused = true;
+        if (queue.mScheduled) {
+            queue.mScheduled = false;
+            mReadyQueues.remove(queue);
+        }
+    }
+
+    /**
+     * @return 恢复后待执行的任务数
+     */
+    private synchronized int resumeQueue(TaskQueue queue) {
+        queue.mPaused = false;
+        if (queue.mRunning) {
+            // 正在执行的任务结束时重新排队
+            return 0;
+        }
+        if (!queue.mScheduled && !queue.mTasks.isEmpty()) {
+            queue.mScheduled = true;
+            mReadyQueues.offer(queue);
+        }
+        return queue.mTasks.size();
+    }
+
+    private synchronized void clearQueue(TaskQueue queue) {
+        queue.mTasks.clear();
+        if (queue.mScheduled) {
+            queue.mScheduled = false;
+            mReadyQueues.remove(queue);
+        }
+    }
+
+    /**
+     * 单个 View 的任务队列，用法与 Handler 的 post / removeCallbacks 相同
+     */
+    final class TaskQueue {
+
+        private final boolean mSerial;
+
+        /**
+         * 由 XPhotoViewDecodeScheduler.this 保护
+         * mScheduled 表示在 mReadyQueues 中，mRunning 表示串行队列有任务正在执行
+         */
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mScheduled = false;
+        private boolean mPaused = false;
+        private boolean mRunning = false;
+
+        private TaskQueue(boolean serial) {
+            mSerial = serial;
+        }
+
+        void post(Runnable task) {
+            if (enqueue(this, task)) {
+                mExecutor.execute(mWorker);
+            }
+        }
+
+        /**
+         * 暂停队列，已经在执行的任务不受影响，尚未开始的任务保留到 resume
+         */
+        void pause() {
+            pauseQueue(this);
+        }
+
+        void resume() {
+            // 串行队列一次只需要一个线程
+            int pending = resumeQueue(this);
+            if (mSerial) {
+                pending = Math.min(1, pending);
+            }
+            for (int i = 0; i < pending; ++i) {
+                mExecutor.execute(mWorker);
+            }
+        }
+
+        void remove(Runnable task) {
+            removeFromQueue(this, task);
+        }
+
+        /**
+         * 取消所有尚未开始的任务
+         */
+        void clear() {
+            clearQueue(this);
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, THREAD_TAG + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * 进程内共享的局部解析器登记表
+ * - 同一个文件（路径、长度、修改时间、格式及解析器工厂都相同）只打开一个解析器，按引用计数共享，最后一个使用者 close 时才真正关闭
+ * - 完全相同的区域、SampleSize、Config 的解析请求同时进行时只解析一次，结果交给所有等待者
+ * - 例如列表中的缩略图和全屏查看同一个文件，或者左右对比同一张图片
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 共享的 bitmap 只用于绘制，任何一方都不能修改或 recycle
+ * 同一张 bitmap 会分别记入各自 View 的内存预算
+ */
+final class XPhotoViewDecoderRegistry {
+
+    private static final String TAG = "DecoderRegistry";
+
+    private static volatile XPhotoViewDecoderRegistry sInstance;
+
+    /**
+     * 本线程上一次共享解析是否只是等待了其他请求者的结果
+     */
+    private static final ThreadLocal<Boolean> sWaited = new ThreadLocal<>();
+
+    /**
+     * 由 this 保护
+     */
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    static XPhotoViewDecoderRegistry getInstance() {
+        if (sInstance == null) {
+            synchronized (XPhotoViewDecoderRegistry.class) {
+                if (sInstance == null) {
+                    sInstance = new XPhotoViewDecoderRegistry();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private XPhotoViewDecoderRegistry() {
+    }
+
+    /**
+     * 创建一个共享解析器的句柄，open 时才从登记表中获取，close 时释放引用
+     * open 传入的数据源会被忽略，数据始终从文件读取
+     *
+     * @param format  文件格式，TILED 使用预切片容器的解析器，其他格式使用 factory 创建
+     * @param factory 解析器工厂
+     */
+    RegionDecoder obtain(File file, XPhotoViewFormat format, RegionDecoder.Factory factory) {
+        return new SharedRegionDecoder(file, format, factory);
+    }
+
+    /**
+     * @return 共享句柄背后真正的解析器，尚未打开或不是共享句柄时返回自身
+     */
+    static RegionDecoder unwrap(RegionDecoder decoder) {
+        if (decoder instanceof SharedRegionDecoder) {
+            Entry entry = ((SharedRegionDecoder) decoder).mEntry;
+            RegionDecoder source = entry == null ? null : entry.mDecoder;
+            if (source != null) {
+                return source;
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * @return 本线程刚才通过 decoder 进行的解析是否只是等待了其他请求者的结果，耗时不代表解析速度
+     */
+    static boolean isWaitedDecode(RegionDecoder decoder) {
+        return decoder instanceof SharedRegionDecoder && Boolean.TRUE.equals(sWaited.get());
+    }
+
+    private Entry acquire(File file, XPhotoViewFormat format, RegionDecoder.Factory factory) throws IOException {
+        String key = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified()
+                + '|' + format + '|' + System.identityHashCode(factory);
+
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                mEntries.put(key, entry);
+            }
+            entry.mRefCount++;
+            Log.d(TAG, "acquire " + file.getName() + " refs " + entry.mRefCount);
+        }
+
+        // 打开在登记表的锁之外进行，同一个文件的其他使用者在 Entry 上等待
+        try {
+            entry.open(file, format, factory);
+        } catch (IOException e) {
+            release(entry);
+            throw e;
+        }
+        return entry;
+    }
+
+    private void release(Entry entry) {
+        boolean close;
+        synchronized (this) {
+            close = --entry.mRefCount == 0;
+            if (close && mEntries.get(entry.mKey) == entry) {
+                mEntries.remove(entry.mKey);
+            }
+        }
+
+        // 没有使用者了，也就不会有并发的 decodeRegion
+        if (close) {
+            entry.close();
+        }
+    }
+
+    /**
+     * 一个文件对应的真正的解析器，以及正在进行的解析请求
+     */
+    private static final class Entry {
+
+        private final String mKey;
+
+        /**
+         * 由 XPhotoViewDecoderRegistry.this 保护
+         */
+        private int mRefCount = 0;
+
+        /**
+         * 在 open / close 中赋值，由 Entry 自身保护，解析时无锁读取
+         */
+        private volatile RegionDecoder mDecoder;
+
+        /**
+         * 正在进行的解析请求，由 mFlights 自身保护
+         */
+        private final HashMap<RegionKey, Flight> mFlights = new HashMap<>();
+
+        private Entry(String key) {
+            mKey = key;
+        }
+
+        private synchronized void open(File file, XPhotoViewFormat format, RegionDecoder.Factory factory) throws IOException {
+            if (mDecoder != null) {
+                return;
+            }
+
+            RegionDecoder decoder;
+            InputStream is = null;
+            if (format == XPhotoViewFormat.TILED) {
+                decoder = new TiledImageRegionDecoder(file);
+            } else {
+                decoder = factory.create();
+                is = new FileInputStream(file);
+            }
+
+            try {
+                decoder.open(is);
+            } catch (IOException e) {
+                decoder.close();
+                throw e;
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ignored) { }
+                }
+            }
+            mDecoder = decoder;
+        }
+
+        private synchronized void close() {
+            if (mDecoder != null) {
+                mDecoder.close();
+                mDecoder = null;
+            }
+        }
+
+        private Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+            RegionKey key = new RegionKey(rect, sampleSize, config);
+            Flight flight;
+            boolean leader = false;
+            synchronized (mFlights) {
+                flight = mFlights.get(key);
+                if (flight == null) {
+                    flight = new Flight();
+                    mFlights.put(key, flight);
+                    leader = true;
+                }
+            }
+
+            sWaited.set(!leader);
+            if (!leader) {
+                return flight.await();
+            }
+
+            Bitmap bitmap = null;
+            Throwable error = null;
+            try {
+                RegionDecoder decoder = mDecoder;
+                if (decoder != null && !decoder.isClosed()) {
+                    bitmap = decoder.decodeRegion(rect, sampleSize, config);
+                }
+            } catch (RuntimeException | Error e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (mFlights) {
+                    mFlights.remove(key);
+                }
+                flight.complete(bitmap, error);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * 一次解析请求，第一个请求者解析，其余请求者等待结果
+     * 解析抛出的异常（尤其是 OutOfMemoryError）同样交给等待者，各自按自己的降级流程处理
+     */
+    private static final class Flight {
+
+        private Bitmap mResult;
+        private Throwable mError;
+        private boolean mDone = false;
+
+        private synchronized void complete(Bitmap result, Throwable error) {
+            mResult = result;
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+
+        private synchronized Bitmap await() {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (mError instanceof RuntimeException) {
+                throw (RuntimeException) mError;
+            }
+            if (mError instanceof Error) {
+                throw (Error) mError;
+            }
+            return mResult;
+        }
+    }
+
+    private static final class RegionKey {
+
+        private final int mLeft;
+        private final int mTop;
+        private final int mRight;
+        private final int mBottom;
+        private final int mSampleSize;
+        private final Bitmap.Config mConfig;
+
+        private RegionKey(Rect rect, int sampleSize, Bitmap.Config config) {
+            mLeft = rect.left;
+            mTop = rect.top;
+            mRight = rect.right;
+            mBottom = rect.bottom;
+            mSampleSize = sampleSize;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RegionKey)) {
+                return false;
+            }
+            RegionKey other = (RegionKey) o;
+            return mLeft == other.mLeft && mTop == other.mTop && mRight == other.mRight && mBottom == other.mBottom
+                    && mSampleSize == other.mSampleSize && mConfig == other.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mLeft;
+            result = 31 * result + mTop;
+            result = 31 * result + mRight;
+            result = 31 * result + mBottom;
+            result = 31 * result + mSampleSize;
+            result = 31 * result + (mConfig == null ? 0 : mConfig.hashCode());
+            return result;
+        }
+    }
+
+    /**
+     * 交给 linker 的句柄，每个 View 一个，open / close 对应一次引用
+     */
+    private final class SharedRegionDecoder implements RegionDecoder {
+
+        private final File mFile;
+        private final XPhotoViewFormat mFormat;
+        private final RegionDecoder.Factory mFactory;
+
+        private volatile Entry mEntry;
+
+        private SharedRegionDecoder(File file, XPhotoViewFormat format, RegionDecoder.Factory factory) {
+            mFile = file;
+            mFormat = format;
+            mFactory = factory;
+        }
+
+        @Override
+        public void open(InputStream source) throws IOException {
+            if (mEntry == null) {
+                mEntry = acquire(mFile, mFormat, mFactory);
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            RegionDecoder decoder = unwrap(this);
+            return decoder == this ? 0 : decoder.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            RegionDecoder decoder = unwrap(this);
+            return decoder == this ? 0 : decoder.getHeight();
+        }
+
+        @Override
+        public Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+            Entry entry = mEntry;
+            return entry == null ? null : entry.decodeRegion(rect, sampleSize, config);
+        }
+
+        @Override
+        public void close() {
+            Entry entry = mEntry;
+            mEntry = null;
+            if (entry != null) {
+                release(entry);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            RegionDecoder decoder = unwrap(this);
+            return decoder == this || decoder.isClosed();
+        }
+    }
+}
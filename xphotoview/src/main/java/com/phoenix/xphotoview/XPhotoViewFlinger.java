@@ -0,0 +1,204 @@
+package com.phoenix.xphotoview;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.view.ViewConfiguration;
+import android.view.animation.LinearInterpolator;
+
+/**
+ * 滑动惯性引擎
+ * - 样条曲线的进度表在类加载时预计算一次，每帧只做查表和线性插值，不再调用 Math.log / Math.exp
+ * - 每帧的位移以 double 累加，只把整数部分交给 move()，余下的亚像素留到下一帧，避免截断造成的漂移
+ * - 根据 move() 返回的边界标记，某个方向撞到边界后即停止该方向，两个方向都停止则提前结束动画
+ */
+class XPhotoViewFlinger implements ValueAnimator.AnimatorUpdateListener {
+
+    // 减速加速度，根据对数的换底公式推导
+    // 此值「可能」为 0.9 衰减为 0.78 的衰减加速度，经计算其值为：2.3582017，自然底数 e，即自然增长的极限，其为 2.71828
+    private final static float DECELERATION_RATE = (float) (Math.log(0.78) / Math.log(0.9));
+    // 拐点
+    private final static float INFLEXION = 0.45f;
+
+    /**
+     * 进度表的采样数
+     */
+    private final static int NB_SAMPLES = 100;
+
+    /**
+     * 样条曲线进度表
+     * 速度为 v 时的滑动距离为 D(v) = c * v ^ k，k = DECELERATION_RATE / (DECELERATION_RATE - 1)
+     * 动画进行到 t (0 ~ 1) 时剩余速度为 (1 - t) * v，已滑过的比例即为 1 - (1 - t) ^ k
+     */
+    private final static float[] SPLINE_POSITION = new float[NB_SAMPLES + 1];
+
+    static {
+        final double exponent = DECELERATION_RATE / (DECELERATION_RATE - 1);
+        for (int i = 0; i <= NB_SAMPLES; ++i) {
+            SPLINE_POSITION[i] = (float) (1 - Math.pow(1 - i * 1.0 / NB_SAMPLES, exponent));
+        }
+    }
+
+    private final IXPhotoViewLinker mPhotoViewLinker;
+
+    // 物理多项式系数
+    private final float mPhysicalCoeff;
+    // 滑动摩擦
+    private final float mFlingFriction = ViewConfiguration.getScrollFriction();
+
+    private ValueAnimator mValueAnimator = null;
+
+    /**
+     * 本次滑动在 x / y 方向上的总距离（带方向）
+     */
+    private double mDistanceX;
+    private double mDistanceY;
+
+    /**
+     * 已经交给 move() 的距离，与目标距离的差值即为累积的亚像素
+     */
+    private double mConsumedX;
+    private double mConsumedY;
+
+    /**
+     * 该方向是否已经撞到边界
+     */
+    private boolean mStoppedX;
+    private boolean mStoppedY;
+
+    XPhotoViewFlinger(Context context, IXPhotoViewLinker photoViewLinker) {
+        mPhotoViewLinker = photoViewLinker;
+
+        float density = context.getResources().getDisplayMetrics().density;
+        float dpi = density * 160.0f;
+        mPhysicalCoeff = SensorManager.GRAVITY_EARTH * 39.37f * dpi * 3.8f;
+    }
+
+    void stop() {
+        if (mValueAnimator != null) {
+            mValueAnimator.cancel();
+        }
+    }
+
+    boolean isFlinging() {
+        return mValueAnimator != null && mValueAnimator.isRunning();
+    }
+
+    void fling(float velocityX, float velocityY) {
+        stop();
+
+        final float velocity = (float) Math.hypot(velocityX, velocityY);
+        final long duration = getSplineFlingDuration(velocity);
+        if (duration <= 0) {
+            return;
+        }
+
+        mDistanceX = Math.signum(velocityX) * getSplineFlingDistance(velocityX);
+        mDistanceY = Math.signum(velocityY) * getSplineFlingDistance(velocityY);
+        mConsumedX = 0;
+        mConsumedY = 0;
+        mStoppedX = mDistanceX == 0;
+        mStoppedY = mDistanceY == 0;
+
+        if (mValueAnimator == null) {
+            mValueAnimator = ValueAnimator.ofFloat(0f, 1f);
+            mValueAnimator.setInterpolator(new LinearInterpolator());
+            mValueAnimator.addUpdateListener(this);
+            mValueAnimator.addListener(new AnimatorListenerAdapter() {
+                @Override
+                public void onAnimationEnd(Animator animation) {
+                    mStoppedX = true;
+                    mStoppedY = true;
+                }
+            });
+        }
+        mValueAnimator.setDuration(duration);
+        mValueAnimator.start();
+    }
+
+    @Override
+    public void onAnimationUpdate(ValueAnimator animation) {
+        if (mStoppedX && mStoppedY) {
+            return;
+        }
+
+        float position = getSplinePosition(animation.getAnimatedFraction());
+
+        int dx = 0;
+        int dy = 0;
+        if (!mStoppedX) {
+            dx = (int) (mDistanceX * position - mConsumedX);
+            mConsumedX += dx;
+        }
+        if (!mStoppedY) {
+            dy = (int) (mDistanceY * position - mConsumedY);
+            mConsumedY += dy;
+        }
+
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+
+        int state = mPhotoViewLinker.move(dx, dy);
+
+        // dx > 0 时图片向右移动，碰到的是左边界，反之亦然
+        if ((dx > 0 && (state & IXPhotoViewLinker.LEFT) != 0) || (dx < 0 && (state & IXPhotoViewLinker.RIGHT) != 0)) {
+            mStoppedX = true;
+        }
+        if ((dy > 0 && (state & IXPhotoViewLinker.TOP) != 0) || (dy < 0 && (state & IXPhotoViewLinker.BOTTOM) != 0)) {
+            mStoppedY = true;
+        }
+
+        if (mStoppedX && mStoppedY) {
+            animation.cancel();
+        }
+    }
+
+    /**
+     * 查表得到 t 时刻已经滑过的距离比例
+     */
+    static float getSplinePosition(float t) {
+        if (t <= 0) {
+            return 0;
+        }
+        if (t >= 1) {
+            return 1;
+        }
+
+        final int index = (int) (NB_SAMPLES * t);
+        final float tInf = (float) index / NB_SAMPLES;
+        final float dInf = SPLINE_POSITION[index];
+        final float dSup = SPLINE_POSITION[index + 1];
+        return dInf + (t - tInf) * NB_SAMPLES * (dSup - dInf);
+    }
+
+    /**
+     * 获取减速递减率
+     */
+    private double getSplineDeceleration(float velocity) {
+        return Math.log(INFLEXION * Math.abs(velocity) / (mFlingFriction * mPhysicalCoeff));
+    }
+
+    private long getSplineFlingDuration(float velocity) {
+        if (velocity == 0) {
+            return 0;
+        }
+        final double deceleration = getSplineDeceleration(velocity);
+        final double decelMinusOne = DECELERATION_RATE - 1;
+        return (long) (1000.0 * Math.exp(deceleration / decelMinusOne));
+    }
+
+    /**
+     * 速度为 velocity 时的总滑动距离（解析解）
+     */
+    double getSplineFlingDistance(float velocity) {
+        if (velocity == 0) {
+            return 0;
+        }
+        final double deceleration = getSplineDeceleration(velocity);
+        final double decelMinusOne = DECELERATION_RATE - 1;
+        return mFlingFriction * mPhysicalCoeff * Math.exp(DECELERATION_RATE / decelMinusOne * deceleration);
+    }
+}
@@ -0,0 +1,127 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * 根据文件头的 magic 判断图片格式，用来选择解析流程
+ * - 只读取前 HEADER_SIZE 个字节，不解码任何像素
+ * - 读取的字节通过 PushbackInputStream 退回，后续解析从同一个流继续读取，每个字节只从源读取一次
+ */
+enum XPhotoViewFormat {
+
+    UNKNOWN,
+    JPEG,
+    PNG,
+    GIF,
+    WEBP,
+    TILED;
+
+    private static final String TAG = "XPhotoViewFormat";
+
+    /**
+     * WebP 需要 "RIFF" + size(4) + "WEBP" 共 12 个字节，其余格式都更短
+     */
+    static final int HEADER_SIZE = 12;
+
+    /**
+     * 包装为可退回文件头的流，之后调用 sniff 并把返回的流交给后续的解析流程
+     */
+    static PushbackInputStream wrap(InputStream is) {
+        if (is instanceof PushbackInputStream) {
+            return (PushbackInputStream) is;
+        }
+        return new PushbackInputStream(is, HEADER_SIZE);
+    }
+
+    /**
+     * 读取文件头判断格式，读取的字节会退回流中
+     */
+    static XPhotoViewFormat sniff(PushbackInputStream is) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+        while (length < HEADER_SIZE) {
+            int count = is.read(header, length, HEADER_SIZE - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+
+        if (length > 0) {
+            is.unread(header, 0, length);
+        }
+        return sniff(header, length);
+    }
+
+    /**
+     * 打开文件读取文件头判断格式，读取后关闭
+     *
+     * @return 无法读取时返回 UNKNOWN
+     */
+    static XPhotoViewFormat of(File file) {
+        PushbackInputStream is = null;
+        try {
+            is = wrap(new FileInputStream(file));
+            return sniff(is);
+        } catch (IOException e) {
+            Log.e(TAG, "sniff format failed " + e.getMessage());
+            return UNKNOWN;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * 同 sniff，读取的字节会退回流中
+     *
+     * @return 无法读取时返回 UNKNOWN
+     */
+    static XPhotoViewFormat of(PushbackInputStream is) {
+        try {
+            return sniff(is);
+        } catch (IOException e) {
+            Log.e(TAG, "sniff format failed " + e.getMessage());
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return JPEG 没有透明通道直接使用 RGB_565；其他格式返回 null，由 linker 探测透明通道
+     */
+    Bitmap.Config getBitmapConfig() {
+        return this == JPEG ? Bitmap.Config.RGB_565 : null;
+    }
+
+    static XPhotoViewFormat sniff(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xff) == 0xFF && (header[1] & 0xff) == 0xD8 && (header[2] & 0xff) == 0xFF) {
+            return JPEG;
+        }
+        if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G'
+                && header[4] == '\r' && header[5] == '\n' && header[6] == 0x1A && header[7] == '\n') {
+            return PNG;
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8'
+                && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return GIF;
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return WEBP;
+        }
+        if (TiledImageRegionDecoder.isTiledImage(header, length)) {
+            return TILED;
+        }
+        return UNKNOWN;
+    }
+}
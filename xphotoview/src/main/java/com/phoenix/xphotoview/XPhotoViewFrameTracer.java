@@ -0,0 +1,373 @@
+package com.phoenix.xphotoview;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * 帧追踪：定位 "缩放卡顿" 具体是哪些帧、慢在哪里
+ * - 以 Choreographer 的 vsync 时间划分帧，统计每帧的绘制耗时、绘制的高清单元格数、缺失的单元格数及重绘请求数
+ * - 两次 vsync 的间隔超过一个刷新周期，或者一帧的绘制超过一个刷新周期，记为掉帧
+ * - 掉帧的原因归到耗时最多的一项：手势计算（move / scale）、单元格查找（可见范围、索引、加载排队）、bitmap 绘制
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 使用：
+ * - 默认关闭，XPhotoView.setFrameTracer 开启，传 null 关闭；开启时每帧多几次 System.nanoTime
+ * - 每帧结束时在 UI 线程回调 Callback，也可以随时 dump 汇总及最近的掉帧
+ * - 没有重绘时不注册 vsync 回调，静止状态没有开销；静止后的第一帧没有上一个 vsync 可比，不判断掉帧
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 注意：
+ * - 需要 API 16，必须在 UI 线程创建
+ * - 刷新周期取观察到的最短 vsync 间隔，高刷新率的设备也能适应
+ * - XPhotoTextureView 在渲染线程绘制，vsync 仍以 UI 线程计，掉帧主要看单帧绘制耗时
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public final class XPhotoViewFrameTracer implements Choreographer.FrameCallback {
+
+    /**
+     * 保留最近的帧数，用于 dump
+     */
+    private static final int HISTORY_SIZE = 120;
+
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    /**
+     * 掉帧原因
+     */
+    public enum Cause {
+        /**
+         * 没有掉帧
+         */
+        NONE,
+        GESTURE,
+        TILE_LOOKUP,
+        BITMAP_DRAW,
+        /**
+         * 本控件的耗时不到半个刷新周期，时间花在了其他地方（布局、其他 View、GC 等）
+         */
+        OTHER
+    }
+
+    public interface Callback {
+        /**
+         * 每帧结束时在 UI 线程回调
+         */
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * 一帧的统计，时间单位为纳秒
+     */
+    public static final class Frame {
+        public final long vsyncNanos;
+        public final long drawNanos;
+        public final long gestureNanos;
+        public final long lookupNanos;
+        public final int tilesDrawn;
+        public final int tilesMissing;
+        public final int invalidates;
+        public final int missedVsyncs;
+        public final Cause cause;
+
+        private Frame(long vsyncNanos, long drawNanos, long gestureNanos, long lookupNanos,
+                      int tilesDrawn, int tilesMissing, int invalidates, int missedVsyncs, Cause cause) {
+            this.vsyncNanos = vsyncNanos;
+            this.drawNanos = drawNanos;
+            this.gestureNanos = gestureNanos;
+            this.lookupNanos = lookupNanos;
+            this.tilesDrawn = tilesDrawn;
+            this.tilesMissing = tilesMissing;
+            this.invalidates = invalidates;
+            this.missedVsyncs = missedVsyncs;
+            this.cause = cause;
+        }
+
+        /**
+         * @return bitmap 绘制耗时，即绘制耗时中除去单元格查找的部分
+         */
+        public long getBitmapDrawNanos() {
+            return Math.max(0, drawNanos - lookupNanos);
+        }
+
+        public boolean isJank() {
+            return missedVsyncs > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "draw %.2fms (lookup %.2fms) gesture %.2fms tiles %d/%d invalidates %d missed %d %s",
+                    drawNanos / 1e6, lookupNanos / 1e6, gestureNanos / 1e6,
+                    tilesDrawn, tilesDrawn + tilesMissing, invalidates, missedVsyncs, cause);
+        }
+    }
+
+    private final Choreographer mChoreographer;
+    private final Handler mHandler;
+    private volatile Callback mCallback;
+
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mChoreographer.postFrameCallback(XPhotoViewFrameTracer.this);
+        }
+    };
+
+    /**
+     * 当前帧的累计值，由 this 保护，绘制可能在渲染线程、重绘请求可能在解析线程
+     */
+    private long mDrawNanos;
+    private long mGestureNanos;
+    private long mLookupNanos;
+    private int mTilesDrawn;
+    private int mTilesMissing;
+    private int mInvalidates;
+    private boolean mActive = false;
+
+    /**
+     * 已经注册了 vsync 回调；上一个 vsync 的时间，0 表示静止后还没有 vsync
+     */
+    private boolean mScheduled = false;
+    private long mLastVsyncNanos = 0;
+    private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+    /**
+     * 汇总
+     */
+    private long mFrameCount;
+    private long mJankCount;
+    private long mMissedVsyncCount;
+    private long mTotalDrawNanos;
+    private long mMaxDrawNanos;
+    private final long[] mJankCountByCause = new long[Cause.values().length];
+
+    private final Frame[] mHistory = new Frame[HISTORY_SIZE];
+    private int mHistoryNext = 0;
+
+    /**
+     * 必须在 UI 线程调用
+     *
+     * @param callback 每帧回调，可以为 null，只通过 dump 查看
+     */
+    public XPhotoViewFrameTracer(Callback callback) {
+        mChoreographer = Choreographer.getInstance();
+        mHandler = new Handler(Looper.getMainLooper());
+        mCallback = callback;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized long getJankCount() {
+        return mJankCount;
+    }
+
+    /**
+     * @return 指定原因的掉帧次数
+     */
+    public synchronized long getJankCount(Cause cause) {
+        return mJankCountByCause[cause.ordinal()];
+    }
+
+    public synchronized long getMissedVsyncCount() {
+        return mMissedVsyncCount;
+    }
+
+    public synchronized long getMaxDrawNanos() {
+        return mMaxDrawNanos;
+    }
+
+    public synchronized long getAverageDrawNanos() {
+        return mFrameCount == 0 ? 0 : mTotalDrawNanos / mFrameCount;
+    }
+
+    /**
+     * 清除汇总和历史，正在统计的帧不受影响
+     */
+    public synchronized void reset() {
+        mFrameCount = 0;
+        mJankCount = 0;
+        mMissedVsyncCount = 0;
+        mTotalDrawNanos = 0;
+        mMaxDrawNanos = 0;
+        for (int i = 0; i < mJankCountByCause.length; ++i) {
+            mJankCountByCause[i] = 0;
+        }
+        for (int i = 0; i < mHistory.length; ++i) {
+            mHistory[i] = null;
+        }
+        mHistoryNext = 0;
+    }
+
+    /**
+     * @return 汇总及最近 HISTORY_SIZE 帧中的掉帧，可以直接打印到日志或 bugreport
+     */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "frames %d, jank %d, missed vsync %d, interval %.2fms, draw avg %.2fms max %.2fms\n",
+                mFrameCount, mJankCount, mMissedVsyncCount, mFrameIntervalNanos / 1e6,
+                (mFrameCount == 0 ? 0 : mTotalDrawNanos / mFrameCount) / 1e6, mMaxDrawNanos / 1e6));
+        for (Cause cause : Cause.values()) {
+            if (cause != Cause.NONE) {
+                sb.append("  ").append(cause).append(": ").append(mJankCountByCause[cause.ordinal()]).append('\n');
+            }
+        }
+
+        sb.append("recent jank:\n");
+        for (int i = 0; i < HISTORY_SIZE; ++i) {
+            Frame frame = mHistory[(mHistoryNext + i) % HISTORY_SIZE];
+            if (frame != null && frame.isJank()) {
+                sb.append("  ").append(frame).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一次重绘请求，任意线程
+     */
+    void onInvalidate() {
+        synchronized (this) {
+            ++mInvalidates;
+            mActive = true;
+        }
+        schedule();
+    }
+
+    /**
+     * 一次 move / scale 的耗时，UI 线程
+     */
+    void addGestureTime(long nanos) {
+        synchronized (this) {
+            mGestureNanos += nanos;
+            mActive = true;
+        }
+        schedule();
+    }
+
+    /**
+     * 一次 linker.draw 的耗时
+     */
+    synchronized void addDrawTime(long nanos) {
+        mDrawNanos += nanos;
+        mActive = true;
+    }
+
+    /**
+     * 绘制过程中计算可见范围、查找单元格、排队加载的耗时
+     */
+    synchronized void addLookupTime(long nanos) {
+        mLookupNanos += nanos;
+    }
+
+    /**
+     * @param drawn   以高清 bitmap 绘制的单元格数
+     * @param missing 可见但高清尚未就绪的单元格数
+     */
+    synchronized void addTiles(int drawn, int missing) {
+        mTilesDrawn += drawn;
+        mTilesMissing += missing;
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mChoreographer.postFrameCallback(this);
+        } else {
+            mHandler.post(mScheduleRunnable);
+        }
+    }
+
+    /**
+     * vsync 回调，结束上一帧的统计，有活动时继续注册下一个 vsync
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Frame frame;
+        synchronized (this) {
+            long last = mLastVsyncNanos;
+            long interval = last == 0 ? 0 : frameTimeNanos - last;
+            if (interval > 0 && interval < mFrameIntervalNanos) {
+                mFrameIntervalNanos = interval;
+            }
+
+            frame = mActive ? finishFrame(last == 0 ? frameTimeNanos : last, interval) : null;
+
+            // 这段时间没有任何活动，停止注册，下一次活动重新开始
+            if (mActive) {
+                mActive = false;
+                mLastVsyncNanos = frameTimeNanos;
+                mChoreographer.postFrameCallback(this);
+            } else {
+                mLastVsyncNanos = 0;
+                mScheduled = false;
+            }
+        }
+
+        Callback callback = mCallback;
+        if (frame != null && callback != null) {
+            callback.onFrame(frame);
+        }
+    }
+
+    /**
+     * @param interval 与上一个 vsync 的间隔，0 表示静止后的第一帧，不判断间隔
+     */
+    private Frame finishFrame(long vsyncNanos, long interval) {
+        long period = mFrameIntervalNanos;
+        int missed = 0;
+        if (interval > 0) {
+            missed = (int) ((interval + period / 2) / period) - 1;
+        }
+        missed = Math.max(missed, (int) (mDrawNanos / period));
+
+        Cause cause = Cause.NONE;
+        if (missed > 0) {
+            long bitmap = Math.max(0, mDrawNanos - mLookupNanos);
+            if (mGestureNanos + mDrawNanos < period / 2) {
+                cause = Cause.OTHER;
+            } else if (mGestureNanos >= mLookupNanos && mGestureNanos >= bitmap) {
+                cause = Cause.GESTURE;
+            } else if (mLookupNanos >= bitmap) {
+                cause = Cause.TILE_LOOKUP;
+            } else {
+                cause = Cause.BITMAP_DRAW;
+            }
+        }
+
+        Frame frame = new Frame(vsyncNanos, mDrawNanos, mGestureNanos, mLookupNanos,
+                mTilesDrawn, mTilesMissing, mInvalidates, missed, cause);
+
+        ++mFrameCount;
+        mTotalDrawNanos += mDrawNanos;
+        mMaxDrawNanos = Math.max(mMaxDrawNanos, mDrawNanos);
+        if (missed > 0) {
+            ++mJankCount;
+            mMissedVsyncCount += missed;
+            ++mJankCountByCause[cause.ordinal()];
+        }
+        mHistory[mHistoryNext] = frame;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+
+        mDrawNanos = 0;
+        mGestureNanos = 0;
+        mLookupNanos = 0;
+        mTilesDrawn = 0;
+        mTilesMissing = 0;
+        mInvalidates = 0;
+        return frame;
+    }
+}
@@ -0,0 +1,211 @@
+package com.phoenix.xphotoview;
+
+import android.view.MotionEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * 手势录制：记录 XPhotoView.dispatchTouchEvent 收到的触摸事件，保存为紧凑的二进制文件，由 XPhotoViewGestureReplayer 回放
+ * - 合并在 MOVE 中的历史点展开为单独的 MOVE，回放时检测器看到的点与真实手势一致
+ * - 只保存动作、时间间隔、触点 id 及坐标，单指 MOVE 约 13 字节
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 文件格式（大端）：
+ * - 头部：MAGIC(int) VERSION(byte) View 宽(ushort) View 高(ushort) 事件数(int)
+ * - 每个事件：与上一个事件的间隔毫秒(varint) 动作(ushort，低 8 位为 ActionMasked，高 8 位为 ActionIndex) 触点数(byte)
+ *   每个触点：id(byte) x(float) y(float)
+ */
+public final class XPhotoViewGestureRecorder {
+
+    private static final int MAGIC = 0x58504752;
+    private static final int VERSION = 1;
+
+    /**
+     * 一个触摸事件
+     */
+    static final class Sample {
+        final long time;
+        final int action;
+        final int[] ids;
+        final float[] xs;
+        final float[] ys;
+
+        Sample(long time, int action, int pointerCount) {
+            this.time = time;
+            this.action = action;
+            ids = new int[pointerCount];
+            xs = new float[pointerCount];
+            ys = new float[pointerCount];
+        }
+
+        int getActionMasked() {
+            return action & MotionEvent.ACTION_MASK;
+        }
+
+        int getActionIndex() {
+            return (action >> 8) & 0xff;
+        }
+    }
+
+    /**
+     * 由 this 保护
+     */
+    private final ArrayList<Sample> mSamples = new ArrayList<>();
+    private int mViewWidth = 0;
+    private int mViewHeight = 0;
+
+    /**
+     * 在 UI 线程记录一个事件
+     */
+    synchronized void record(MotionEvent event, int viewWidth, int viewHeight) {
+        if (mSamples.isEmpty()) {
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+        }
+
+        int pointerCount = event.getPointerCount();
+        int masked = event.getActionMasked();
+        if (masked == MotionEvent.ACTION_MOVE) {
+            for (int h = 0; h < event.getHistorySize(); ++h) {
+                Sample sample = new Sample(event.getHistoricalEventTime(h), MotionEvent.ACTION_MOVE, pointerCount);
+                for (int i = 0; i < pointerCount; ++i) {
+                    sample.ids[i] = event.getPointerId(i);
+                    sample.xs[i] = event.getHistoricalX(i, h);
+                    sample.ys[i] = event.getHistoricalY(i, h);
+                }
+                mSamples.add(sample);
+            }
+        }
+
+        Sample sample = new Sample(event.getEventTime(), masked | (event.getActionIndex() << 8), pointerCount);
+        for (int i = 0; i < pointerCount; ++i) {
+            sample.ids[i] = event.getPointerId(i);
+            sample.xs[i] = event.getX(i);
+            sample.ys[i] = event.getY(i);
+        }
+        mSamples.add(sample);
+    }
+
+    public synchronized int getEventCount() {
+        return mSamples.size();
+    }
+
+    /**
+     * @return 从第一个事件到最后一个事件的毫秒数
+     */
+    public synchronized long getDuration() {
+        return mSamples.isEmpty() ? 0 : mSamples.get(mSamples.size() - 1).time - mSamples.get(0).time;
+    }
+
+    public synchronized void clear() {
+        mSamples.clear();
+        mViewWidth = 0;
+        mViewHeight = 0;
+    }
+
+    synchronized int getViewWidth() {
+        return mViewWidth;
+    }
+
+    synchronized int getViewHeight() {
+        return mViewHeight;
+    }
+
+    synchronized ArrayList<Sample> getSamples() {
+        return new ArrayList<>(mSamples);
+    }
+
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            os.writeInt(MAGIC);
+            os.writeByte(VERSION);
+            os.writeShort(mViewWidth);
+            os.writeShort(mViewHeight);
+            os.writeInt(mSamples.size());
+
+            long last = mSamples.isEmpty() ? 0 : mSamples.get(0).time;
+            for (Sample sample : mSamples) {
+                writeVarInt(os, (int) Math.max(0, sample.time - last));
+                last = sample.time;
+
+                os.writeShort(sample.action);
+                os.writeByte(sample.ids.length);
+                for (int i = 0; i < sample.ids.length; ++i) {
+                    os.writeByte(sample.ids[i]);
+                    os.writeFloat(sample.xs[i]);
+                    os.writeFloat(sample.ys[i]);
+                }
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * 读取 save 保存的文件
+     *
+     * @throws IOException 文件损坏或版本不符
+     */
+    public static XPhotoViewGestureRecorder load(File file) throws IOException {
+        XPhotoViewGestureRecorder recorder = new XPhotoViewGestureRecorder();
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (is.readInt() != MAGIC || is.readUnsignedByte() != VERSION) {
+                throw new IOException("not a gesture recording: " + file);
+            }
+
+            recorder.mViewWidth = is.readUnsignedShort();
+            recorder.mViewHeight = is.readUnsignedShort();
+            int count = is.readInt();
+            if (count < 0) {
+                throw new IOException("invalid event count " + count);
+            }
+
+            long time = 0;
+            for (int n = 0; n < count; ++n) {
+                time += readVarInt(is);
+                int action = is.readUnsignedShort();
+                int pointerCount = is.readUnsignedByte();
+
+                Sample sample = new Sample(time, action, pointerCount);
+                for (int i = 0; i < pointerCount; ++i) {
+                    sample.ids[i] = is.readUnsignedByte();
+                    sample.xs[i] = is.readFloat();
+                    sample.ys[i] = is.readFloat();
+                }
+                recorder.mSamples.add(sample);
+            }
+        } finally {
+            is.close();
+        }
+        return recorder;
+    }
+
+    private static void writeVarInt(DataOutputStream os, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            os.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream is) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = is.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
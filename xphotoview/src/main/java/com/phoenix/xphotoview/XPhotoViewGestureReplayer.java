@@ -0,0 +1,279 @@
+package com.phoenix.xphotoview;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * 手势回放：按录制时的时间间隔把 XPhotoViewGestureRecorder 的事件重新派发给 XPhotoView，得到可重复的性能负载
+ * - 事件经过 dispatchTouchEvent，与真实手势走同样的检测器、move / scale / doubleTapScale / 惯性滑动
+ * - View 大小与录制时不同时坐标按比例缩放
+ * - 回放期间挂上 XPhotoViewFrameTracer，结束后统计解析次数、浪费的解析、bitmap 分配及帧耗时
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 注意：
+ * - 需要 API 16，在 UI 线程调用
+ * - 解析次数等来自进程共享的 XPhotoViewMemoryGovernor，回放时应只有这一个 View 在解析
+ * - 事件序列和时间是确定的，解析在后台线程完成，快慢不同的设备上数字会有差异，适合在同一台设备上比较改动前后
+ * - 时间全部来自 SystemClock 和主线程 Handler，Robolectric 下由调度器的模拟时间驱动，推进时间即可逐个派发事件，结果完全确定
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public final class XPhotoViewGestureReplayer {
+
+    private static final String TAG = "XPhotoViewGestureReplayer";
+
+    /**
+     * 最后一个事件之后继续统计的时间，等待惯性滑动、缩放动画及解析结束
+     */
+    private static final long DEFAULT_SETTLE_MS = 1500;
+
+    /**
+     * 第一个事件的延迟
+     */
+    private static final long START_DELAY_MS = 100;
+
+    public interface Callback {
+        /**
+         * 回放结束时在 UI 线程回调，cancel 时不回调
+         */
+        void onReplayFinished(Report report);
+    }
+
+    /**
+     * 一次回放的统计
+     */
+    public static final class Report {
+        public final int events;
+        public final long durationMs;
+        public final long tileDecodes;
+        public final long wastedDecodes;
+        public final long bitmapAllocations;
+        public final long bitmapAllocatedBytes;
+        public final long frames;
+        public final long jankFrames;
+        public final long averageFrameNanos;
+        public final long maxFrameNanos;
+
+        private Report(int events, long durationMs, long tileDecodes, long wastedDecodes,
+                       long bitmapAllocations, long bitmapAllocatedBytes, XPhotoViewFrameTracer tracer) {
+            this.events = events;
+            this.durationMs = durationMs;
+            this.tileDecodes = tileDecodes;
+            this.wastedDecodes = wastedDecodes;
+            this.bitmapAllocations = bitmapAllocations;
+            this.bitmapAllocatedBytes = bitmapAllocatedBytes;
+            this.frames = tracer.getFrameCount();
+            this.jankFrames = tracer.getJankCount();
+            this.averageFrameNanos = tracer.getAverageDrawNanos();
+            this.maxFrameNanos = tracer.getMaxDrawNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "events %d in %dms, decodes %d (wasted %d), bitmaps %d (%dKB), "
+                            + "frames %d (jank %d), frame avg %.2fms max %.2fms",
+                    events, durationMs, tileDecodes, wastedDecodes, bitmapAllocations, bitmapAllocatedBytes >> 10,
+                    frames, jankFrames, averageFrameNanos / 1e6, maxFrameNanos / 1e6);
+        }
+    }
+
+    private final XPhotoView mView;
+    private final XPhotoViewGestureRecorder mRecording;
+    private final XPhotoViewMemoryGovernor mGovernor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mSettleMs = DEFAULT_SETTLE_MS;
+
+    /**
+     * 以下只在 UI 线程访问
+     */
+    private ArrayList<XPhotoViewGestureRecorder.Sample> mSamples;
+    private Callback mCallback;
+    private XPhotoViewFrameTracer mTracer;
+    private XPhotoViewFrameTracer mSavedTracer;
+    private int mNext;
+    private long mBaseTime;
+    private long mFirstSampleTime;
+    private long mDownTime;
+    private boolean mPointerDown = false;
+    private boolean mRunning = false;
+
+    private long mStartDecodes;
+    private long mStartWasted;
+    private long mStartAllocations;
+    private long mStartAllocatedBytes;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchNext();
+        }
+    };
+
+    private final Runnable mFinishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finish();
+        }
+    };
+
+    public XPhotoViewGestureReplayer(XPhotoView view, XPhotoViewGestureRecorder recording) {
+        mView = view;
+        mRecording = recording;
+        mGovernor = XPhotoViewMemoryGovernor.getInstance(view.getContext());
+    }
+
+    /**
+     * 修改最后一个事件之后继续统计的时间
+     */
+    public void setSettleTime(long settleMs) {
+        mSettleMs = Math.max(0, settleMs);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 开始回放，正在回放时忽略
+     */
+    public void start(Callback callback) {
+        if (mRunning) {
+            return;
+        }
+
+        mSamples = mRecording.getSamples();
+        mCallback = callback;
+        mNext = 0;
+        mPointerDown = false;
+        mRunning = true;
+
+        // 替换 View 上原有的帧追踪，结束后恢复
+        mSavedTracer = mView.getFrameTracer();
+        mTracer = new XPhotoViewFrameTracer(null);
+        mView.setFrameTracer(mTracer);
+
+        mStartDecodes = mGovernor.getTileDecodeCount();
+        mStartWasted = mGovernor.getWastedDecodeCount();
+        mStartAllocations = mGovernor.getAllocatedCount();
+        mStartAllocatedBytes = mGovernor.getAllocatedBytes();
+
+        mBaseTime = SystemClock.uptimeMillis() + START_DELAY_MS;
+        mFirstSampleTime = mSamples.isEmpty() ? 0 : mSamples.get(0).time;
+        Log.d(TAG, "replay " + mSamples.size() + " events, " + mRecording.getDuration() + "ms");
+        scheduleNext();
+    }
+
+    /**
+     * 停止回放，手指还按着时补发一个 CANCEL
+     */
+    public void cancel() {
+        if (!mRunning) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mDispatchRunnable);
+        mHandler.removeCallbacks(mFinishRunnable);
+        if (mPointerDown) {
+            long now = SystemClock.uptimeMillis();
+            MotionEvent event = MotionEvent.obtain(mDownTime, now, MotionEvent.ACTION_CANCEL, 0, 0, 0);
+            mView.dispatchTouchEvent(event);
+            event.recycle();
+            mPointerDown = false;
+        }
+        restore();
+    }
+
+    private void scheduleNext() {
+        if (mNext < mSamples.size()) {
+            mHandler.postAtTime(mDispatchRunnable, mBaseTime + mSamples.get(mNext).time - mFirstSampleTime);
+        } else {
+            mHandler.postDelayed(mFinishRunnable, mSettleMs);
+        }
+    }
+
+    private void dispatchNext() {
+        if (!mRunning) {
+            return;
+        }
+
+        XPhotoViewGestureRecorder.Sample sample = mSamples.get(mNext++);
+        long eventTime = mBaseTime + sample.time - mFirstSampleTime;
+        int masked = sample.getActionMasked();
+        if (masked == MotionEvent.ACTION_DOWN) {
+            mDownTime = eventTime;
+        }
+
+        MotionEvent event = obtain(sample, eventTime);
+        mView.dispatchTouchEvent(event);
+        event.recycle();
+
+        mPointerDown = masked != MotionEvent.ACTION_UP && masked != MotionEvent.ACTION_CANCEL;
+        scheduleNext();
+    }
+
+    /**
+     * 以回放时间重建事件，坐标按 View 大小缩放
+     */
+    private MotionEvent obtain(XPhotoViewGestureRecorder.Sample sample, long eventTime) {
+        int recordedWidth = mRecording.getViewWidth();
+        int recordedHeight = mRecording.getViewHeight();
+        float sx = recordedWidth > 0 && mView.getWidth() > 0 ? mView.getWidth() * 1f / recordedWidth : 1f;
+        float sy = recordedHeight > 0 && mView.getHeight() > 0 ? mView.getHeight() * 1f / recordedHeight : 1f;
+
+        int count = sample.ids.length;
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[count];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[count];
+        for (int i = 0; i < count; ++i) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = sample.ids[i];
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = sample.xs[i] * sx;
+            coords[i].y = sample.ys[i] * sy;
+            coords[i].pressure = 1f;
+            coords[i].size = 1f;
+        }
+
+        int action = sample.getActionMasked() | (sample.getActionIndex() << 8);
+        return MotionEvent.obtain(mDownTime, eventTime, action, count, properties, coords,
+                0, 0, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+
+    private void finish() {
+        if (!mRunning) {
+            return;
+        }
+
+        Report report = new Report(mSamples.size(), SystemClock.uptimeMillis() - mBaseTime,
+                mGovernor.getTileDecodeCount() - mStartDecodes,
+                mGovernor.getWastedDecodeCount() - mStartWasted,
+                mGovernor.getAllocatedCount() - mStartAllocations,
+                mGovernor.getAllocatedBytes() - mStartAllocatedBytes,
+                mTracer);
+        Log.d(TAG, "replay finished: " + report);
+        Log.d(TAG, mTracer.dump());
+
+        Callback callback = mCallback;
+        restore();
+        if (callback != null) {
+            callback.onReplayFinished(report);
+        }
+    }
+
+    private void restore() {
+        mView.setFrameTracer(mSavedTracer);
+        mSavedTracer = null;
+        mTracer = null;
+        mCallback = null;
+        mSamples = null;
+        mRunning = false;
+    }
+}
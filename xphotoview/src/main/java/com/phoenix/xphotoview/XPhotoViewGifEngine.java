@@ -0,0 +1,397 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Movie;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+
+/**
+ * GIF 播放引擎
+ * - 帧在解析线程中用 Movie 绘制到后台缓冲 bitmap，UI 线程只负责交换缓冲并 drawBitmap，可以走硬件加速
+ * - 双缓冲：前台缓冲用于显示，后台缓冲提前渲染下一帧
+ * - 每帧的显示时长取自 GIF 的 Graphic Control Extension，按帧延时调度下一次刷新，而不是每次 onDraw 都 invalidate
+ * - 渲染线程的 CPU 时间和 UI 线程的耗时分别累计，由 androidTest 中的 XPhotoViewGifBenchmark 与 onDraw 中直接 Movie.draw 的方式对比
+ */
+class XPhotoViewGifEngine {
+
+    /**
+     * 延时过小的帧按浏览器的惯例以 100ms 显示
+     */
+    private static final int MIN_FRAME_DELAY = 20;
+    private static final int DEFAULT_FRAME_DELAY = 100;
+
+    private final IXPhotoView mPhotoView;
+    private final Movie mMovie;
+
+    /**
+     * 每帧在 Movie 时间轴上的起始时间，用于 Movie.setTime
+     */
+    private final int[] mFrameTimes;
+
+    /**
+     * 每帧实际显示的时长
+     */
+    private final int[] mFrameDelays;
+
+    private final XPhotoViewDecodeScheduler.TaskQueue mRenderQueue;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mDrawRect = new RectF();
+
+    /**
+     * 前台缓冲，UI 线程绘制
+     */
+    private volatile Bitmap mFrontBuffer;
+
+    /**
+     * 后台缓冲，解析线程渲染；渲染完成后成为 mPendingBuffer 等待交换
+     */
+    private Bitmap mBackBuffer;
+    private volatile Bitmap mPendingBuffer;
+    private volatile int mPendingFrame = -1;
+
+    private int mCurrentFrame = -1;
+    private boolean mPlaying = false;
+    private boolean mReleased = false;
+
+    /**
+     * 到了换帧时间但下一帧还没渲染好，渲染完成后立即换帧
+     */
+    private boolean mWaitingForFrame = false;
+
+    /**
+     * 统计：渲染线程 CPU 时间，UI 线程换帧 + 绘制时间，以及显示的帧数
+     * 渲染只在串行的 mRenderQueue 中进行，单线程写入
+     */
+    private volatile long mRenderThreadCpuNs = 0;
+    private long mMainThreadTimeNs = 0;
+    private long mFramesShown = 0;
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            renderPendingFrame();
+        }
+    };
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private final Runnable mFrameReadyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mWaitingForFrame) {
+                mWaitingForFrame = false;
+                tick();
+            }
+        }
+    };
+
+    /**
+     * @return GIF 无法解析时返回 null
+     */
+    static XPhotoViewGifEngine create(IXPhotoView photoView, byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+
+        Movie movie = Movie.decodeByteArray(data, 0, data.length);
+        if (movie == null || movie.width() <= 0 || movie.height() <= 0) {
+            return null;
+        }
+
+        int[] delays = scanFrameDelays(data);
+        if (delays.length == 0) {
+            delays = new int[]{movie.duration()};
+        }
+        return new XPhotoViewGifEngine(photoView, movie, delays);
+    }
+
+    private XPhotoViewGifEngine(IXPhotoView photoView, Movie movie, int[] rawDelays) {
+        mPhotoView = photoView;
+        mMovie = movie;
+        mRenderQueue = XPhotoViewDecodeScheduler.getInstance().newQueue();
+
+        int[] times = new int[rawDelays.length];
+        int[] delays = new int[rawDelays.length];
+        int count = buildTimeline(rawDelays, times, delays);
+        mFrameTimes = Arrays.copyOf(times, count);
+        mFrameDelays = Arrays.copyOf(delays, count);
+
+        mFrontBuffer = Bitmap.createBitmap(movie.width(), movie.height(), Bitmap.Config.ARGB_8888);
+        mBackBuffer = Bitmap.createBitmap(movie.width(), movie.height(), Bitmap.Config.ARGB_8888);
+    }
+
+    int getWidth() {
+        return mMovie.width();
+    }
+
+    int getHeight() {
+        return mMovie.height();
+    }
+
+    /**
+     * 开始或继续播放
+     */
+    void start() {
+        if (mPlaying || mReleased) {
+            return;
+        }
+        mPlaying = true;
+
+        // 单帧的 GIF 已经显示过，不需要再渲染
+        if (isStatic() && mCurrentFrame >= 0) {
+            return;
+        }
+
+        if (mPendingBuffer == null && mPendingFrame < 0) {
+            requestFrame(nextFrame(mCurrentFrame));
+        }
+        mWaitingForFrame = true;
+        if (mPendingBuffer != null) {
+            mFrameReadyRunnable.run();
+        }
+    }
+
+    /**
+     * 暂停播放，不再换帧也不再渲染新帧
+     */
+    void stop() {
+        mPlaying = false;
+        mWaitingForFrame = false;
+        mMainHandler.removeCallbacks(mTickRunnable);
+        mMainHandler.removeCallbacks(mFrameReadyRunnable);
+    }
+
+    boolean isPlaying() {
+        return mPlaying;
+    }
+
+    void release() {
+        stop();
+        mReleased = true;
+        mRenderQueue.clear();
+    }
+
+    /**
+     * 居中并以 CENTER_INSIDE 绘制当前帧
+     */
+    void draw(Canvas canvas, int viewWidth, int viewHeight) {
+        long start = System.nanoTime();
+        Bitmap front = mFrontBuffer;
+        if (front == null || mCurrentFrame < 0) {
+            return;
+        }
+
+        int mw = mMovie.width();
+        int mh = mMovie.height();
+        float scale = Math.min(viewWidth * 1f / mw, viewHeight * 1f / mh);
+        float left = (viewWidth - mw * scale) / 2;
+        float top = (viewHeight - mh * scale) / 2;
+        mDrawRect.set(left, top, left + mw * scale, top + mh * scale);
+        canvas.drawBitmap(front, null, mDrawRect, mPaint);
+        mMainThreadTimeNs += System.nanoTime() - start;
+    }
+
+    int getFrameCount() {
+        return mFrameDelays.length;
+    }
+
+    /**
+     * 以下统计在 UI 线程读取
+     */
+    long getFramesShown() {
+        return mFramesShown;
+    }
+
+    long getRenderThreadCpuNanos() {
+        return mRenderThreadCpuNs;
+    }
+
+    long getMainThreadNanos() {
+        return mMainThreadTimeNs;
+    }
+
+    /**
+     * 换帧：交换前后台缓冲，按本帧的延时调度下一次换帧，并开始渲染再下一帧
+     */
+    private void tick() {
+        if (!mPlaying || mReleased) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Bitmap pending = mPendingBuffer;
+        if (pending == null) {
+            mWaitingForFrame = true;
+            return;
+        }
+
+        mBackBuffer = mFrontBuffer;
+        mFrontBuffer = pending;
+        mPendingBuffer = null;
+        mCurrentFrame = mPendingFrame;
+        mPendingFrame = -1;
+        mFramesShown++;
+
+        mPhotoView.callPostInvalidate();
+        if (!isStatic()) {
+            requestFrame(nextFrame(mCurrentFrame));
+            mMainHandler.postDelayed(mTickRunnable, mFrameDelays[mCurrentFrame]);
+        }
+        mMainThreadTimeNs += System.nanoTime() - start;
+    }
+
+    /**
+     * 只有一帧（包括没有 GCE 的 GIF）时渲染一次即可，不再按延时循环换帧
+     */
+    private boolean isStatic() {
+        return getFrameCount() == 1;
+    }
+
+    private int nextFrame(int frame) {
+        return (frame + 1) % mFrameDelays.length;
+    }
+
+    private void requestFrame(int frame) {
+        mPendingFrame = frame;
+        mRenderQueue.post(mRenderRunnable);
+    }
+
+    /**
+     * 解析线程：把 mPendingFrame 渲染到后台缓冲
+     */
+    private void renderPendingFrame() {
+        long start = Debug.threadCpuTimeNanos();
+        Bitmap target = mBackBuffer;
+        int frame = mPendingFrame;
+        if (target == null || frame < 0 || mReleased) {
+            return;
+        }
+
+        Canvas canvas = new Canvas(target);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        mMovie.setTime(mFrameTimes[frame]);
+        mMovie.draw(canvas, 0, 0);
+
+        mPendingBuffer = target;
+        mRenderThreadCpuNs += Debug.threadCpuTimeNanos() - start;
+        mMainHandler.post(mFrameReadyRunnable);
+    }
+
+    /**
+     * 由每帧的 GCE 延时生成 Movie 时间轴上的起始时间和显示时长
+     * Movie 按时间取帧，延时为 0 的帧在时间轴上没有宽度，setTime 到它的起始时间得到的是之后第一个有宽度的帧，无法单独显示，
+     * 因此把它并入下一帧：只渲染一次，显示时长为合并的各帧之和（每帧按 DEFAULT_FRAME_DELAY 计），一轮的总时长与浏览器一致
+     *
+     * @param times  输出，每帧在 Movie 时间轴上的起始时间
+     * @param delays 输出，每帧实际显示的时长
+     * @return 合并后的帧数，times / delays 的前 count 项有效
+     */
+    static int buildTimeline(int[] rawDelays, int[] times, int[] delays) {
+        int count = 0;
+        int time = 0;
+        int start = 0;
+        int delay = 0;
+        for (int i = 0; i < rawDelays.length; ++i) {
+            delay += rawDelays[i] < MIN_FRAME_DELAY ? DEFAULT_FRAME_DELAY : rawDelays[i];
+            time += rawDelays[i];
+            if (rawDelays[i] <= 0 && i < rawDelays.length - 1) {
+                continue;
+            }
+
+            times[count] = start;
+            delays[count] = delay;
+            ++count;
+            start = time;
+            delay = 0;
+        }
+        return count;
+    }
+
+    /**
+     * 只扫描 GIF 的块结构读取每帧的延时（毫秒），不解码像素
+     */
+    static int[] scanFrameDelays(byte[] data) {
+        int[] delays = new int[16];
+        int count = 0;
+
+        // Header(6) + Logical Screen Descriptor(7)
+        int pos = 6;
+        if (data.length < pos + 7) {
+            return new int[0];
+        }
+        int flags = data[pos + 4] & 0xff;
+        pos += 7;
+        if ((flags & 0x80) != 0) {
+            pos += 3 * (1 << ((flags & 0x07) + 1));
+        }
+
+        int pendingDelay = 0;
+        while (pos < data.length) {
+            int block = data[pos++] & 0xff;
+            if (block == 0x21) {
+                if (pos >= data.length) {
+                    break;
+                }
+                int label = data[pos++] & 0xff;
+                if (label == 0xF9 && pos + 5 < data.length) {
+                    // Graphic Control Extension: size(1) packed(1) delay(2, 1/100s) transparent(1) terminator(1)
+                    pendingDelay = ((data[pos + 2] & 0xff) | ((data[pos + 3] & 0xff) << 8)) * 10;
+                    pos += 6;
+                } else {
+                    pos = skipSubBlocks(data, pos);
+                }
+            } else if (block == 0x2C) {
+                // Image Descriptor(9) + Local Color Table + LZW min code size(1) + data sub-blocks
+                if (pos + 9 > data.length) {
+                    break;
+                }
+                int imageFlags = data[pos + 8] & 0xff;
+                pos += 9;
+                if ((imageFlags & 0x80) != 0) {
+                    pos += 3 * (1 << ((imageFlags & 0x07) + 1));
+                }
+                pos = skipSubBlocks(data, pos + 1);
+
+                if (count == delays.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(delays, 0, grown, 0, count);
+                    delays = grown;
+                }
+                delays[count++] = pendingDelay;
+                pendingDelay = 0;
+            } else {
+                // 0x3B 结束符或者无法识别的块
+                break;
+            }
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(delays, 0, result, 0, count);
+        return result;
+    }
+
+    private static int skipSubBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos++] & 0xff;
+            if (size == 0) {
+                break;
+            }
+            pos += size;
+        }
+        return pos;
+    }
+}
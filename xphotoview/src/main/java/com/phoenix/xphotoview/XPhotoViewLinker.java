@@ -3,15 +3,17 @@ package com.phoenix.xphotoview;
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
 import android.animation.ValueAnimator;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.animation.AccelerateDecelerateInterpolator;
 
@@ -21,6 +23,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 支持输入类型 :
@@ -42,8 +47,23 @@ import java.util.UUID;
  * - 移动时更新 mViewBitmapRect 并更新视图，此时不需要更新 SampleSize
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
  * 解析逻辑：
- * - 在线程中用 BitmapRegionDecoder 将原图进行 N * M 个方格进行切割再分别解析
+ * - 在线程中用 RegionDecoder（默认为 BitmapRegionDecoder）将原图进行 N * M 个方格进行切割再分别解析
  * - 线程 mInstanceDecoderRunnable 为解析过程
+ * - 解析线程只读取 mViewport 快照，UI 线程每次修改上述 Rect 及 SampleSize 后调用 publishViewport 发布新快照
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 小图模式：
+ * - 原图不大于一个单元格时（isSmallImage）直接持有整张 bitmap，不建立网格、不解析缩略图、不使用解析线程
+ * - 手势相关的 Rect 计算不变，绘制时由视口快照换算出一个 Matrix
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 手势及缩放动画：
+ * - 进行中只更新上述 Rect，不发布新的视口快照，不计算可见单元格、不回收也不加载单元格
+ * - 绘制时把开始时的视口（缩略图图集 + 当时可见的单元格）通过一个 Matrix 变换到当前位置
+ * - 结束时发布一次视口，再 updateSampleSize 按最终位置加载单元格
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 绘制线程：
+ * - draw 只读取一次 mDrawState 快照，可以在 UI 线程（XPhotoView）或渲染线程（XPhotoTextureView）调用
+ * - 视口与手势中的当前位置放在同一个快照里发布，结束手势时不会出现新状态配旧视口的一帧
+ * - 手势及 View 大小仍然在 UI 线程中更新
  */
 
 class XPhotoViewLinker implements IXPhotoViewLinker {
@@ -54,7 +74,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
     private static final float MIN_SCALE_VALUE = 1;
     private static final float DOUBLE_TAP_MAX = 2.0f;
 
-    private XPhotoView mPhotoView;
+    private IXPhotoView mPhotoView;
 
     /**
      * 缩放动画
@@ -77,10 +97,60 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
      */
     private final File mSourceBitmapCacheFile;
 
+    /**
+     * API 26+ 的 HARDWARE 配置，高清单元格只用于绘制，放到显存中不占 Java 堆，且上传纹理发生在解析线程
+     * 编译 SDK 中没有这个常量，通过名字获取
+     */
+    private static final Bitmap.Config HARDWARE_CONFIG = android.os.Build.VERSION.SDK_INT >= 26
+            ? Bitmap.Config.valueOf("HARDWARE") : null;
+
+    /**
+     * 探测透明通道时整图解析的最大边长
+     */
+    private static final int ALPHA_PROBE_SIZE = 64;
+
+    /**
+     * 最近一次释放之后至少经过这么久，才在绘制时尝试恢复可见 View 的缩略图，避免在内存压力中来回释放和解析
+     */
+    private static final long TRIM_RESTORE_DELAY_MS = 10000;
+
     /**
      * 质量参数, 默认为 RGB_565
+     * 外部没有指定时（mAutoConfig）在 RegionDecoder 初始化后探测：有透明通道用 ARGB_8888，否则用 RGB_565
      */
     private Bitmap.Config mBitmapConfig = Bitmap.Config.RGB_565;
+    private boolean mAutoConfig = false;
+
+    /**
+     * 图片是否可能有透明通道，内存不足降级时不能丢掉透明通道
+     * 探测或 setBitmap 时确定；外部指定了带透明通道的 Config 时无法确定，按有透明通道处理
+     */
+    private volatile boolean mHasAlpha = false;
+
+    /**
+     * 小图模式下的整张图片，不为空时不使用网格
+     */
+    private volatile Bitmap mSingleBitmap;
+    private final Matrix mSingleMatrix = new Matrix();
+    private final Paint mSinglePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 手势或动画进行中，mViewport 停留在开始时的快照
+     * 只决定 publishViewport 的发布方式，绘制线程不读取它，以 mDrawState 为准
+     * 解析线程初始化时也会清除，所以是 volatile
+     */
+    private volatile boolean mTransient = false;
+    private final Matrix mTransientMatrix = new Matrix();
+
+    /**
+     * 绘制用的快照，publishViewport 一次赋值发布，绘制线程一次读取
+     */
+    private volatile DrawState mDrawState = DrawState.EMPTY;
+
+    /**
+     * 滚动缓存，为 null 表示未开启，见 XPhotoViewBackBuffer
+     */
+    private volatile XPhotoViewBackBuffer mBackBuffer;
 
     /**
      * 当前图片的的采样率
@@ -92,13 +162,32 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
      */
     private int mThumbSampleSize = 0;
 
+    /**
+     * 单元格边长，原图坐标系
+     * 只在完整初始化时按 View 大小选取，之后 View 大小改变也不变，已解析的单元格才能继续使用
+     */
+    private int mCellSize = 0;
+
+    /**
+     * 根据本机解析速度选择的预取圈数，以及是否先解析中间层，见 XPhotoViewDecodeProfiler
+     * 在 View 大小确定时更新，解析线程读取
+     */
+    private volatile int mPrefetchDepth = 0;
+    private volatile boolean mDecodeIntermediate = false;
+    private final XPhotoViewDecodeProfiler mProfiler;
+
+    /**
+     * 帧追踪，为 null 表示关闭，见 XPhotoViewFrameTracer
+     */
+    private volatile XPhotoViewFrameTracer mFrameTracer;
+
     /***
      * View Rect
      * View 坐标系*/
     private Rect mOriginViewRect = new Rect();
 
     /**
-     * 原图 Rect，由 BitmapRegionDecoder 读取获得
+     * 原图 Rect，由 RegionDecoder 读取获得
      * Bitmap 坐标系
      */
     private Rect mOriginImageRect = new Rect();
@@ -121,15 +210,37 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
      */
     private Rect mInitiatedShowBitmapRect = new Rect();
 
+    /**
+     * 以上几个 Rect 及 SampleSize 的不可变快照，供解析线程无锁读取
+     */
+    private volatile XPhotoViewViewport mViewport = XPhotoViewViewport.EMPTY;
+
     /**
      * 局部解析原始图片工具
      */
-    private BitmapRegionDecoder mBitmapRegionDecoder;
+    private volatile RegionDecoder mRegionDecoder;
+
+    /**
+     * 每设置一张图片，由它创建新的 RegionDecoder
+     */
+    private RegionDecoder.Factory mRegionDecoderFactory = DefaultRegionDecoder.FACTORY;
+
+    /**
+     * 外部直接指定的 RegionDecoder（例如预切片容器），不为空时不再通过工厂创建
+     */
+    private RegionDecoder mPresetRegionDecoder;
+
+    /**
+     * 预加载时已经解析好的缩略图图集，初始化网格时若分页一致则直接接管
+     */
+    private XPhotoViewThumbAtlas mPreparedThumbAtlas;
 
     /**
      * Decoder 解析用的 IS，即外部传入的文件流，与 mSourceBitmap 有同样的含义
+     * 流由 linker 接管，RegionDecoder 初始化完成后关闭
+     * 解析线程开始时读取一次，之后新设置的流不受正在进行的初始化影响
      */
-    private InputStream mSourceInputStream;
+    private volatile InputStream mSourceInputStream;
 
     /**
      * Bitmap 网格策略
@@ -138,13 +249,63 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
 
 
     /**
-     * 异步处理图片的解码
+     * 异步处理图片的解码，任务投递到进程共享的解析调度器上本 View 专属的队列
+     * 串行执行：初始化、释放、恢复等控制任务依赖执行顺序
+     */
+    private final XPhotoViewDecodeScheduler.TaskQueue mDecodeQueue;
+
+    /**
+     * 高清单元格的解析任务单独排队，View 不可见时暂停这个队列
+     * 初始化和缩略图仍走串行的 mDecodeQueue，相邻页面切换过来时可以立即显示概貌
+     * 单元格之间互不依赖，通过 CAS 防止重复解析，所以这个队列是并行的
+     */
+    private final XPhotoViewDecodeScheduler.TaskQueue mTileQueue;
+
+    /**
+     * 以下三个在 UI 线程修改，绘制线程读取
+     */
+    private volatile boolean mVisible = true;
+
+    /**
+     * 内存压力下已经执行到的释放级别，见 XPhotoViewMemoryTrimmer
+     * 达到 TRIM_PREVIEW 时所有单元格都被释放，只绘制 mPreviewBitmap
+     */
+    private volatile int mTrimLevel = XPhotoViewMemoryTrimmer.TRIM_NONE;
+    private volatile long mTrimTime = 0;
+    private volatile Bitmap mPreviewBitmap;
+
+    /**
+     * 全局内存预算中本 View 的记账对象，View 可见时为聚焦状态
+     */
+    private final XPhotoViewMemoryGovernor.Owner mMemoryOwner;
+
+    /**
+     * 预算不足时聚焦的 View 要求其他 View 释放高清单元格
+     */
+    private final Runnable mReclaimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimMemory(XPhotoViewMemoryTrimmer.TRIM_HIGH_RES);
+        }
+    };
+
+    /**
+     * 内存压力解除后由绘制线程请求，在 UI 线程恢复缩略图
      */
-    private Handler mLoadingHandler = null;
+    private final Runnable mRestoreRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mVisible) {
+                restoreTrimmedMemory();
+            }
+        }
+    };
     private final Handler mMainHandler = new Handler();
-    private HandlerThread mLoadingThread;
-    private static final String THREAD_TAG = "LoadingThread";
-    private final Object mDecodeSyncLock = new Object();
+
+    /**
+     * 解析时持有读锁，多个解析任务之间互不阻塞；回收 Decoder 时持有写锁
+     */
+    private final ReentrantReadWriteLock mDecoderLock = new ReentrantReadWriteLock();
 
     /**
      * 将输入的 Bitmap 原图缓存为文件再输出为 fos 的线程
@@ -167,23 +328,32 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
     };
 
     /**
-     * 读取输入流初始化 BitmapRegionDecoder
+     * 读取输入流初始化 RegionDecoder
      * - 丈量原图的宽高信息
      * - 丈量
      */
     private Runnable mInstanceDecoderRunnable = new Runnable() {
         @Override
         public void run() {
+            InputStream is = mSourceInputStream;
+            RegionDecoder decoder = mPresetRegionDecoder != null ? mPresetRegionDecoder : mRegionDecoderFactory.create();
+            mPresetRegionDecoder = null;
             try {
-                mBitmapRegionDecoder = BitmapRegionDecoder.newInstance(mSourceInputStream, false);
-                mOriginImageRect.set(0, 0, mBitmapRegionDecoder.getWidth(), mBitmapRegionDecoder.getHeight());
+                decoder.open(is);
+                mOriginImageRect.set(0, 0, decoder.getWidth(), decoder.getHeight());
+                if (mAutoConfig) {
+                    mBitmapConfig = probeBitmapConfig(decoder);
+                    mHasAlpha = mBitmapConfig == Bitmap.Config.ARGB_8888;
+                }
+                mRegionDecoder = decoder;
             } catch (IOException e) {
                 e.printStackTrace();
-                mBitmapRegionDecoder.recycle();
-                mBitmapRegionDecoder = null;
+                decoder.close();
+            } finally {
+                closeSourceInputStream(is);
             }
 
-            if (mBitmapRegionDecoder != null) {
+            if (mRegionDecoder != null) {
                 initiateViewRect(mOriginViewRect.width(), mOriginViewRect.height());
             } else {
                 onSetImageFinished(false);
@@ -191,47 +361,41 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         }
     };
 
-    XPhotoViewLinker(XPhotoView mPhotoView) {
+    XPhotoViewLinker(IXPhotoView mPhotoView) {
         this.mPhotoView = mPhotoView;
         mSourceBitmapCacheFile = new File(mPhotoView.getCachedDir(), UUID.randomUUID().toString());
-        mLoadingThread = new HandlerThread(THREAD_TAG + this.hashCode());
-
+        mDecodeQueue = XPhotoViewDecodeScheduler.getInstance().newQueue();
+        mTileQueue = XPhotoViewDecodeScheduler.getInstance().newParallelQueue();
+        mMemoryOwner = XPhotoViewMemoryGovernor.getInstance(mPhotoView.getContext()).newOwner(mReclaimRunnable);
+        mProfiler = XPhotoViewDecodeProfiler.getInstance(mPhotoView.getContext());
+        mMemoryOwner.setFocused(mVisible);
     }
 
     /**
-     * 初始化所需参数和线程，预示 Image 设置开始 ...
+     * 初始化所需参数，预示 Image 设置开始 ...
      */
     private synchronized void initialize(Bitmap.Config config) {
 
         onSetImageStart();
 
-        if (mLoadingHandler != null) {
-            mLoadingHandler.removeCallbacks(mInstanceDecoderRunnable);
-            mLoadingHandler.removeCallbacks(mCacheBitmapRunnable);
-            mLoadingHandler.removeCallbacks(mBitmapGridStrategy.mDecodeThumbRunnable);
-        }
-
-        if (mBitmapRegionDecoder != null) {
-            mBitmapRegionDecoder.recycle();
-            mBitmapRegionDecoder = null;
-        }
+        // 上一张图片尚未开始的解析任务都不再需要
+        mDecodeQueue.clear();
+        mTileQueue.clear();
+        mTrimLevel = XPhotoViewMemoryTrimmer.TRIM_NONE;
 
         if (mBitmapGridStrategy != null) {
             recycleAll();
         }
 
+        mAutoConfig = config == null;
         mBitmapConfig = config == null ? Bitmap.Config.RGB_565 : config;
-
-        if (mLoadingThread == null || mLoadingThread.getState() == Thread.State.NEW) {
-            mLoadingThread = new HandlerThread(THREAD_TAG + this.hashCode());
-            mLoadingThread.start();
-        }
-        mLoadingHandler = new Handler(mLoadingThread.getLooper());
+        mHasAlpha = config != null && config != Bitmap.Config.RGB_565;
     }
 
     @Override
     public void setBitmap(Bitmap bitmap, boolean cache) {
-        initialize(Bitmap.Config.ARGB_8888);
+        initialize(bitmap != null && !bitmap.hasAlpha() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+        mHasAlpha = bitmap != null && bitmap.hasAlpha();
         setSrcBitmap(bitmap, cache);
     }
 
@@ -246,9 +410,13 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         }
 
         if (enableCache) {
-            mLoadingHandler.post(mCacheBitmapRunnable);
+            mDecodeQueue.post(mCacheBitmapRunnable);
         } else {
+            mRegionDecoder = new InMemoryRegionDecoder(bitmap);
             mOriginImageRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            if (isSmallImage(mPhotoView.getContext(), bitmap.getWidth(), bitmap.getHeight())) {
+                setSingleBitmap(bitmap);
+            }
 
             initiateViewRect(mOriginViewRect.width(), mOriginViewRect.height());
         }
@@ -260,29 +428,138 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         setBitmapDecoder(is);
     }
 
+    @Override
+    public void setRegionDecoder(RegionDecoder decoder, Bitmap.Config config) {
+        initialize(config);
+        setSourceInputStream(null);
+
+        if (decoder == null) {
+            onSetImageFinished(false);
+            return;
+        }
+
+        mPresetRegionDecoder = decoder;
+        mDecodeQueue.post(mInstanceDecoderRunnable);
+    }
+
+    @Override
+    public void setImageFile(File file, XPhotoViewFormat format) {
+        setRegionDecoder(XPhotoViewDecoderRegistry.getInstance().obtain(file, format, mRegionDecoderFactory),
+                format.getBitmapConfig());
+    }
+
+    @Override
+    public void setPreparedImage(XPhotoViewPreloader.Prepared prepared) {
+        initialize(prepared.getConfig());
+        setSourceInputStream(null);
+
+        // 解析器已经打开，宽高已知，直接在 UI 线程初始化，不再经过解析线程
+        RegionDecoder decoder = prepared.getDecoder();
+        mOriginImageRect.set(0, 0, decoder.getWidth(), decoder.getHeight());
+        mRegionDecoder = decoder;
+        setPreparedThumbAtlas(prepared.takeThumbAtlas());
+
+        initiateViewRect(mOriginViewRect.width(), mOriginViewRect.height());
+    }
+
+    /**
+     * @param atlas 为 null 时取出并返回之前设置的图集
+     */
+    private synchronized XPhotoViewThumbAtlas setPreparedThumbAtlas(XPhotoViewThumbAtlas atlas) {
+        XPhotoViewThumbAtlas old = mPreparedThumbAtlas;
+        mPreparedThumbAtlas = atlas;
+        return old;
+    }
+
+    @Override
+    public void setRegionDecoderFactory(RegionDecoder.Factory factory) {
+        mRegionDecoderFactory = factory == null ? DefaultRegionDecoder.FACTORY : factory;
+    }
+
     /**
-     * 设置 BitmapRegionDecoder 这个函数只会走一次
+     * 设置 RegionDecoder 这个函数只会走一次
      */
     private void setBitmapDecoder(final InputStream is) {
-        mSourceInputStream = is;
+        setSourceInputStream(is);
 
         if (is == null) {
             onSetImageFinished(false);
             return;
         }
 
-        mLoadingHandler.post(mInstanceDecoderRunnable);
+        mDecodeQueue.post(mInstanceDecoderRunnable);
+    }
+
+    /**
+     * 以很大的 SampleSize 解析整图，根据是否有透明通道选择 Config
+     */
+    static Bitmap.Config probeBitmapConfig(RegionDecoder decoder) {
+        int sampleSize = 1;
+        while (Math.max(decoder.getWidth(), decoder.getHeight()) / sampleSize > ALPHA_PROBE_SIZE) {
+            sampleSize <<= 1;
+        }
+
+        Bitmap probe = null;
+        try {
+            probe = decoder.decodeRegion(new Rect(0, 0, decoder.getWidth(), decoder.getHeight()), sampleSize, Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError ignored) { }
+
+        Bitmap.Config config = probe != null && probe.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        Log.d(TAG, "probe bitmap config " + config);
+        return config;
+    }
+
+    /**
+     * 判断是否可以使用小图模式
+     * - 两边都不超过图集单页的边长，可以作为一张纹理绘制
+     * - 像素数不超过屏幕，即不大于一个单元格，分块解析不会节省内存
+     */
+    static boolean isSmallImage(Context context, int width, int height) {
+        if (width <= 0 || height <= 0
+                || width > XPhotoViewThumbAtlas.MAX_PAGE_SIZE || height > XPhotoViewThumbAtlas.MAX_PAGE_SIZE) {
+            return false;
+        }
+
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        return (long) width * height <= (long) dm.widthPixels * dm.heightPixels;
+    }
+
+    private synchronized void setSingleBitmap(Bitmap bitmap) {
+        Bitmap old = mSingleBitmap;
+        mSingleBitmap = bitmap;
+        mMemoryOwner.onBitmapReplaced(old, bitmap);
+    }
+
+    private synchronized void setSourceInputStream(InputStream is) {
+        mSourceInputStream = is;
+    }
+
+    /**
+     * 只关闭本次初始化读取的流，字段已经被新的 setInputStream 替换时保留新的流
+     */
+    private synchronized void closeSourceInputStream(InputStream is) {
+        if (mSourceInputStream == is) {
+            mSourceInputStream = null;
+        }
+        if (is != null) {
+            try {
+                is.close();
+            } catch (IOException ignored) { }
+        }
     }
 
     private void initiateViewRect(int viewWidth, int viewHeight) {
 
+        // 重新初始化时手势的中间状态已经没有意义
+        mTransient = false;
+
         mOriginViewRect.set(0, 0, viewWidth, viewHeight);
 
         int originImgWidth = mOriginImageRect.width();
         int originImgHeight = mOriginImageRect.height();
 
-        // 有任何一个为 0 则异常
-        if (viewWidth * viewHeight * originImgWidth * originImgHeight == 0) {
+        // 有任何一个为 0 则异常，分别判断，乘积在大图上会溢出
+        if (viewWidth <= 0 || viewHeight <= 0 || originImgWidth <= 0 || originImgHeight <= 0) {
             return;
         }
 
@@ -328,12 +605,24 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         // 原图 Bitmap 与缩放后在 View 中以 CenterInside 显示的 ShowBitmapRect 进行缩放值的计算
         // 取 imageWidth / ShowBitmapReact.width 还是 imageHeight / ShowBitmapRect.height 值实际上是一样的，
         // 因为此时的 showBitmapRect 和 originImageRect 实际上是等比矩形
-        mSampleSize = imageThinLong ? calculateSampleSize((int) (originImgHeight / mShowBitmapRect.height()))
-                : calculateSampleSize((int) (originImgWidth / mShowBitmapRect.width()));
+        mSampleSize = getThumbSampleSize(originImgWidth, originImgHeight, viewWidth, viewHeight);
 
         // 保存原图在 View 完整显示（CenterInside）下的缩略图缩放值
         mThumbSampleSize = mSampleSize;
 
+        // 单元格边长按本机的解析速度选择，预加载时用同样的方法分页，两边结果一致才能直接复用
+        mCellSize = mProfiler.getCellSize(viewWidth, viewHeight);
+        mPrefetchDepth = mProfiler.getPrefetchDepth(viewWidth, viewHeight);
+        mDecodeIntermediate = mProfiler.shouldDecodeIntermediate(viewWidth, viewHeight);
+
+        publishViewport();
+
+        // 小图直接绘制整张 bitmap，不需要网格
+        if (mSingleBitmap != null) {
+            onSetImageFinished(true);
+            return;
+        }
+
         // 初始化网格矩阵
         mBitmapGridStrategy.initializeBitmapGrid();
     }
@@ -341,6 +630,12 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
     private synchronized boolean checkOrUpdateViewRect(int width, int height) {
         // 做 diff 检查，防止大量计算 in draw
         if (mOriginViewRect.width() != width || mOriginViewRect.height() != height) {
+            // 已经显示出来的图片（旋转屏幕、分屏拖动）只重新排布，不重新初始化
+            if (canRelayout(width, height)) {
+                relayoutViewRect(width, height);
+                return false;
+            }
+
             onSetImageStart();
             initiateViewRect(width, height);
             return true;
@@ -349,6 +644,84 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         return false;
     }
 
+    private boolean canRelayout(int width, int height) {
+        return width > 0 && height > 0 && !sIsSettingImage && !mOriginViewRect.isEmpty() && !mViewport.isEmpty()
+                && (mSingleBitmap != null || mRegionDecoder != null);
+    }
+
+    /**
+     * View 大小改变时的增量排布
+     * - 旧 View 中心对应的图片位置仍在新 View 的中心，缩放值不变（不小于新的适配大小，不超过最大缩放）
+     * - 单元格边长不变，已解析的高清单元格及缩略图都继续使用
+     * - 缩略图 SampleSize 变了才在后台重新解析图集，解析完成前继续画旧的
+     */
+    private void relayoutViewRect(int viewWidth, int viewHeight) {
+        mTransient = false;
+
+        float iw = mOriginImageRect.width();
+        float ih = mOriginImageRect.height();
+
+        // 旧 View 中心在 Show Bitmap 中的相对位置
+        float fx = mShowBitmapViewRect.exactCenterX() / mShowBitmapRect.width();
+        float fy = mShowBitmapViewRect.exactCenterY() / mShowBitmapRect.height();
+        float showWidth = mShowBitmapRect.width();
+
+        mOriginViewRect.set(0, 0, viewWidth, viewHeight);
+        mMaxScaleValue = Math.max(MAX_SCALE_VALUE, getMaxFitViewValue());
+        mMinScaleValue = Math.min(MIN_SCALE_VALUE, getMinFitViewValue());
+
+        // 与 initiateViewRect 相同的 CenterInside 大小
+        float fit = getMinFitViewValue();
+        mInitiatedShowBitmapRect.set(0, 0, Math.round(iw * fit), Math.round(ih * fit));
+
+        boolean initiated = showWidth <= mInitiatedShowBitmapRect.width();
+        if (initiated) {
+            showWidth = mInitiatedShowBitmapRect.width();
+        } else if (showWidth / iw > mMaxScaleValue) {
+            showWidth = iw * mMaxScaleValue;
+        }
+        float showHeight = initiated ? mInitiatedShowBitmapRect.height() : showWidth * ih / iw;
+
+        // 得到 Bitmap 相对于新 View 的坐标，再按 scale 中的规则居中或贴边
+        float left = viewWidth / 2f - fx * showWidth;
+        float top = viewHeight / 2f - fy * showHeight;
+        RectF aRect = new RectF(left, top, left + showWidth, top + showHeight);
+
+        float nx = 0;
+        float ny = 0;
+        if (aRect.width() < viewWidth) {
+            nx = viewWidth / 2f - aRect.centerX();
+        } else if (aRect.left > 0) {
+            nx = -aRect.left;
+        } else if (aRect.right < viewWidth) {
+            nx = viewWidth - aRect.right;
+        }
+
+        if (aRect.height() < viewHeight) {
+            ny = viewHeight / 2f - aRect.centerY();
+        } else if (aRect.top > 0) {
+            ny = -aRect.top;
+        } else if (aRect.bottom < viewHeight) {
+            ny = viewHeight - aRect.bottom;
+        }
+
+        aRect.offset(nx, ny);
+        updateViewBitmapRect(aRect);
+
+        int oldThumbSampleSize = mThumbSampleSize;
+        mThumbSampleSize = getThumbSampleSize((int) iw, (int) ih, viewWidth, viewHeight);
+        mPrefetchDepth = mProfiler.getPrefetchDepth(viewWidth, viewHeight);
+        mDecodeIntermediate = mProfiler.shouldDecodeIntermediate(viewWidth, viewHeight);
+        mSampleSize = initiated ? mThumbSampleSize : getCurSampleSize();
+        publishViewport();
+        Log.d(TAG, "relayout " + viewWidth + "x" + viewHeight + " sample " + mSampleSize + " thumb " + mThumbSampleSize);
+
+        if (mSingleBitmap == null) {
+            mBitmapGridStrategy.relayout(oldThumbSampleSize);
+        }
+        invalidateContent();
+    }
+
     /**
      * 重置为初始化状态
      */
@@ -360,6 +733,27 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         int top = (int) ((mShowBitmapRect.height() - mOriginViewRect.height()) / 2);
         int bottom = top + mOriginViewRect.height();
         mShowBitmapViewRect.set(left, top, right, bottom);
+
+        publishViewport();
+    }
+
+    /**
+     * 发布当前视口的快照
+     * 必须在 UI 线程修改 mShowBitmapRect、mShowBitmapViewRect、mOriginViewRect 或 SampleSize 后调用
+     */
+    private void publishViewport() {
+        if (mTransient) {
+            mDrawState = new DrawState(mViewport, toViewCoordinate(mShowBitmapRect));
+            return;
+        }
+
+        XPhotoViewViewport viewport = new XPhotoViewViewport(mOriginViewRect.width(), mOriginViewRect.height(),
+                mOriginImageRect.width(), mOriginImageRect.height(),
+                mShowBitmapRect.width(), mShowBitmapRect.height(),
+                mShowBitmapViewRect.left, mShowBitmapViewRect.top,
+                mSampleSize, mThumbSampleSize, mCellSize);
+        mViewport = viewport;
+        mDrawState = new DrawState(viewport, null);
     }
 
     /**
@@ -439,10 +833,21 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         return Math.min(ws, hs);
     }
 
+    /**
+     * 原图以 CENTER_INSIDE 完整显示在 View 中时的缩略图 SampleSize
+     * 预加载时用同样的方法提前解析缩略图，两边结果一致才能直接复用
+     */
+    static int getThumbSampleSize(int imageWidth, int imageHeight, int viewWidth, int viewHeight) {
+        boolean imageThinLong = imageWidth * 1.0f / imageHeight < viewWidth * 1.0f / viewHeight;
+        float imageFitViewRatio = imageThinLong ? (imageHeight * 1.0f / viewHeight) : (imageWidth * 1.0f / viewWidth);
+        return imageThinLong ? calculateSampleSize((int) (imageHeight / (imageHeight * 1.0f / imageFitViewRatio)))
+                : calculateSampleSize((int) (imageWidth / (imageWidth * 1.0f / imageFitViewRatio)));
+    }
+
     /**
      * 获取采样率
      */
-    private int calculateSampleSize(int size) {
+    private static int calculateSampleSize(int size) {
         int sampleSize = 1;
         while (size >> 1 != 0) {
             sampleSize = sampleSize << 1;
@@ -459,7 +864,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         int ih = mOriginImageRect.height();
         int bw = (int) mShowBitmapRect.width();
         int bh = (int) mShowBitmapRect.height();
-        if (bw * bh == 0) {
+        if (bw <= 0 || bh <= 0 || iw <= 0 || ih <= 0) {
             return 1;
         }
 
@@ -499,7 +904,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
             @Override
             public void run() {
                 mPhotoView.onSetImageFinished(XPhotoViewLinker.this, success, image);
-                mPhotoView.callPostInvalidate();
+                invalidateContent();
             }
         });
     }
@@ -509,19 +914,41 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
      */
     private void recycleAll() {
         mBitmapGridStrategy.recycleAllGrids();
+        setPreviewBitmap(null);
+        setSingleBitmap(null);
+
+        XPhotoViewThumbAtlas prepared = setPreparedThumbAtlas(null);
+        if (prepared != null) {
+            prepared.recycle();
+        }
 
-        synchronized (mDecodeSyncLock) {
-            if (mBitmapRegionDecoder != null) {
-                mBitmapRegionDecoder.recycle();
-                mBitmapRegionDecoder = null;
+        mDecoderLock.writeLock().lock();
+        try {
+            if (mRegionDecoder != null) {
+                mRegionDecoder.close();
+                mRegionDecoder = null;
             }
 
             mSourceBitmap = null;
+        } finally {
+            mDecoderLock.writeLock().unlock();
         }
     }
 
     @Override
     public boolean draw(@NonNull Canvas canvas, int width, int height) {
+        XPhotoViewFrameTracer tracer = mFrameTracer;
+        if (tracer == null) {
+            return drawFrame(canvas, width, height);
+        }
+
+        long start = System.nanoTime();
+        boolean result = drawFrame(canvas, width, height);
+        tracer.addDrawTime(System.nanoTime() - start);
+        return result;
+    }
+
+    private boolean drawFrame(Canvas canvas, int width, int height) {
         if (isNotAvailable()) {
             return false;
         }
@@ -536,11 +963,75 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
             }
         }
         // 更新视图或者画出图片
-        return !checkOrUpdateViewRect(width, height) && mBitmapGridStrategy.drawVisibleGrid(canvas);
+        if (checkOrUpdateViewRect(width, height)) {
+            return false;
+        }
+        DrawState state = mDrawState;
+        checkTrimmedMemory(state.viewport);
+        if (state.transientRect != null) {
+            return drawTransient(canvas, state.viewport, state.transientRect);
+        }
+        if (mSingleBitmap != null) {
+            return drawSingleBitmap(canvas, state.viewport);
+        }
+        return mBitmapGridStrategy.drawVisibleGrid(canvas, state.viewport);
+    }
+
+    /**
+     * 手势或动画进行中，以开始时的视口绘制，再整体变换到当前位置
+     *
+     * @param viewport 开始时的视口
+     * @param current  Show Bitmap 在 View 中的当前位置
+     */
+    private boolean drawTransient(Canvas canvas, XPhotoViewViewport viewport, RectF current) {
+        if (viewport.isEmpty() || current.width() <= 0) {
+            return false;
+        }
+
+        // 开始时 Show Bitmap 在 View 中的左上角为 (-viewLeft, -viewTop)，宽为 showWidth
+        float scale = current.width() / viewport.showWidth;
+        mTransientMatrix.setTranslate(viewport.viewLeft, viewport.viewTop);
+        mTransientMatrix.postScale(scale, scale);
+        mTransientMatrix.postTranslate(current.left, current.top);
+
+        int count = canvas.save();
+        canvas.concat(mTransientMatrix);
+        boolean result = mSingleBitmap != null ? drawSingleBitmap(canvas, viewport)
+                : mBitmapGridStrategy.drawFrozenGrid(canvas, viewport);
+        canvas.restoreToCount(count);
+        return result;
+    }
+
+    /**
+     * 小图模式下以一个 Matrix 绘制整张图片
+     */
+    private boolean drawSingleBitmap(Canvas canvas, XPhotoViewViewport viewport) {
+        Bitmap bitmap = mSingleBitmap;
+        if (bitmap == null || bitmap.isRecycled() || viewport.isEmpty()) {
+            return false;
+        }
+
+        float ratio = viewport.showHeight / viewport.imageHeight;
+        mSingleMatrix.setScale(ratio, ratio);
+        mSingleMatrix.postTranslate(-viewport.viewLeft, -viewport.viewTop);
+        canvas.drawBitmap(bitmap, mSingleMatrix, mSinglePaint);
+        return true;
     }
 
     @Override
     public int move(int dx, int dy) {
+        XPhotoViewFrameTracer tracer = mFrameTracer;
+        if (tracer == null) {
+            return moveBy(dx, dy);
+        }
+
+        long start = System.nanoTime();
+        int result = moveBy(dx, dy);
+        tracer.addGestureTime(System.nanoTime() - start);
+        return result;
+    }
+
+    private int moveBy(int dx, int dy) {
         if (isNotAvailable()) {
             return NONE;
         }
@@ -589,6 +1080,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         }
 
         mShowBitmapViewRect.offset(-(rx == Integer.MAX_VALUE ? 0 : rx), -(ry == Integer.MAX_VALUE ? 0 : ry));
+        publishViewport();
         mPhotoView.callPostInvalidate();
 
         /**
@@ -620,6 +1112,18 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
 
     @Override
     public void scale(float cx, float cy, float scale) {
+        XPhotoViewFrameTracer tracer = mFrameTracer;
+        if (tracer == null) {
+            scaleBy(cx, cy, scale);
+            return;
+        }
+
+        long start = System.nanoTime();
+        scaleBy(cx, cy, scale);
+        tracer.addGestureTime(System.nanoTime() - start);
+    }
+
+    private void scaleBy(float cx, float cy, float scale) {
         if (isNotAvailable()) {
             return;
         }
@@ -706,6 +1210,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
 
         aRect.offset(nx, ny);
         updateViewBitmapRect(aRect);
+        publishViewport();
         Log.d("zwt", "after scale target rect  - " + mShowBitmapRect.toShortString());
 
         mPhotoView.callPostInvalidate();
@@ -723,6 +1228,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         }
 
         if (smooth) {
+            beginTransientTransform();
             mLastAnimatedValue = 1f;
             ObjectAnimator.ofFloat(1f, dest);
             mValueAnimator = ValueAnimator.ofFloat(1f, dest);
@@ -746,11 +1252,13 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
 
                 @Override
                 public void onAnimationEnd(Animator animation) {
+                    endTransientTransform();
                     updateSampleSize();
                 }
 
                 @Override
                 public void onAnimationCancel(Animator animation) {
+                    endTransientTransform();
                     updateSampleSize();
                 }
 
@@ -844,7 +1352,7 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
     @Override
     public boolean isNotAvailable() {
         return (sIsSettingImage ||
-                (mSourceBitmap == null && mBitmapRegionDecoder == null) ||
+                mRegionDecoder == null ||
                 mOriginImageRect.width() <= 0 || mOriginImageRect.height() <= 0);
     }
 
@@ -888,203 +1396,566 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
             return;
         }
         mSampleSize = sampleSize;
+        publishViewport();
         mPhotoView.callPostInvalidate();
     }
 
     @Override
-    public void destroy() {
-        if (mLoadingThread != null) {
-            mLoadingThread.quit();
-        }
-        mLoadingThread = null;
-        if (mSourceBitmapCacheFile != null) {
-            mSourceBitmapCacheFile.delete(); // 删除临时文件
+    public void beginTransientTransform() {
+        if (isNotAvailable() || mTransient) {
+            return;
         }
-        recycleAll();
 
-        mPhotoView.callPostInvalidate();
+        // 保证快照与当前 Rect 一致
+        publishViewport();
+        mTransient = true;
+        publishViewport();
     }
 
-    /**
-     * 将原图解析出一块 bitmap
-     */
-    private Bitmap decodeRectBitmap(Rect rect, int sampleSize) {
-        if (rect == null || !mOriginImageRect.contains(rect)) {
-            return null;
+    @Override
+    public void endTransientTransform() {
+        if (!mTransient) {
+            return;
         }
 
-        synchronized (mDecodeSyncLock) {
-            if (mSourceBitmap != null) {
-                try {
-                    checkRectSize(rect);
-                    return Bitmap.createBitmap(mSourceBitmap, rect.left, rect.top, rect.width(), rect.height());
-                } catch (OutOfMemoryError exp) {
-                    mPhotoView.onSetImageFinished(null, false, null);
-                    return null;
-                }
-            } else if (mBitmapRegionDecoder != null && !mBitmapRegionDecoder.isRecycled()) {
-                BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
-                tmpOptions.inPreferredConfig = mBitmapConfig;
-                tmpOptions.inSampleSize = sampleSize;
-                tmpOptions.inJustDecodeBounds = false;
+        mTransient = false;
+        publishViewport();
+        mPhotoView.callPostInvalidate();
+    }
 
-                return mBitmapRegionDecoder.decodeRegion(rect, tmpOptions);
-            }
+    @Override
+    public void setScrollCacheEnabled(boolean enabled) {
+        if ((mBackBuffer != null) == enabled) {
+            return;
         }
 
-        return null;
-    }
-
-    private void checkRectSize(Rect rect) {
-        if (rect.right > mSourceBitmap.getWidth()) {
-            rect.right -= rect.right - mSourceBitmap.getWidth();
+        XPhotoViewBackBuffer buffer = mBackBuffer;
+        mBackBuffer = enabled ? new XPhotoViewBackBuffer(mMemoryOwner) : null;
+        if (buffer != null) {
+            buffer.release();
         }
 
-        if (rect.bottom > mSourceBitmap.getHeight()) {
-            rect.bottom -= rect.bottom - mSourceBitmap.getHeight();
+        // 软件画布不能绘制 HARDWARE bitmap，已解析的高清单元格按新的 Config 重新解析
+        if (enabled && HARDWARE_CONFIG != null && mBitmapGridStrategy != null) {
+            mBitmapGridStrategy.recycleTileGrids(false);
         }
+        mPhotoView.callPostInvalidate();
     }
 
     /**
-     * BitmapUnit 是将 Bitmap 分割为 N * M 个方块后的单个方块单元
-     * - 长期持有当前方块的初始化 bitmap 方便在渲染时提供占用内存较小的 bitmap
-     * - 渲染时优先级  mInitiatedThumbBitmap -> mBitmap
-     * - 若 mBitmap 不存在或 SampleSize 与当前全局 SampleSize 不符则重新 decode
+     * 显示的内容（而不只是位置）改变，滚动缓存需要整体重建
      */
-    private class BitmapUnit {
-        /**
+    private void invalidateContent() {
+        XPhotoViewBackBuffer buffer = mBackBuffer;
+        if (buffer != null) {
+            buffer.invalidate();
+        }
+        mPhotoView.callPostInvalidate();
+    }
+
+    @Override
+    public void setFrameTracer(XPhotoViewFrameTracer tracer) {
+        mFrameTracer = tracer;
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        if (mVisible == visible) {
+            return;
+        }
+
+        mVisible = visible;
+        mMemoryOwner.setFocused(visible);
+        if (visible) {
+            restoreTrimmedMemory();
+            mTileQueue.resume();
+            mPhotoView.callPostInvalidate();
+        } else {
+            mTileQueue.pause();
+        }
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        // 小图不大于一个单元格，没有可以分级释放的内容
+        if (isNotAvailable() || level == XPhotoViewMemoryTrimmer.TRIM_NONE || mSingleBitmap != null) {
+            return;
+        }
+
+        // 滚动缓存和高清单元格随时可以重建，直接释放
+        XPhotoViewBackBuffer buffer = mBackBuffer;
+        if (buffer != null) {
+            buffer.release();
+        }
+
+        boolean dropAll = level >= XPhotoViewMemoryTrimmer.TRIM_PREVIEW
+                || (level >= XPhotoViewMemoryTrimmer.TRIM_HIGH_RES && !mVisible);
+        mBitmapGridStrategy.recycleTileGrids(!dropAll);
+
+        final int lastLevel = mTrimLevel;
+        mTrimLevel = Math.max(mTrimLevel, level);
+        mTrimTime = SystemClock.uptimeMillis();
+        mMainHandler.removeCallbacks(mRestoreRunnable);
+        if (level >= XPhotoViewMemoryTrimmer.TRIM_PREVIEW && lastLevel < XPhotoViewMemoryTrimmer.TRIM_PREVIEW) {
+            mDecodeQueue.post(new Runnable() {
+                @Override
+                public void run() {
+                    buildPreviewBitmap();
+                    mBitmapGridStrategy.recycleThumbGrids();
+                    invalidateContent();
+                }
+            });
+        } else if (level >= XPhotoViewMemoryTrimmer.TRIM_THUMBNAILS && lastLevel < XPhotoViewMemoryTrimmer.TRIM_THUMBNAILS) {
+            mDecodeQueue.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBitmapGridStrategy.shrinkThumbGrids();
+                    invalidateContent();
+                }
+            });
+        }
+        Log.d(TAG, "trimMemory level " + level + " visible " + mVisible);
+    }
+
+    /**
+     * 可见的 View 不必等到隐藏再显示，内存压力解除后在绘制时恢复
+     * 条件：距最近一次释放超过 TRIM_RESTORE_DELAY_MS，且全局预算容得下按初始 SampleSize 解析的整个图集
+     * 可以在绘制线程调用，恢复本身转到 UI 线程
+     */
+    private void checkTrimmedMemory(XPhotoViewViewport viewport) {
+        if (mTrimLevel == XPhotoViewMemoryTrimmer.TRIM_NONE || !mVisible
+                || SystemClock.uptimeMillis() - mTrimTime < TRIM_RESTORE_DELAY_MS) {
+            return;
+        }
+
+        if (mMemoryOwner.hasBudget(XPhotoViewMemoryGovernor.estimateSize(viewport.imageWidth, viewport.imageHeight,
+                viewport.thumbSampleSize, mBitmapConfig))) {
+            mMainHandler.removeCallbacks(mRestoreRunnable);
+            mMainHandler.post(mRestoreRunnable);
+        }
+    }
+
+    /**
+     * View 重新可见或内存压力解除时恢复被缩小或释放的缩略图，高清单元格会在绘制时按需重新解析
+     */
+    private void restoreTrimmedMemory() {
+        int lastLevel = mTrimLevel;
+        mTrimLevel = XPhotoViewMemoryTrimmer.TRIM_NONE;
+        if (lastLevel < XPhotoViewMemoryTrimmer.TRIM_THUMBNAILS || isNotAvailable()) {
+            return;
+        }
+
+        mDecodeQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                mBitmapGridStrategy.restoreThumbUnitBitmap();
+                setPreviewBitmap(null);
+                invalidateContent();
+            }
+        });
+    }
+
+    /**
+     * 以缩略图 4 倍的 SampleSize 作为预览，由已有的缩略图图集缩小得到
+     * 内存紧张时不再读取原图解析；图集尚未解析时没有预览
+     */
+    private void buildPreviewBitmap() {
+        XPhotoViewViewport viewport = mViewport;
+        if (viewport.isEmpty()) {
+            return;
+        }
+
+        int sampleSize = Math.max(1, viewport.thumbSampleSize) * 4;
+        try {
+            setPreviewBitmap(mBitmapGridStrategy.thumbGridsToPreview(viewport, sampleSize));
+        } catch (OutOfMemoryError e) {
+            Log.d(TAG, "preview out of memory");
+        }
+    }
+
+    private synchronized void setPreviewBitmap(Bitmap bitmap) {
+        Bitmap old = mPreviewBitmap;
+        mPreviewBitmap = bitmap;
+        mMemoryOwner.onBitmapReplaced(old, bitmap);
+    }
+
+    @Override
+    public void destroy() {
+        mDecodeQueue.clear();
+        mTileQueue.clear();
+        mMainHandler.removeCallbacks(mRestoreRunnable);
+        if (mSourceBitmapCacheFile != null) {
+            mSourceBitmapCacheFile.delete(); // 删除临时文件
+        }
+        recycleAll();
+
+        XPhotoViewBackBuffer buffer = mBackBuffer;
+        if (buffer != null) {
+            buffer.release();
+        }
+
+        mPhotoView.callPostInvalidate();
+    }
+
+    /**
+     * 将原图解析出一块 bitmap
+     */
+    private Bitmap decodeRectBitmap(Rect rect, int sampleSize) {
+        return decodeRectBitmap(rect, sampleSize, false);
+    }
+
+    /**
+     * 内存不足时逐级降级重试，尽量显示一张稍模糊的图而不是空白
+     * 1. 释放可见区域以外的高清单元格，并要求其他 View 释放，按原参数重试
+     * 2. SampleSize 加倍
+     * 3. 换用更省内存的 Config（不使用 HARDWARE，没有透明通道时使用 RGB_565）
+     * 4. SampleSize 再加倍
+     * 仍然失败才返回 null；降级得到的 bitmap 更小，绘制时拉伸到原来的区域
+     * 降级和失败的次数记入 XPhotoViewMemoryGovernor
+     *
+     * @param tile 是否为高清单元格，API 26+ 解析为 HARDWARE bitmap，否则提前准备纹理
+     */
+    private Bitmap decodeRectBitmap(Rect rect, int sampleSize, boolean tile) {
+        if (rect == null || !mOriginImageRect.contains(rect)) {
+            return null;
+        }
+
+        int sample = sampleSize;
+        boolean hardware = tile && HARDWARE_CONFIG != null && mBackBuffer == null;
+        Bitmap.Config config = mBitmapConfig;
+        for (int step = 0; ; ++step) {
+            try {
+                Bitmap bitmap = decodeRegion(rect, sample, tile, hardware, config);
+                if (bitmap != null && step > 1) {
+                    mMemoryOwner.onDecodeDegraded();
+                    Log.d(TAG, "decode degraded, sample " + sampleSize + " -> " + sample + ", config " + config);
+                }
+                return bitmap;
+            } catch (OutOfMemoryError e) {
+                Log.d(TAG, "decode out of memory, step " + step + " sample " + sample);
+            } catch (RuntimeException e) {
+                // 解析器内部错误（文件损坏、已被关闭等）不重试，这一块保持缩略图
+                Log.e(TAG, "decode region failed " + e.getMessage());
+                mMemoryOwner.onDecodeFailed();
+                return null;
+            }
+
+            if (step == 0) {
+                evictForDecode();
+            } else if (step == 1 || step == 3) {
+                sample <<= 1;
+            } else if (step == 2) {
+                Bitmap.Config cheaper = getCheaperConfig(config);
+                if (cheaper == config && !hardware) {
+                    sample <<= 1;
+                }
+                config = cheaper;
+                hardware = false;
+            } else {
+                mMemoryOwner.onDecodeFailed();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 单次解析，解析器已关闭时返回 null
+     *
+     * @param hardware 是否使用 HARDWARE，否则使用 config
+     */
+    private Bitmap decodeRegion(Rect rect, int sampleSize, boolean tile, boolean hardware, Bitmap.Config config) {
+        mDecoderLock.readLock().lock();
+        try {
+            RegionDecoder decoder = mRegionDecoder;
+            if (decoder == null || decoder.isClosed()) {
+                return null;
+            }
+
+            RegionDecoder source = XPhotoViewDecoderRegistry.unwrap(decoder);
+            if (!tile) {
+                return decoder.decodeRegion(rect, sampleSize, config);
+            }
+
+            // BitmapRegionDecoder 可以直接解析为 HARDWARE，其他实现可能需要在软件 Canvas 上绘制，解析后再拷贝
+            boolean direct = hardware && source instanceof DefaultRegionDecoder;
+            Bitmap bitmap = measureDecodeRegion(decoder, source, rect, sampleSize, direct ? HARDWARE_CONFIG : config);
+            if (bitmap != null && hardware && !direct) {
+                Bitmap copy = bitmap.copy(HARDWARE_CONFIG, false);
+                if (copy != null) {
+                    bitmap = copy;
+                }
+            }
+            if (bitmap != null && !hardware) {
+                bitmap.prepareToDraw();
+            }
+            return bitmap;
+        } finally {
+            mDecoderLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 解析高清单元格，SampleSize 为 1 时同时记录耗时
+     * - 单元格边长及预取圈数按 SampleSize 为 1 的解析速度估算，缩略图、预览及中间层每个输出像素要读取更多原图像素，不记录
+     * - 只记录 BitmapRegionDecoder 真正进行的解析：内存图片、预切片的金字塔读取及共享解析的等待者都不代表本机的解析速度
+     *
+     * @param source 共享句柄背后真正的解析器
+     */
+    private Bitmap measureDecodeRegion(RegionDecoder decoder, RegionDecoder source, Rect rect, int sampleSize, Bitmap.Config config) {
+        if (sampleSize != 1 || !(source instanceof DefaultRegionDecoder)) {
+            return decoder.decodeRegion(rect, sampleSize, config);
+        }
+
+        long start = System.nanoTime();
+        Bitmap bitmap = decoder.decodeRegion(rect, sampleSize, config);
+        if (bitmap != null && !XPhotoViewDecoderRegistry.isWaitedDecode(decoder)) {
+            mProfiler.record((long) bitmap.getWidth() * bitmap.getHeight(), System.nanoTime() - start);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 降级时使用的 Config
+     * 可能有透明通道的图片保持 ARGB_8888，否则丢掉透明通道会变成黑底
+     */
+    private Bitmap.Config getCheaperConfig(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888 && !mHasAlpha) {
+            return Bitmap.Config.RGB_565;
+        }
+        return config;
+    }
+
+    /**
+     * 解析时内存不足，在解析线程中释放本 View 可见区域以外的高清单元格，并要求其他 View 释放
+     * 被释放的 bitmap 没有了引用，重试前的 GC 即可回收
+     */
+    private void evictForDecode() {
+        mBitmapGridStrategy.recycleTileGrids(true);
+        mMemoryOwner.reclaimOthers();
+    }
+
+    /**
+     * BitmapUnit 是将 Bitmap 分割为 N * M 个方块后的单个方块单元
+     * - 缩略图统一保存在 XPhotoViewThumbAtlas 中，单元只持有高清 bitmap
+     * - 渲染时优先级  mBitmap -> 图集中的缩略图
+     * - 若 mBitmap 不存在或 SampleSize 与当前全局 SampleSize 不符则重新 decode
+     * - 会被 UI 线程和多个解析线程同时访问，状态均为原子变量或 volatile
+     */
+    private class BitmapUnit {
+        /**
          * 是否正在加载 bitmap
          */
-        private boolean mIsLoading = false;
+        private final AtomicBoolean mIsLoading = new AtomicBoolean(false);
 
         /**
          * 当前 bitmap 的 SampleSize
          * 如果此时的 SampleSize 和全局的 SampleSize 不相等，则需要重新 decode 一次
          */
-        int mCurSampleSize = 0;
+        final AtomicInteger mCurSampleSize = new AtomicInteger(0);
 
         /**
          * 目前的 mBitmap
+         * 可以直接读取，赋值必须通过 setBitmap 以便内存预算记账
          */
-        Bitmap mBitmap = null;
+        volatile Bitmap mBitmap = null;
 
         /**
-         * 初始化时的缩略图 bitmap
+         * 已从索引中移除，之后解析完成的 bitmap 直接丢弃
          */
-        Bitmap mInitiatedThumbBitmap = null;
+        private boolean mDetached = false;
 
         /**
-         * 这里回收所有的 bitmap
+         * 当前 mBitmap 是否已经画过，没画过就被替换或回收的记为浪费的解析
          */
-        private void recycleMemory() {
-            mBitmap = null;
-            mInitiatedThumbBitmap = null;
-            mCurSampleSize = 0;
+        volatile boolean mDrawn = false;
+
+        private synchronized void setBitmap(Bitmap bitmap) {
+            if (mDetached && bitmap != null) {
+                mMemoryOwner.onDecodeWasted();
+                return;
+            }
+
+            Bitmap old = mBitmap;
+            if (old != null && old != bitmap && !mDrawn) {
+                mMemoryOwner.onDecodeWasted();
+            }
+            mBitmap = bitmap;
+            mDrawn = false;
+            mMemoryOwner.onBitmapReplaced(old, bitmap);
         }
 
         /**
-         * 这里只回收正常的 bitmap, 不回收缩略图的 bitmap
+         * 从索引中移除时回收所有的 bitmap
          */
-        private void recycle() {
-            mBitmap = null;
-            mCurSampleSize = mThumbSampleSize;
+        private synchronized void recycleMemory() {
+            setBitmap(null);
+            mDetached = true;
+            mCurSampleSize.set(0);
+            mIsLoading.set(false);
         }
     }
 
     /**
      * 图片网格化解析策略
-     * 初始化时将原图以 View 尺寸切割为 N * M 个方块并解析为 N * M 个缩略图保存在 mGrids中
+     * 原图以 cellSize 切割为 N * M 个方块，缩略图整体保存在图集中
+     * 高清单元格只在被绘制到时才创建，保存在稀疏索引里，远离可见区域后从索引中移除
+     * 因此 10 万 * 10 万像素的图片也只持有可见区域附近的几十个单元
      */
-    private class BitmapGridStrategy {
+    private class BitmapGridStrategy implements XPhotoViewBackBuffer.Renderer {
 
         /**
-         * 总共的单元格数
+         * 已创建的单元格，(行, 列) -> BitmapUnit
+         * 由 UI 线程和解析线程（重建网格时）共同访问，所有读写都在 synchronized (mUnits) 中
+         * 解析线程只持有单元本身，不访问索引
          */
-        private int mGridHeight = 0;
-        private int mGridWidth = 0;
+        private final XPhotoViewTileIndex<BitmapUnit> mUnits = new XPhotoViewTileIndex<>();
 
         /**
-         * 所有的单元格
+         * 缩略图图集，重建网格或 View 大小改变时整体替换，替换在 synchronized (this) 中进行
          */
-        private BitmapUnit[][] mGrids = null;
+        private volatile XPhotoViewThumbAtlas mThumbAtlas = null;
 
         private void initializeBitmapGrid() {
-            if (mGrids != null) {
-                recycleAllGrids();
-            }
+            recycleAllGrids();
 
-            int vw = mOriginViewRect.width();
-            int vh = mOriginViewRect.height();
-
-            int iw = mOriginImageRect.width();
-            int ih = mOriginImageRect.height();
-
-            // 以原图为蓝本，View 为可视窗口进行蓝本切割 （ / 加 % 的完整倍数，不满 1 的以 1 计）
-            mGridHeight = ih / vh + (ih % vh == 0 ? 0 : 1);
-            mGridWidth = iw / vw + (iw % vw == 0 ? 0 : 1);
-
-            mGrids = new BitmapUnit[mGridHeight][mGridWidth];
-            for (int i = 0; i < mGridHeight; ++i) {
-                for (int j = 0; j < mGridWidth; ++j) {
-                    mGrids[i][j] = new BitmapUnit();
-                    mGrids[i][j].mCurSampleSize = mSampleSize;
-                }
+            XPhotoViewViewport viewport = mViewport;
+            XPhotoViewThumbAtlas atlas = new XPhotoViewThumbAtlas(viewport, viewport.thumbSampleSize, mMemoryOwner);
+            synchronized (this) {
+                mThumbAtlas = atlas;
             }
 
             // 打印行列数
-            Log.d(TAG, "Grid row " + mGrids.length);
-            if (mGrids.length > 0) {
-                Log.d(TAG, "Grid column " + mGrids[0].length);
+            Log.d(TAG, "Grid row " + viewport.gridRows);
+            Log.d(TAG, "Grid column " + viewport.gridCols);
+
+            // 预加载的图集分页一致则直接接管，不需要再解析缩略图
+            XPhotoViewThumbAtlas prepared = setPreparedThumbAtlas(null);
+            if (prepared != null) {
+                boolean adopted = atlas.adopt(prepared);
+                prepared.recycle();
+                if (adopted) {
+                    Log.d(TAG, "thumbnail atlas adopted from preloader");
+                    onSetImageFinished(true);
+                    return;
+                }
             }
 
             // 异步加载缩略图
-            if (mLoadingThread.isAlive()) {
-                mLoadingHandler.post(mDecodeThumbRunnable);
-            }
+            mDecodeQueue.post(mDecodeThumbRunnable);
         }
 
         Runnable mDecodeThumbRunnable = new Runnable() {
             @Override
             public void run() {
                 decodeThumbUnitBitmap();
-                onSetImageFinished(true);
+
+                // 降级后仍然一页都解析不出来，才算失败
+                XPhotoViewThumbAtlas atlas = mThumbAtlas;
+                onSetImageFinished(atlas != null && atlas.isReady());
             }
         };
 
+        /**
+         * View 大小改变后调整网格
+         * 单元格与 View 大小无关，高清单元格原样保留，离开可见区域的在下次绘制时回收
+         * 缩略图 SampleSize 没变时图集也原样保留，变了则在后台解析新的图集，期间继续画旧的
+         */
+        private void relayout(int oldThumbSampleSize) {
+            final XPhotoViewViewport viewport = mViewport;
+            final XPhotoViewThumbAtlas old = mThumbAtlas;
+            if (old == null || viewport.thumbSampleSize == oldThumbSampleSize) {
+                return;
+            }
+
+            mDecodeQueue.post(new Runnable() {
+                @Override
+                public void run() {
+                    XPhotoViewThumbAtlas atlas = new XPhotoViewThumbAtlas(viewport, viewport.thumbSampleSize, mMemoryOwner);
+                    buildThumbAtlas(atlas, viewport.thumbSampleSize);
+
+                    // 解析期间重新设置了图片或再次改变了大小，新图集作废
+                    boolean replaced;
+                    synchronized (BitmapGridStrategy.this) {
+                        replaced = mThumbAtlas == old;
+                        if (replaced) {
+                            mThumbAtlas = atlas;
+                        }
+                    }
+
+                    if (replaced) {
+                        old.recycle();
+                        invalidateContent();
+                    } else {
+                        atlas.recycle();
+                    }
+                }
+            });
+        }
+
         /**
          * 解码为缩略图的 bitmap
          */
         private void decodeThumbUnitBitmap() {
-            for (int n = 0; n < mGridHeight; ++n) {
-                for (int m = 0; m < mGridWidth; ++m) {
-                    Rect rect = getImageUnitRect(n, m);
-                    if (rect != null) {
-                        mGrids[n][m].mCurSampleSize = mSampleSize;
-                        mGrids[n][m].mInitiatedThumbBitmap = decodeRectBitmap(rect, mGrids[n][m].mCurSampleSize);
-                    }
+            buildThumbAtlas(mThumbAtlas, mViewport.thumbSampleSize);
+        }
+
+        /**
+         * 逐页解析缩略图图集，每页只进入 RegionDecoder 一次，不再按单元格逐个解析
+         */
+        private void buildThumbAtlas(XPhotoViewThumbAtlas atlas, int sampleSize) {
+            if (atlas == null) {
+                return;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            for (int i = 0; i < atlas.getPageCount(); ++i) {
+                Rect rect = atlas.getPage(i).imageRect;
+                if (!rect.isEmpty()) {
+                    atlas.setPageBitmap(i, decodeRectBitmap(rect, sampleSize));
                 }
             }
+
+            Log.d(TAG, "thumbnail atlas " + atlas.getPageCount() + " pages, " + (SystemClock.uptimeMillis() - start) + "ms");
         }
 
         /**
-         * 获取 bitmap
+         * 取出单元格，不存在时创建
+         * 新建的单元 SampleSize 为 0，表示还没有高清 bitmap，绘制时即会触发高清解析
          */
-        private Bitmap getGridBitmap(final int n, final int m) {
-            if (isValidGrid(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
-                if (mSourceBitmap != null) {
-                    return unit.mInitiatedThumbBitmap;
-                }
+        private BitmapUnit obtainUnit(XPhotoViewViewport viewport, int n, int m) {
+            if (!isValidGrid(viewport, n, m)) {
+                return null;
+            }
 
-                if (mSampleSize == mThumbSampleSize) {
-                    return unit.mInitiatedThumbBitmap;
+            synchronized (mUnits) {
+                BitmapUnit unit = mUnits.get(n, m);
+                if (unit == null) {
+                    unit = new BitmapUnit();
+                    mUnits.put(n, m, unit);
                 }
+                return unit;
+            }
+        }
 
-                if (unit.mCurSampleSize != mSampleSize) {
-                    loadUnitBitmap(n, m);
+        /**
+         * 获取 bitmap
+         *
+         * @param draw 返回的 bitmap 将被绘制，用于统计浪费的解析
+         */
+        private Bitmap getGridBitmap(XPhotoViewViewport viewport, final int n, final int m, boolean draw) {
+            BitmapUnit unit = obtainUnit(viewport, n, m);
+            if (unit != null) {
+                if (unit.mCurSampleSize.get() != viewport.sampleSize) {
+                    loadUnitBitmap(unit, viewport, n, m);
                 }
 
-                return (unit.mBitmap != null && !unit.mBitmap.isRecycled()) ? unit.mBitmap : unit.mInitiatedThumbBitmap;
+                Bitmap bitmap = unit.mBitmap;
+                if (bitmap != null && !bitmap.isRecycled()) {
+                    if (draw) {
+                        unit.mDrawn = true;
+                    }
+                    return bitmap;
+                }
             }
 
             return null;
@@ -1093,106 +1964,147 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
         /**
          * 异步就加载单元格 bitmap
          */
-        private void loadUnitBitmap(final int n, final int m) {
-            if (mSampleSize != mThumbSampleSize && isValidGrid(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
-                if (unit.mIsLoading) {
+        private void loadUnitBitmap(final BitmapUnit unit, XPhotoViewViewport viewport, final int n, final int m) {
+            if (viewport.sampleSize != viewport.thumbSampleSize) {
+                if (!unit.mIsLoading.compareAndSet(false, true)) {
                     return;
                 }
-                unit.mIsLoading = true;
 
-                mLoadingHandler.post(new Runnable() {
+                mTileQueue.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (isValidGrid(n, m)) {
-                            decodeVisibleUnitBitmap(n, m);
-                            mGrids[n][m].mIsLoading = false;
-                            if (mGrids[n][m].mCurSampleSize != mSampleSize) {
-                                return;
-                            }
-                            mPhotoView.callPostInvalidate();
-                        }
+                        decodeVisibleUnitBitmap(unit, n, m);
+                        unit.mIsLoading.set(false);
+                        onUnitBitmapChanged(unit, n, m);
                     }
                 });
             }
         }
 
+        /**
+         * 单元格的 bitmap 更新后重绘该单元格
+         */
+        private void onUnitBitmapChanged(BitmapUnit unit, int n, int m) {
+            XPhotoViewViewport viewport = mViewport;
+            if (unit.mCurSampleSize.get() != viewport.sampleSize) {
+                return;
+            }
+
+            XPhotoViewBackBuffer buffer = mBackBuffer;
+            if (buffer != null) {
+                buffer.invalidate(viewport.getShowBitmapUnit(n, m));
+            }
+            mPhotoView.callPostInvalidate();
+        }
+
         /**
          * 回收所有的单元格
          */
         private void recycleAllGrids() {
-            for (int i = 0; i < mGridHeight; ++i) {
-                for (int j = 0; j < mGridWidth; ++j) {
-                    mGrids[i][j].recycleMemory();
+            synchronized (mUnits) {
+                for (int i = 0; i < mUnits.capacity(); ++i) {
+                    BitmapUnit unit = mUnits.valueAt(i);
+                    if (unit != null) {
+                        unit.recycleMemory();
+                    }
                 }
+                mUnits.clear();
+            }
+
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            if (atlas != null) {
+                atlas.recycle();
             }
         }
 
         /**
-         * 判断是否为有效的单元格
+         * 释放高清单元格
+         *
+         * @param keepVisible 是否保留可见区域内的单元格
          */
-        private boolean isValidGrid(int n, int m) {
-            return n >= 0 && n < mGridHeight && m >= 0 && m < mGridWidth;
+        private void recycleTileGrids(boolean keepVisible) {
+            Rect visible = mViewport.getVisibleGrid();
+            if (keepVisible) {
+                removeUnitsOutside(visible.top, visible.left, visible.bottom, visible.right);
+            } else {
+                removeUnitsOutside(0, 0, -1, -1);
+            }
         }
 
         /**
-         * 得出原图的单元格
+         * 从索引中移除 [sn, en] * [sm, em] 以外的单元格并回收其 bitmap
+         * 先收集再删除，删除会移动探测链上的元素，不能边遍历边删
          */
-        private Rect getImageUnitRect(int n, int m) {
-            if (n < 0 || n >= mGridHeight || m < 0 || m >= mGridWidth) {
-                return null;
-            }
-
-            int vw = mOriginViewRect.width();
-            int vh = mOriginViewRect.height();
-
-            int iw = mOriginImageRect.width();
-            int ih = mOriginImageRect.height();
-
-            int left = Math.min(iw, m * vw);
-            int right = Math.min(iw, left + vw);
+        private void removeUnitsOutside(int sn, int sm, int en, int em) {
+            synchronized (mUnits) {
+                long[] keys = null;
+                int count = 0;
+                for (int i = 0; i < mUnits.capacity(); ++i) {
+                    long key = mUnits.keyAt(i);
+                    if (XPhotoViewTileIndex.isEmptyKey(key)) {
+                        continue;
+                    }
 
-            int top = Math.min(ih, n * vh);
-            int bottom = Math.min(ih, top + vh);
+                    int n = XPhotoViewTileIndex.rowOf(key);
+                    int m = XPhotoViewTileIndex.colOf(key);
+                    if (n < sn || n > en || m < sm || m > em) {
+                        if (keys == null) {
+                            keys = new long[mUnits.size()];
+                        }
+                        keys[count++] = key;
+                    }
+                }
 
-            if (left == right || top == bottom) {
-                return null;
+                for (int i = 0; i < count; ++i) {
+                    BitmapUnit unit = mUnits.remove(XPhotoViewTileIndex.rowOf(keys[i]), XPhotoViewTileIndex.colOf(keys[i]));
+                    if (unit != null) {
+                        unit.recycleMemory();
+                    }
+                }
             }
-
-            return new Rect(left, top, right, bottom);
         }
 
         /**
-         * 获取显示的单元格 rect
-         * 原始图坐标系
+         * 缩略图缩小一半，绘制时仍拉伸到单元格大小
          */
-        private Rect getShowBitmapUnit(int n, int m) {
-            // 取 height 或 width 都可以，等比的
-            float bitmapRatio = mShowBitmapRect.height() * 1f / mOriginImageRect.height();
-            RectF vRect = XPhotoViewUtil.rectMulti(mOriginViewRect, bitmapRatio);
-
-            float vw = vRect.width();
-            float vh = vRect.height();
-
-            float sWidth = mShowBitmapRect.width();
-            float sHeight = mShowBitmapRect.height();
-
-            float left = Math.min(m * vw, sWidth);
-            float right = Math.min(left + vw, sWidth);
+        private void shrinkThumbGrids() {
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            if (atlas != null) {
+                atlas.shrink();
+            }
+        }
 
-            float top = Math.min(n * vh, sHeight);
-            float bottom = Math.min(top + vh, sHeight);
+        /**
+         * 由缩略图图集缩小得到全图预览，图集尚未解析时返回 null
+         */
+        private Bitmap thumbGridsToPreview(XPhotoViewViewport viewport, int sampleSize) {
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            return atlas == null ? null
+                    : atlas.toPreview(viewport.imageWidth, viewport.imageHeight, sampleSize, mBitmapConfig);
+        }
 
-            return new Rect((int) left, (int) top, (int) right, (int) bottom);
+        /**
+         * 释放所有缩略图，只剩 mPreviewBitmap
+         */
+        private void recycleThumbGrids() {
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            if (atlas != null) {
+                atlas.recycle();
+            }
         }
 
         /**
-         * 判断是否是可见的单元格
+         * 按初始的缩略图 SampleSize 重新解析缩略图，不影响高清单元格的状态
          */
-        private boolean isVisibleGrid(int n, int m) {
-            Rect v = getVisibleGrid();
+        private void restoreThumbUnitBitmap() {
+            buildThumbAtlas(mThumbAtlas, mViewport.thumbSampleSize);
+        }
 
-            return n >= v.top && n <= v.bottom && m >= v.left && m <= v.right;
+        /**
+         * 判断是否为有效的单元格
+         */
+        private boolean isValidGrid(XPhotoViewViewport viewport, int n, int m) {
+            return n >= 0 && n < viewport.gridRows && m >= 0 && m < viewport.gridCols;
         }
 
         /**
@@ -1201,15 +2113,6 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
          * @param visible 可见区域
          */
         private void recycleInvisibleGrids(Rect visible) {
-            if (mGrids == null) {
-                return;
-            }
-
-            int sn = visible.top;
-            int sm = visible.left;
-            int en = visible.bottom;
-            int em = visible.right;
-
             /**
              * 如果上一次有不可见的，并距离可见区域 > 1 的，就释放掉
              * +--+--+--+--+--+
@@ -1220,121 +2123,247 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
              * |XX|XX|XX|XX|XX|
              * +--+--+--+--+--+
              * XX 部分就是可以被释放掉的区域
+             * 只遍历索引中已创建的单元，与原图大小无关
              */
-            int mn = 1;
-            for (int i = 0; i < mGridHeight; ++i) {
-                for (int j = 0; j < mGridWidth; ++j) {
-                    if (sn - i >= mn || i - en >= mn || sm - j >= mn || j - em >= mn) {
-                        mGrids[i][j].recycle();
+            removeUnitsOutside(visible.top, visible.left, visible.bottom, visible.right);
+        }
+
+        /**
+         * 画出可见的几个格子
+         *
+         * @param viewport 本帧读取的视口快照，整帧使用同一个
+         */
+        private boolean drawVisibleGrid(Canvas canvas, XPhotoViewViewport viewport) {
+            if (mRegionDecoder == null || viewport.isEmpty()) {
+                return false;
+            }
+
+            XPhotoViewFrameTracer tracer = mFrameTracer;
+            long start = tracer == null ? 0 : System.nanoTime();
+
+            // 获取可见格子所占的行列信息，预取范围内的单元格也保留
+            Rect visibleGridDeterminant = viewport.getVisibleGrid();
+            int prefetchDepth = mPrefetchDepth;
+            Rect prefetchGrid = viewport.getVisibleGrid(prefetchDepth);
+            recycleInvisibleGrids(prefetchGrid);
+
+            // 滚动缓存只重画露出的条带，但所有可见单元格都照常触发加载
+            XPhotoViewBackBuffer buffer = mBackBuffer;
+            if (buffer != null && viewport.sampleSize != viewport.thumbSampleSize) {
+                loadVisibleGrid(viewport, visibleGridDeterminant, null);
+            }
+            if (tracer != null) {
+                tracer.addLookupTime(System.nanoTime() - start);
+            }
+
+            if (buffer == null || !buffer.draw(canvas, viewport, this)) {
+                render(canvas, viewport, null);
+            }
+
+            // 可见单元格之后再排队预取，解析队列先处理可见的
+            if (prefetchDepth > 0 && viewport.sampleSize != viewport.thumbSampleSize) {
+                start = tracer == null ? 0 : System.nanoTime();
+                loadVisibleGrid(viewport, prefetchGrid, visibleGridDeterminant);
+                if (tracer != null) {
+                    tracer.addLookupTime(System.nanoTime() - start);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 触发单元格的加载，不绘制
+         *
+         * @param skip 跳过这个范围内的单元格，可以为 null
+         */
+        private void loadVisibleGrid(XPhotoViewViewport viewport, Rect grid, Rect skip) {
+            for (int n = grid.top; n <= grid.bottom; ++n) {
+                for (int m = grid.left; m <= grid.right; ++m) {
+                    if (skip != null && n >= skip.top && n <= skip.bottom && m >= skip.left && m <= skip.right) {
+                        continue;
                     }
+                    getGridBitmap(viewport, n, m, false);
                 }
             }
         }
 
         /**
-         * 画出可见的几个格子
+         * 绘制预览图、缩略图及可见的高清单元格
+         *
+         * @param clip 只画与之相交的单元格，为 null 时全部绘制
          */
-        private boolean drawVisibleGrid(Canvas canvas) {
-            if ((mSourceBitmap == null && mBitmapRegionDecoder == null) ||
-                    mGrids == null || mOriginImageRect.width() <= 0 || mOriginImageRect.height() <= 0) {
-                return false;
+        @Override
+        public void render(Canvas canvas, XPhotoViewViewport viewport, Rect clip) {
+            // 内存紧张时缩略图被释放，先画一张全图预览垫底
+            Bitmap preview = mPreviewBitmap;
+            if (preview != null) {
+                Rect showRect = new Rect(0, 0, (int) viewport.showWidth, (int) viewport.showHeight);
+                canvas.drawBitmap(preview, null, viewport.toViewCoordinate(showRect), null);
             }
 
-            // 获取可见格子所占的行列信息
-            Rect visibleGridDeterminant = getVisibleGrid();
-            recycleInvisibleGrids(visibleGridDeterminant);
+            // 缩小状态只需要缩略图，图集每页一次 drawBitmap
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            if (viewport.sampleSize == viewport.thumbSampleSize) {
+                if (atlas != null) {
+                    atlas.drawPages(canvas, viewport);
+                }
+                return;
+            }
 
+            Rect visibleGridDeterminant = viewport.getVisibleGrid();
             int sn = visibleGridDeterminant.top;
             int sm = visibleGridDeterminant.left;
             int en = visibleGridDeterminant.bottom;
             int em = visibleGridDeterminant.right;
 
+            // 开启帧追踪时分别统计查找单元格的耗时及绘制、缺失的单元格数
+            XPhotoViewFrameTracer tracer = mFrameTracer;
+            long lookup = 0;
+            int drawn = 0;
+            int missing = 0;
+
             for (int n = sn; n <= en; ++n) {
                 for (int m = sm; m <= em; ++m) {
-                    Rect rect = getShowBitmapUnit(n, m);
-                    Bitmap bitmap = getGridBitmap(n, m);
+                    Rect vRect = viewport.toViewCoordinate(viewport.getShowBitmapUnit(n, m));
+                    if (clip != null && !Rect.intersects(clip, vRect)) {
+                        continue;
+                    }
+
+                    long start = tracer == null ? 0 : System.nanoTime();
+                    Bitmap bitmap = getGridBitmap(viewport, n, m, true);
+                    if (tracer != null) {
+                        lookup += System.nanoTime() - start;
+                    }
+
                     if (bitmap != null) {
-                        Rect vRect = toViewCoordinate(rect);
                         canvas.drawBitmap(bitmap, null, vRect, null);
+                        ++drawn;
+                    } else {
+                        ++missing;
+                        if (atlas != null) {
+                            atlas.drawCell(canvas, viewport, n, m);
+                        }
                     }
                 }
             }
 
-            return true;
+            if (tracer != null) {
+                tracer.addLookupTime(lookup);
+                tracer.addTiles(drawn, missing);
+            }
         }
 
         /**
-         * decode 出一个可见单元的 bitmap
-         * 并保存这个 bitmap 的 sample size
+         * 手势进行中的绘制，viewport 为开始时的快照，画布已经变换到当前位置
+         * - 先整页画缩略图，缩小时露出的区域不会空白
+         * - 只画已经解析好且 SampleSize 相符的单元格，不加载也不回收，每帧的开销与手势进度无关
          */
-        private synchronized void decodeVisibleUnitBitmap(int n, int m) {
-            if (isValidGrid(n, m) && isVisibleGrid(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
+        private boolean drawFrozenGrid(Canvas canvas, XPhotoViewViewport viewport) {
+            if (mRegionDecoder == null) {
+                return false;
+            }
 
-                // 防止二次decode
-                if (unit.mCurSampleSize == mSampleSize) {
-                    return;
-                }
+            Bitmap preview = mPreviewBitmap;
+            if (preview != null) {
+                Rect showRect = new Rect(0, 0, (int) viewport.showWidth, (int) viewport.showHeight);
+                canvas.drawBitmap(preview, null, viewport.toViewCoordinate(showRect), null);
+            }
 
-                unit.recycle();
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            if (atlas != null) {
+                atlas.drawPages(canvas, viewport);
+            }
+            if (viewport.sampleSize == viewport.thumbSampleSize) {
+                return true;
+            }
 
-                Rect rect = getImageUnitRect(n, m);
-                unit.mCurSampleSize = mSampleSize;
-                unit.mBitmap = decodeRectBitmap(rect, unit.mCurSampleSize);
+            Rect visible = viewport.getVisibleGrid();
+            int drawn = 0;
+            int missing = 0;
+            synchronized (mUnits) {
+                for (int n = visible.top; n <= visible.bottom; ++n) {
+                    for (int m = visible.left; m <= visible.right; ++m) {
+                        BitmapUnit unit = mUnits.get(n, m);
+                        Bitmap bitmap = unit == null ? null : unit.mBitmap;
+                        if (bitmap != null && !bitmap.isRecycled() && unit.mCurSampleSize.get() == viewport.sampleSize) {
+                            Rect vRect = viewport.toViewCoordinate(viewport.getShowBitmapUnit(n, m));
+                            canvas.drawBitmap(bitmap, null, vRect, null);
+                            unit.mDrawn = true;
+                            ++drawn;
+                        } else {
+                            ++missing;
+                        }
+                    }
+                }
+            }
+
+            XPhotoViewFrameTracer tracer = mFrameTracer;
+            if (tracer != null) {
+                tracer.addTiles(drawn, missing);
             }
+            return true;
         }
 
         /**
-         * 计算出可见的实际单元格的行列信息 start - end，存入 Rect 是为了存储方便
-         * 即计算从原图抠下来的那块 Bitmap 所涉及的单元格行列信息
-         *
-         * @return Rect (left=sm, top=sn, right=em, bottom=en)
+         * decode 出一个可见（或在预取范围内）单元的 bitmap
+         * 并保存这个 bitmap 的 sample size
+         * 只读取 mViewport 快照，通过 CAS 更新 SampleSize 防止二次 decode，不需要加锁
          */
-        private Rect getVisibleGrid() {
-            // 计算图片压缩比然后将可视部分 rect 转换到原图坐标上，得到原图需要显示的区域 vBRect
-            float ratio = mOriginImageRect.height() / mShowBitmapRect.height();
-            RectF vBRect = XPhotoViewUtil.rectMulti(getVisibleShowBitmapRect(), ratio);
+        private void decodeVisibleUnitBitmap(BitmapUnit unit, int n, int m) {
+            XPhotoViewViewport viewport = mViewport;
+            if (!isValidGrid(viewport, n, m) || !viewport.isVisibleGrid(n, m, mPrefetchDepth)) {
+                return;
+            }
 
-            // 因为 Grid 是将原图以 ViewRect 切割，于是用 ViewRect 再次计算可见 Grid 坐标
-            int sm = (int) (vBRect.left / mOriginViewRect.width());
-            int sn = (int) (vBRect.top / mOriginViewRect.height());
+            int sampleSize = viewport.sampleSize;
 
-            int em = (int) (sm + Math.ceil(vBRect.width() / mOriginViewRect.width()));
-            int en = (int) (sn + Math.ceil(vBRect.height() / mOriginViewRect.height()));
+            // 防止二次decode
+            int curSampleSize = unit.mCurSampleSize.get();
+            if (curSampleSize == sampleSize || !unit.mCurSampleSize.compareAndSet(curSampleSize, sampleSize)) {
+                return;
+            }
 
-            em = Math.min(em, mGridWidth);
-            en = Math.min(en, mGridHeight);
-            return new Rect(sm, sn, em, en);
-        }
-    }
+            unit.setBitmap(null);
+            Rect rect = viewport.getImageUnitRect(n, m);
+            if (rect == null || !mMemoryOwner.request(
+                    XPhotoViewMemoryGovernor.estimateSize(rect.width(), rect.height(), sampleSize,
+                            HARDWARE_CONFIG != null ? HARDWARE_CONFIG : mBitmapConfig))) {
+                // 超出内存预算，退回缩略图，下次绘制时再申请
+                unit.mCurSampleSize.compareAndSet(sampleSize, 0);
+                return;
+            }
 
-    /***
-     * 返回 mViewBitmapRect，左右上下最大值不超过 mShowBitmapRect
-     * @return
-     */
-    private Rect getVisibleShowBitmapRect() {
-        int left = (int) Math.max(mShowBitmapRect.left, mShowBitmapViewRect.left);
-        int right = (int) Math.min(mShowBitmapRect.right, mShowBitmapViewRect.right);
-        int top = (int) Math.max(mShowBitmapRect.top, mShowBitmapViewRect.top);
-        int bottom = (int) Math.min(mShowBitmapRect.bottom, mShowBitmapViewRect.bottom);
+            // 解析较慢的设备先以两倍 SampleSize 解析一张粗略的，尽快替换缩略图
+            if (mDecodeIntermediate && sampleSize * 2 < viewport.thumbSampleSize) {
+                Bitmap coarse = decodeRectBitmap(rect, sampleSize * 2, true);
+                if (coarse != null) {
+                    mMemoryOwner.onTileDecoded();
+                }
+                if (unit.mCurSampleSize.get() != sampleSize) {
+                    if (coarse != null) {
+                        mMemoryOwner.onDecodeWasted();
+                    }
+                    return;
+                }
+                unit.setBitmap(coarse);
+                onUnitBitmapChanged(unit, n, m);
+            }
 
-        return new Rect(left, top, right, bottom);
-    }
+            Bitmap bitmap = decodeRectBitmap(rect, sampleSize, true);
+            if (bitmap == null) {
+                // 降级也失败了，放开占用，内存释放后下次绘制时再解析
+                unit.mCurSampleSize.compareAndSet(sampleSize, 0);
+                return;
+            }
+            mMemoryOwner.onTileDecoded();
 
-    /**
-     * 坐标转换, bitmap 坐标转换为 view 坐标
-     */
-    private Rect toViewCoordinate(Rect rect) {
-        if (rect == null) {
-            return new Rect();
+            // 解析期间若该单元已被回收或 SampleSize 又变了，则丢弃结果
+            if (unit.mCurSampleSize.get() == sampleSize) {
+                unit.setBitmap(bitmap);
+            } else {
+                mMemoryOwner.onDecodeWasted();
+            }
         }
-
-        int left = rect.left - mShowBitmapViewRect.left;
-        int right = left + rect.width();
-        int top = rect.top - mShowBitmapViewRect.top;
-        int bottom = top + rect.height();
-
-        return new Rect(left, top, right, bottom);
     }
 
     /**
@@ -1355,4 +2384,21 @@ class XPhotoViewLinker implements IXPhotoViewLinker {
 
         return new RectF(left, top, right, bottom);
     }
+
+    /**
+     * 绘制用的不可变快照
+     * 手势进行中 viewport 为开始时的视口，transientRect 为 Show Bitmap 在 View 中的当前位置
+     * 其余时候 transientRect 为 null，直接按 viewport 绘制
+     */
+    private static final class DrawState {
+        static final DrawState EMPTY = new DrawState(XPhotoViewViewport.EMPTY, null);
+
+        final XPhotoViewViewport viewport;
+        final RectF transientRect;
+
+        DrawState(XPhotoViewViewport viewport, RectF transientRect) {
+            this.viewport = viewport;
+            this.transientRect = transientRect;
+        }
+    }
 }
@@ -0,0 +1,327 @@
+package com.phoenix.xphotoview;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 进程内所有 XPhotoView 共享的 bitmap 内存预算
+ * - 预算默认为 ActivityManager.getMemoryClass() 的 1/4，可以通过 setBudgetBytes 修改
+ * - 每个 linker 对应一个 Owner，单元格的高清图和缩略图赋值时都要经过 Owner 记账
+ * - 高清单元格解析前先申请：预算内直接批准；超出预算时当前聚焦的 View 仍然批准，并要求其他 View 释放高清单元格；其他 View 拒绝
+ * - 缩略图是显示的底线，只记账不拒绝
+ * - 解析时真正发生 OutOfMemoryError 时，要求其他 View 释放高清单元格，并统计降级和失败的次数
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 所有统计数据都可以在任意线程读取，用于上报
+ */
+public final class XPhotoViewMemoryGovernor {
+
+    private static final String TAG = "XPhotoViewMemoryGovernor";
+
+    /**
+     * 占进程堆上限的比例
+     */
+    private static final int BUDGET_DIVISOR = 4;
+
+    private static volatile XPhotoViewMemoryGovernor sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 持有 bitmap 的 Owner，由 this 保护
+     */
+    private final Set<Owner> mOwners = new HashSet<>();
+
+    private volatile long mBudgetBytes;
+    private volatile long mUsedBytes = 0;
+    private volatile long mPeakBytes = 0;
+    private volatile long mGrantedCount = 0;
+    private volatile long mDeniedCount = 0;
+    private volatile long mDegradedCount = 0;
+    private volatile long mDecodeFailedCount = 0;
+    private volatile long mTileDecodeCount = 0;
+    private volatile long mWastedDecodeCount = 0;
+    private volatile long mAllocatedCount = 0;
+    private volatile long mAllocatedBytes = 0;
+
+    public static XPhotoViewMemoryGovernor getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (XPhotoViewMemoryGovernor.class) {
+                if (sInstance == null) {
+                    sInstance = new XPhotoViewMemoryGovernor(computeDefaultBudget(context));
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private XPhotoViewMemoryGovernor(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        Log.d(TAG, "bitmap budget " + (budgetBytes >> 20) + "MB");
+    }
+
+    private static long computeDefaultBudget(Context context) {
+        long heap = Runtime.getRuntime().maxMemory();
+        if (context != null) {
+            ActivityManager am = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            if (am != null && am.getMemoryClass() > 0) {
+                heap = am.getMemoryClass() * 1024L * 1024L;
+            }
+        }
+        return heap / BUDGET_DIVISOR;
+    }
+
+    /**
+     * 修改预算，例如根据业务场景调大或调小
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = Math.max(0, budgetBytes);
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return 所有 View 当前持有的高清单元格和缩略图字节数
+     */
+    public long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    public long getGrantedCount() {
+        return mGrantedCount;
+    }
+
+    /**
+     * @return 因超出预算而被拒绝的解析次数
+     */
+    public long getDeniedCount() {
+        return mDeniedCount;
+    }
+
+    /**
+     * @return 内存不足时以更大的 SampleSize 或更省内存的 Config 解析成功的次数
+     */
+    public long getDegradedCount() {
+        return mDegradedCount;
+    }
+
+    /**
+     * @return 降级后仍然失败的解析次数
+     */
+    public long getDecodeFailedCount() {
+        return mDecodeFailedCount;
+    }
+
+    /**
+     * @return 高清单元格的解析次数，包括中间层
+     */
+    public long getTileDecodeCount() {
+        return mTileDecodeCount;
+    }
+
+    /**
+     * @return 解析完成后被丢弃（SampleSize 已变、单元格已回收）或者还没画过就被替换的高清单元格个数
+     */
+    public long getWastedDecodeCount() {
+        return mWastedDecodeCount;
+    }
+
+    /**
+     * @return 经过记账的 bitmap 分配次数，包括高清单元格、缩略图及滚动缓存
+     */
+    public long getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return 当前持有 bitmap 的 View 个数
+     */
+    public synchronized int getOwnerCount() {
+        return mOwners.size();
+    }
+
+    Owner newOwner(Runnable reclaim) {
+        return new Owner(reclaim);
+    }
+
+    static long sizeOf(Bitmap bitmap) {
+        return bitmap == null ? 0 : (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * 估算解析出的 bitmap 字节数
+     */
+    static long estimateSize(int width, int height, int sampleSize, Bitmap.Config config) {
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444 ? 2
+                : (config == Bitmap.Config.ALPHA_8 ? 1 : 4);
+        long w = (width + sampleSize - 1) / sampleSize;
+        long h = (height + sampleSize - 1) / sampleSize;
+        return w * h * bytesPerPixel;
+    }
+
+    private synchronized void track(Owner owner, long delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        owner.mBytes += delta;
+        mUsedBytes += delta;
+        mPeakBytes = Math.max(mPeakBytes, mUsedBytes);
+        if (owner.mBytes > 0) {
+            mOwners.add(owner);
+        } else {
+            mOwners.remove(owner);
+        }
+    }
+
+    private boolean request(Owner owner, long bytes) {
+        synchronized (this) {
+            if (mUsedBytes + bytes <= mBudgetBytes) {
+                mGrantedCount++;
+                return true;
+            }
+
+            if (!owner.mFocused) {
+                mDeniedCount++;
+                return false;
+            }
+
+            // 聚焦的 View 优先，其他 View 释放高清单元格
+            mGrantedCount++;
+        }
+
+        reclaimOthers(owner);
+        return true;
+    }
+
+    /**
+     * 在 UI 线程中要求除 owner 以外所有不聚焦的 View 释放高清单元格
+     */
+    private void reclaimOthers(Owner owner) {
+        ArrayList<Owner> reclaim = null;
+        synchronized (this) {
+            for (Owner other : mOwners) {
+                if (other != owner && !other.mFocused) {
+                    if (reclaim == null) {
+                        reclaim = new ArrayList<>();
+                    }
+                    reclaim.add(other);
+                }
+            }
+        }
+
+        if (reclaim != null) {
+            for (Owner other : reclaim) {
+                mMainHandler.post(other.mReclaim);
+            }
+        }
+    }
+
+    /**
+     * 单个 View 的记账对象
+     */
+    final class Owner {
+
+        /**
+         * 由 XPhotoViewMemoryGovernor.this 保护
+         */
+        private long mBytes = 0;
+        private volatile boolean mFocused = false;
+
+        /**
+         * 在 UI 线程执行，释放高清单元格
+         */
+        private final Runnable mReclaim;
+
+        private Owner(Runnable reclaim) {
+            mReclaim = reclaim;
+        }
+
+        void setFocused(boolean focused) {
+            mFocused = focused;
+        }
+
+        /**
+         * 记录一次 bitmap 替换
+         */
+        void onBitmapReplaced(Bitmap oldBitmap, Bitmap newBitmap) {
+            if (newBitmap != null && newBitmap != oldBitmap) {
+                synchronized (XPhotoViewMemoryGovernor.this) {
+                    mAllocatedCount++;
+                    mAllocatedBytes += sizeOf(newBitmap);
+                }
+            }
+            track(this, sizeOf(newBitmap) - sizeOf(oldBitmap));
+        }
+
+        /**
+         * 解析高清单元格前申请
+         *
+         * @return false 表示超出预算，本次不解析
+         */
+        boolean request(long bytes) {
+            return XPhotoViewMemoryGovernor.this.request(this, bytes);
+        }
+
+        /**
+         * @return 全局预算是否还容得下 bytes，只查询不记账
+         */
+        boolean hasBudget(long bytes) {
+            return mUsedBytes + bytes <= mBudgetBytes;
+        }
+
+        /**
+         * 解析时发生 OutOfMemoryError，要求其他 View 释放高清单元格
+         */
+        void reclaimOthers() {
+            XPhotoViewMemoryGovernor.this.reclaimOthers(this);
+        }
+
+        void onDecodeDegraded() {
+            synchronized (XPhotoViewMemoryGovernor.this) {
+                mDegradedCount++;
+            }
+        }
+
+        void onDecodeFailed() {
+            synchronized (XPhotoViewMemoryGovernor.this) {
+                mDecodeFailedCount++;
+            }
+        }
+
+        void onTileDecoded() {
+            synchronized (XPhotoViewMemoryGovernor.this) {
+                mTileDecodeCount++;
+            }
+        }
+
+        void onDecodeWasted() {
+            synchronized (XPhotoViewMemoryGovernor.this) {
+                mWastedDecodeCount++;
+            }
+        }
+
+        long getBytes() {
+            synchronized (XPhotoViewMemoryGovernor.this) {
+                return mBytes;
+            }
+        }
+    }
+}
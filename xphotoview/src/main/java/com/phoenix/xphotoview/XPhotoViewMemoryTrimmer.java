@@ -0,0 +1,113 @@
+package com.phoenix.xphotoview;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 响应系统内存压力，分级释放所有 XPhotoView 持有的 bitmap
+ * - 进程内只向 Application 注册一次 ComponentCallbacks2
+ * - View attach 时登记 linker，detach 时注销，弱引用持有不影响回收
+ * - 每一级都可以恢复：View 再次可见时，或者可见的 View 在压力解除后绘制时，重新加载被释放的内容
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 分级：
+ * - TRIM_PREFETCH   释放可见区域以外预留的高清单元格
+ * - TRIM_HIGH_RES   不可见的 View 释放全部高清单元格，可见的 View 同 TRIM_PREFETCH
+ * - TRIM_THUMBNAILS 缩略图缩小一半
+ * - TRIM_PREVIEW    每个 View 只保留一张很小的全图预览
+ */
+final class XPhotoViewMemoryTrimmer implements ComponentCallbacks2 {
+
+    private static final String TAG = "XPhotoViewMemoryTrimmer";
+
+    static final int TRIM_NONE = 0;
+    static final int TRIM_PREFETCH = 1;
+    static final int TRIM_HIGH_RES = 2;
+    static final int TRIM_THUMBNAILS = 3;
+    static final int TRIM_PREVIEW = 4;
+
+    private static XPhotoViewMemoryTrimmer sInstance;
+
+    /**
+     * 只在 UI 线程访问
+     */
+    private final Map<IXPhotoViewLinker, Boolean> mLinkers = new WeakHashMap<>();
+
+    private XPhotoViewMemoryTrimmer() {
+    }
+
+    /**
+     * 只在 UI 线程调用
+     */
+    static XPhotoViewMemoryTrimmer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new XPhotoViewMemoryTrimmer();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                context.getApplicationContext().registerComponentCallbacks(sInstance);
+            }
+        }
+        return sInstance;
+    }
+
+    void register(IXPhotoViewLinker linker) {
+        mLinkers.put(linker, Boolean.TRUE);
+    }
+
+    void unregister(IXPhotoViewLinker linker) {
+        mLinkers.remove(linker);
+    }
+
+    /**
+     * 将系统的 trim level 映射为释放的级别
+     */
+    static int toTrimLevel(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            return TRIM_PREVIEW;
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            return TRIM_THUMBNAILS;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TRIM_HIGH_RES;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return TRIM_PREFETCH;
+        }
+        return TRIM_NONE;
+    }
+
+    private void dispatchTrim(int trimLevel) {
+        if (trimLevel == TRIM_NONE) {
+            return;
+        }
+
+        // trimMemory 中不会修改登记表，拷贝一份只是避免弱引用被清理时影响遍历
+        ArrayList<IXPhotoViewLinker> linkers = new ArrayList<>(mLinkers.keySet());
+        Log.d(TAG, "trim level " + trimLevel + ", views " + linkers.size());
+        for (IXPhotoViewLinker linker : linkers) {
+            if (linker != null) {
+                linker.trimMemory(trimLevel);
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        dispatchTrim(toTrimLevel(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        dispatchTrim(TRIM_PREVIEW);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,315 @@
+package com.phoenix.xphotoview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 提前准备即将显示的图片，例如 ViewPager 的下一页
+ * - prepare 在解析线程中打开 RegionDecoder、读取宽高、选择 Config，并按目标 View 大小解析缩略图图集
+ * - 之后以同一个文件调用 XPhotoView.setImage(File) 时直接接管准备好的解析器和缩略图，第一帧就有内容
+ * - 目标 View 大小与实际不一致时只复用解析器，缩略图照常重新解析
+ * - 文件在准备之后被修改（长度或修改时间变化）则不复用
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * 限制：
+ * - 只支持 JPEG / PNG / WebP 及预切片容器，GIF 和小图本身已经足够快，不做准备
+ * - 始终使用默认的 RegionDecoder，View 设置了自定义工厂时不要使用预加载
+ * - 最多保留 MAX_PREPARED 张，超出时丢弃最久未使用的；内存预算不足时全部丢弃
+ */
+public final class XPhotoViewPreloader {
+
+    private static final String TAG = "XPhotoViewPreloader";
+
+    private static final int MAX_PREPARED = 3;
+
+    private static volatile XPhotoViewPreloader sInstance;
+
+    private final Context mContext;
+    private final XPhotoViewDecodeScheduler.TaskQueue mQueue;
+    private final XPhotoViewMemoryGovernor.Owner mMemoryOwner;
+
+    /**
+     * 文件路径 -> 准备结果，按访问顺序排列，由 this 保护
+     */
+    private final LinkedHashMap<String, Prepared> mPrepared = new LinkedHashMap<>(MAX_PREPARED * 2, 0.75f, true);
+
+    public static XPhotoViewPreloader getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (XPhotoViewPreloader.class) {
+                if (sInstance == null) {
+                    sInstance = new XPhotoViewPreloader(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private XPhotoViewPreloader(Context context) {
+        mContext = context;
+        mQueue = XPhotoViewDecodeScheduler.getInstance().newQueue();
+        mMemoryOwner = XPhotoViewMemoryGovernor.getInstance(context).newOwner(new Runnable() {
+            @Override
+            public void run() {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * 准备图片，重复调用同一个文件和大小不会重复解析
+     *
+     * @param viewWidth  将要显示这张图片的 View 宽度
+     * @param viewHeight 将要显示这张图片的 View 高度
+     */
+    public void prepare(File file, int viewWidth, int viewHeight) {
+        if (file == null || !file.exists() || viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+
+        final Prepared prepared = new Prepared(file, viewWidth, viewHeight);
+        ArrayList<Prepared> released = new ArrayList<>();
+        synchronized (this) {
+            Prepared old = mPrepared.get(prepared.mPath);
+            if (old != null && old.isSameSource(file) && old.mViewWidth == viewWidth && old.mViewHeight == viewHeight) {
+                return;
+            }
+
+            if (old != null) {
+                released.add(old);
+            }
+            mPrepared.put(prepared.mPath, prepared);
+
+            Iterator<Map.Entry<String, Prepared>> iterator = mPrepared.entrySet().iterator();
+            while (mPrepared.size() > MAX_PREPARED && iterator.hasNext()) {
+                released.add(iterator.next().getValue());
+                iterator.remove();
+            }
+        }
+
+        for (Prepared p : released) {
+            cancel(p);
+        }
+
+        mQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                load(prepared);
+            }
+        });
+    }
+
+    /**
+     * 放弃某个文件的准备结果
+     */
+    public void cancel(File file) {
+        if (file == null) {
+            return;
+        }
+
+        Prepared prepared;
+        synchronized (this) {
+            prepared = mPrepared.remove(file.getAbsolutePath());
+        }
+        if (prepared != null) {
+            cancel(prepared);
+        }
+    }
+
+    /**
+     * 放弃所有准备结果
+     */
+    public void clear() {
+        ArrayList<Prepared> released;
+        synchronized (this) {
+            released = new ArrayList<>(mPrepared.values());
+            mPrepared.clear();
+        }
+        for (Prepared prepared : released) {
+            cancel(prepared);
+        }
+    }
+
+    /**
+     * 取出已经准备好的结果，取出后由调用者负责释放
+     *
+     * @return 没有准备、尚未完成或文件已被修改时返回 null，此时按正常流程解析
+     */
+    Prepared take(File file) {
+        Prepared prepared;
+        synchronized (this) {
+            prepared = mPrepared.remove(file.getAbsolutePath());
+            if (prepared == null) {
+                return null;
+            }
+
+            if (prepared.mReady && prepared.isSameSource(file)) {
+                return prepared;
+            }
+        }
+
+        // 还在解析或已经过期，View 自己解析，这份结果不再需要
+        cancel(prepared);
+        return null;
+    }
+
+    /**
+     * 已经完成的直接释放，还在解析的由解析线程结束时释放
+     */
+    private void cancel(Prepared prepared) {
+        boolean ready;
+        synchronized (this) {
+            prepared.mCancelled = true;
+            ready = prepared.mReady;
+        }
+        if (ready) {
+            prepared.release();
+        }
+    }
+
+    private void load(Prepared prepared) {
+        if (prepared.mCancelled) {
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        boolean success = false;
+        try {
+            success = prepared.load();
+        } catch (IOException e) {
+            Log.e(TAG, "prepare failed " + e.getMessage());
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "prepare failed, out of memory");
+        }
+
+        boolean cancelled;
+        synchronized (this) {
+            cancelled = prepared.mCancelled || !success;
+            prepared.mReady = !cancelled;
+            if (cancelled && mPrepared.get(prepared.mPath) == prepared) {
+                mPrepared.remove(prepared.mPath);
+            }
+        }
+
+        if (cancelled) {
+            prepared.release();
+            return;
+        }
+        Log.d(TAG, "prepared " + prepared.mPath + " in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * 一张图片的准备结果
+     * 解析完成（mReady）之前只由解析线程访问，之后只读
+     */
+    final class Prepared {
+
+        private final String mPath;
+        private final long mLength;
+        private final long mLastModified;
+        private final int mViewWidth;
+        private final int mViewHeight;
+
+        /**
+         * 由 XPhotoViewPreloader.this 保护，mCancelled 在解析过程中也会无锁读取
+         */
+        private boolean mReady = false;
+        private volatile boolean mCancelled = false;
+
+        private RegionDecoder mDecoder;
+        private Bitmap.Config mConfig;
+        private XPhotoViewThumbAtlas mThumbAtlas;
+
+        private Prepared(File file, int viewWidth, int viewHeight) {
+            mPath = file.getAbsolutePath();
+            mLength = file.length();
+            mLastModified = file.lastModified();
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+        }
+
+        private boolean isSameSource(File file) {
+            return file.length() == mLength && file.lastModified() == mLastModified;
+        }
+
+        /**
+         * 在解析线程中执行
+         *
+         * @return false 表示不需要准备
+         */
+        private boolean load() throws IOException {
+            File file = new File(mPath);
+            XPhotoViewFormat format = XPhotoViewFormat.of(file);
+
+            if (format != XPhotoViewFormat.TILED && format != XPhotoViewFormat.JPEG
+                    && format != XPhotoViewFormat.PNG && format != XPhotoViewFormat.WEBP) {
+                return false;
+            }
+
+            // 与 XPhotoView.setImage(File) 从同一个登记表获取，接管后与其他显示同一文件的 View 共享
+            mDecoder = XPhotoViewDecoderRegistry.getInstance().obtain(file, format, DefaultRegionDecoder.FACTORY);
+            mDecoder.open(null);
+
+            int width = mDecoder.getWidth();
+            int height = mDecoder.getHeight();
+            if (width <= 0 || height <= 0 || XPhotoViewLinker.isSmallImage(mContext, width, height)) {
+                return false;
+            }
+
+            // 与 XPhotoView.setImage(File) 一致：JPEG 直接 RGB_565，其他格式探测透明通道
+            mConfig = format == XPhotoViewFormat.JPEG ? Bitmap.Config.RGB_565 : XPhotoViewLinker.probeBitmapConfig(mDecoder);
+
+            // 与 linker 的初始化使用同样的分页，View 大小一致时图集可以直接接管
+            int sampleSize = XPhotoViewLinker.getThumbSampleSize(width, height, mViewWidth, mViewHeight);
+            XPhotoViewViewport viewport = new XPhotoViewViewport(mViewWidth, mViewHeight, width, height,
+                    0, 0, 0, 0, sampleSize, sampleSize, XPhotoViewDecodeProfiler.getInstance(mContext).getCellSize(mViewWidth, mViewHeight));
+            mThumbAtlas = new XPhotoViewThumbAtlas(viewport, sampleSize, mMemoryOwner);
+            for (int i = 0; i < mThumbAtlas.getPageCount(); ++i) {
+                if (mCancelled) {
+                    return false;
+                }
+                Rect rect = mThumbAtlas.getPage(i).imageRect;
+                if (!rect.isEmpty()) {
+                    mThumbAtlas.setPageBitmap(i, mDecoder.decodeRegion(rect, sampleSize, mConfig));
+                }
+            }
+            return true;
+        }
+
+        RegionDecoder getDecoder() {
+            return mDecoder;
+        }
+
+        Bitmap.Config getConfig() {
+            return mConfig;
+        }
+
+        /**
+         * 取出缩略图图集，只能取一次
+         */
+        XPhotoViewThumbAtlas takeThumbAtlas() {
+            XPhotoViewThumbAtlas atlas = mThumbAtlas;
+            mThumbAtlas = null;
+            return atlas;
+        }
+
+        private void release() {
+            if (mThumbAtlas != null) {
+                mThumbAtlas.recycle();
+                mThumbAtlas = null;
+            }
+            if (mDecoder != null) {
+                mDecoder.close();
+                mDecoder = null;
+            }
+        }
+    }
+}
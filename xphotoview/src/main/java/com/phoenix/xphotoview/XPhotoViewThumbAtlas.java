@@ -0,0 +1,243 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 缩略图图集
+ * - 缩略图不再按单元格分别保存，而是把相邻的若干行列单元格合并为一页，每页一张 bitmap
+ * - 每页边长不超过 MAX_PAGE_SIZE，一般图片只有一页，超长图按行分成几页
+ * - 单元格在页中的区域按原图坐标比例换算，页 bitmap 缩小（内存紧张时）后仍然有效
+ * - 缩小状态下每页一次 drawBitmap 画完
+ */
+final class XPhotoViewThumbAtlas {
+
+    /**
+     * 单页的最大边长，也不超过常见设备的最大纹理尺寸
+     */
+    static final int MAX_PAGE_SIZE = 2048;
+
+    private final Page[] mPages;
+    private final int mRows;
+    private final int mCols;
+
+    /**
+     * 每页覆盖的单元格行列数及页的列数，单元格 (n, m) 所在的页由此直接算出，不按单元格建表
+     */
+    private final int mRowsPerPage;
+    private final int mColsPerPage;
+    private final int mPageCols;
+
+    private final XPhotoViewMemoryGovernor.Owner mMemoryOwner;
+
+    /**
+     * 一页覆盖的原图区域及其 bitmap
+     */
+    static final class Page {
+        final Rect imageRect;
+        volatile Bitmap bitmap;
+
+        Page(Rect imageRect) {
+            this.imageRect = imageRect;
+        }
+    }
+
+    /**
+     * 根据单元格布局及缩略图 SampleSize 分页，此时还没有解析任何 bitmap
+     */
+    XPhotoViewThumbAtlas(XPhotoViewViewport viewport, int sampleSize, XPhotoViewMemoryGovernor.Owner owner) {
+        mMemoryOwner = owner;
+        mRows = viewport.gridRows;
+        mCols = viewport.gridCols;
+
+        // 每个单元格在原图上边长为 cellSize，缩略后为 cellSize / sampleSize
+        int s = Math.max(1, sampleSize);
+        int rowsPerPage = Math.max(1, (int) ((long) MAX_PAGE_SIZE * s / Math.max(1, viewport.cellSize)));
+        int colsPerPage = rowsPerPage;
+        mRowsPerPage = rowsPerPage;
+        mColsPerPage = colsPerPage;
+
+        int pageRows = (mRows + rowsPerPage - 1) / rowsPerPage;
+        int pageCols = (mCols + colsPerPage - 1) / colsPerPage;
+        mPageCols = pageCols;
+        mPages = new Page[pageRows * pageCols];
+
+        for (int pr = 0; pr < pageRows; ++pr) {
+            for (int pc = 0; pc < pageCols; ++pc) {
+                int sn = pr * rowsPerPage;
+                int sm = pc * colsPerPage;
+                int en = Math.min(mRows, sn + rowsPerPage) - 1;
+                int em = Math.min(mCols, sm + colsPerPage) - 1;
+
+                Rect first = viewport.getImageUnitRect(sn, sm);
+                Rect last = viewport.getImageUnitRect(en, em);
+                Rect imageRect = new Rect();
+                if (first != null && last != null) {
+                    imageRect.set(first.left, first.top, last.right, last.bottom);
+                }
+
+                mPages[pr * pageCols + pc] = new Page(imageRect);
+            }
+        }
+    }
+
+    int getPageCount() {
+        return mPages.length;
+    }
+
+    Page getPage(int index) {
+        return mPages[index];
+    }
+
+    void setPageBitmap(int index, Bitmap bitmap) {
+        Page page = mPages[index];
+        synchronized (page) {
+            Bitmap old = page.bitmap;
+            page.bitmap = bitmap;
+            mMemoryOwner.onBitmapReplaced(old, bitmap);
+        }
+    }
+
+    /**
+     * 接管另一个图集（预加载时解析的）的页 bitmap，内存记账随之转移
+     *
+     * @return 分页不一致时不接管，返回 false
+     */
+    boolean adopt(XPhotoViewThumbAtlas other) {
+        if (other.mPages.length != mPages.length) {
+            return false;
+        }
+        for (int i = 0; i < mPages.length; ++i) {
+            if (!mPages[i].imageRect.equals(other.mPages[i].imageRect)) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < mPages.length; ++i) {
+            Bitmap bitmap = other.mPages[i].bitmap;
+            other.setPageBitmap(i, null);
+            setPageBitmap(i, bitmap);
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否至少有一页已经解析
+     */
+    boolean isReady() {
+        for (Page page : mPages) {
+            if (page.bitmap != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 所有页缩小一半
+     */
+    void shrink() {
+        for (int i = 0; i < mPages.length; ++i) {
+            Bitmap bitmap = mPages[i].bitmap;
+            if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() < 2 || bitmap.getHeight() < 2) {
+                continue;
+            }
+            setPageBitmap(i, Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() / 2, bitmap.getHeight() / 2, true));
+        }
+    }
+
+    /**
+     * 把已解析的各页缩小拼成一张全图预览，不读取原图
+     *
+     * @param imageWidth  原图宽
+     * @param imageHeight 原图高
+     * @param sampleSize  预览相对原图的缩小倍数
+     * @return 没有任何一页已解析时返回 null
+     */
+    Bitmap toPreview(int imageWidth, int imageHeight, int sampleSize, Bitmap.Config config) {
+        if (!isReady()) {
+            return null;
+        }
+
+        int s = Math.max(1, sampleSize);
+        Bitmap preview = Bitmap.createBitmap(Math.max(1, imageWidth / s), Math.max(1, imageHeight / s), config);
+        Canvas canvas = new Canvas(preview);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        float sx = preview.getWidth() * 1f / imageWidth;
+        float sy = preview.getHeight() * 1f / imageHeight;
+        for (Page page : mPages) {
+            Bitmap bitmap = page.bitmap;
+            if (bitmap != null && !bitmap.isRecycled()) {
+                Rect r = page.imageRect;
+                canvas.drawBitmap(bitmap, null, new RectF(r.left * sx, r.top * sy, r.right * sx, r.bottom * sy), paint);
+            }
+        }
+        return preview;
+    }
+
+    void recycle() {
+        for (int i = 0; i < mPages.length; ++i) {
+            setPageBitmap(i, null);
+        }
+    }
+
+    /**
+     * 缩小状态下整页绘制，每页一次 drawBitmap
+     */
+    void drawPages(Canvas canvas, XPhotoViewViewport viewport) {
+        for (Page page : mPages) {
+            Bitmap bitmap = page.bitmap;
+            if (bitmap != null && !bitmap.isRecycled()) {
+                canvas.drawBitmap(bitmap, null, toViewRect(page.imageRect, viewport), null);
+            }
+        }
+    }
+
+    /**
+     * 绘制单个单元格的缩略图，用于高清单元格尚未解析完成时
+     *
+     * @return 该单元格所在页尚未解析时返回 false
+     */
+    boolean drawCell(Canvas canvas, XPhotoViewViewport viewport, int n, int m) {
+        if (n < 0 || n >= mRows || m < 0 || m >= mCols) {
+            return false;
+        }
+
+        Page page = mPages[getPageIndex(n, m)];
+        Bitmap bitmap = page.bitmap;
+        Rect cell = viewport.getImageUnitRect(n, m);
+        if (bitmap == null || bitmap.isRecycled() || cell == null || page.imageRect.isEmpty()) {
+            return false;
+        }
+
+        // 按原图坐标比例换算为页中的区域
+        float sx = bitmap.getWidth() * 1f / page.imageRect.width();
+        float sy = bitmap.getHeight() * 1f / page.imageRect.height();
+        Rect src = new Rect(
+                (int) ((cell.left - page.imageRect.left) * sx),
+                (int) ((cell.top - page.imageRect.top) * sy),
+                Math.min(bitmap.getWidth(), (int) Math.ceil((cell.right - page.imageRect.left) * sx)),
+                Math.min(bitmap.getHeight(), (int) Math.ceil((cell.bottom - page.imageRect.top) * sy)));
+        canvas.drawBitmap(bitmap, src, toViewRect(cell, viewport), null);
+        return true;
+    }
+
+    /**
+     * @return 单元格 (n, m) 所在页的下标
+     */
+    int getPageIndex(int n, int m) {
+        return (n / mRowsPerPage) * mPageCols + m / mColsPerPage;
+    }
+
+    /**
+     * 原图坐标转换为 View 坐标
+     */
+    private static RectF toViewRect(Rect imageRect, XPhotoViewViewport viewport) {
+        float ratio = viewport.showHeight / viewport.imageHeight;
+        return new RectF(imageRect.left * ratio - viewport.viewLeft, imageRect.top * ratio - viewport.viewTop,
+                imageRect.right * ratio - viewport.viewLeft, imageRect.bottom * ratio - viewport.viewTop);
+    }
+}
@@ -0,0 +1,181 @@
+package com.phoenix.xphotoview;
+
+/**
+ * 稀疏的单元格索引，(行, 列) -> 单元
+ * - 只保存被访问过的单元格，10 万 * 10 万像素的图片也只占用可见区域附近的几十个槽位
+ * - 开放寻址 + 线性探测，key 为 long 型的 (行 << 32 | 列)，不产生装箱对象
+ * - 非线程安全，由调用者加锁
+ */
+final class XPhotoViewTileIndex<T> {
+
+    /**
+     * 行列都不为负，打包后的 key 不可能等于这个值
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize = 0;
+
+    XPhotoViewTileIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    static long key(int n, int m) {
+        return ((long) n << 32) | (m & 0xffffffffL);
+    }
+
+    static int rowOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int colOf(long key) {
+        return (int) key;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 槽位总数，配合 keyAt / valueAt 遍历
+     */
+    int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * @return 空槽位返回 EMPTY，用 isEmptyKey 判断
+     */
+    long keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    static boolean isEmptyKey(long key) {
+        return key == EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    T valueAt(int slot) {
+        return (T) mValues[slot];
+    }
+
+    T get(int n, int m) {
+        int slot = find(key(n, m));
+        return slot < 0 ? null : valueAt(slot);
+    }
+
+    void put(int n, int m, T value) {
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+
+        long key = key(n, m);
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+    }
+
+    T remove(int n, int m) {
+        int slot = find(key(n, m));
+        if (slot < 0) {
+            return null;
+        }
+
+        T value = valueAt(slot);
+        deleteSlot(slot);
+        return value;
+    }
+
+    void clear() {
+        for (int i = 0; i < mKeys.length; ++i) {
+            mKeys[i] = EMPTY;
+            mValues[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 线性探测的删除：把后面探测链上的元素前移，不使用墓碑
+     */
+    private void deleteSlot(int slot) {
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != EMPTY) {
+            int home = hash(mKeys[next]) & mask;
+            // home 不在 (hole, next] 区间内，说明可以移到 hole
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        mKeys[hole] = EMPTY;
+        mValues[hole] = null;
+        mSize--;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            mKeys[i] = EMPTY;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+        mSize = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] == EMPTY) {
+                continue;
+            }
+            int slot = hash(keys[i]) & mask;
+            while (mKeys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+            mSize++;
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,213 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 视口快照，不可变
+ * - UI 线程在 move / scale / 更新 SampleSize 后生成新的快照，通过一个 volatile 引用发布
+ * - 解码线程只读取快照，不再直接访问 mShowBitmapRect、mOriginViewRect、mSampleSize 等可变字段
+ * - 所有坐标含义与 XPhotoViewLinker 中同名的 Rect 一致
+ * - 单元格是原图上边长为 cellSize 的正方形，与 View 大小无关，View 大小改变时网格不变
+ */
+final class XPhotoViewViewport {
+
+    static final XPhotoViewViewport EMPTY = new XPhotoViewViewport(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * View 大小，View 坐标系
+     */
+    final int viewWidth;
+    final int viewHeight;
+
+    /**
+     * 原图大小，Bitmap 坐标系
+     */
+    final int imageWidth;
+    final int imageHeight;
+
+    /**
+     * 当下展示的 Bitmap 大小，即 mShowBitmapRect
+     */
+    final float showWidth;
+    final float showHeight;
+
+    /**
+     * View 相对 Show Bitmap 的位置，即 mShowBitmapViewRect 的 left / top
+     */
+    final int viewLeft;
+    final int viewTop;
+
+    final int sampleSize;
+    final int thumbSampleSize;
+
+    /**
+     * 单元格边长，原图坐标系
+     */
+    final int cellSize;
+
+    /**
+     * 网格的行列数，原图以 cellSize 切割
+     */
+    final int gridRows;
+    final int gridCols;
+
+    XPhotoViewViewport(int viewWidth, int viewHeight, int imageWidth, int imageHeight,
+                       float showWidth, float showHeight, int viewLeft, int viewTop,
+                       int sampleSize, int thumbSampleSize, int cellSize) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.showWidth = showWidth;
+        this.showHeight = showHeight;
+        this.viewLeft = viewLeft;
+        this.viewTop = viewTop;
+        this.sampleSize = sampleSize;
+        this.thumbSampleSize = thumbSampleSize;
+        this.cellSize = cellSize;
+
+        if (viewWidth > 0 && viewHeight > 0 && cellSize > 0) {
+            // 以原图为蓝本，cellSize 为边长进行蓝本切割 （ / 加 % 的完整倍数，不满 1 的以 1 计）
+            this.gridRows = imageHeight / cellSize + (imageHeight % cellSize == 0 ? 0 : 1);
+            this.gridCols = imageWidth / cellSize + (imageWidth % cellSize == 0 ? 0 : 1);
+        } else {
+            this.gridRows = 0;
+            this.gridCols = 0;
+        }
+    }
+
+    boolean isEmpty() {
+        return viewWidth <= 0 || viewHeight <= 0 || imageWidth <= 0 || imageHeight <= 0
+                || showWidth <= 0 || showHeight <= 0 || cellSize <= 0;
+    }
+
+    /**
+     * 与 other 相比只有位置不同，缩放、SampleSize 及网格都相同，即画面只是平移
+     */
+    boolean isTranslationOf(XPhotoViewViewport other) {
+        return viewWidth == other.viewWidth && viewHeight == other.viewHeight
+                && imageWidth == other.imageWidth && imageHeight == other.imageHeight
+                && showWidth == other.showWidth && showHeight == other.showHeight
+                && sampleSize == other.sampleSize && thumbSampleSize == other.thumbSampleSize
+                && cellSize == other.cellSize;
+    }
+
+    /**
+     * 返回 View 在 Show Bitmap 上的区域，左右上下最大值不超过 Show Bitmap
+     */
+    Rect getVisibleShowBitmapRect() {
+        int left = (int) Math.max(0, viewLeft);
+        int right = (int) Math.min(showWidth, viewLeft + viewWidth);
+        int top = (int) Math.max(0, viewTop);
+        int bottom = (int) Math.min(showHeight, viewTop + viewHeight);
+
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * 计算出可见的实际单元格的行列信息 start - end，存入 Rect 是为了存储方便
+     * 即计算从原图抠下来的那块 Bitmap 所涉及的单元格行列信息
+     *
+     * @return Rect (left=sm, top=sn, right=em, bottom=en)
+     */
+    Rect getVisibleGrid() {
+        if (isEmpty()) {
+            return new Rect();
+        }
+
+        // 计算图片压缩比然后将可视部分 rect 转换到原图坐标上，得到原图需要显示的区域 vBRect
+        float ratio = imageHeight / showHeight;
+        RectF vBRect = XPhotoViewUtil.rectMulti(getVisibleShowBitmapRect(), ratio);
+
+        // 因为 Grid 是将原图以 cellSize 切割，于是用 cellSize 再次计算可见 Grid 坐标
+        int sm = (int) (vBRect.left / cellSize);
+        int sn = (int) (vBRect.top / cellSize);
+
+        int em = (int) (sm + Math.ceil(vBRect.width() / cellSize));
+        int en = (int) (sn + Math.ceil(vBRect.height() / cellSize));
+
+        em = Math.min(em, gridCols);
+        en = Math.min(en, gridRows);
+        return new Rect(sm, sn, em, en);
+    }
+
+    /**
+     * 可见单元格向外扩展 margin 圈，用于预取
+     */
+    Rect getVisibleGrid(int margin) {
+        Rect v = getVisibleGrid();
+        if (margin <= 0 || v.isEmpty()) {
+            return v;
+        }
+
+        return new Rect(Math.max(0, v.left - margin), Math.max(0, v.top - margin),
+                Math.min(gridCols, v.right + margin), Math.min(gridRows, v.bottom + margin));
+    }
+
+    /**
+     * 判断是否是可见的单元格
+     *
+     * @param margin 可见区域外扩展的圈数
+     */
+    boolean isVisibleGrid(int n, int m, int margin) {
+        Rect v = getVisibleGrid(margin);
+
+        return n >= v.top && n <= v.bottom && m >= v.left && m <= v.right;
+    }
+
+    /**
+     * 得出原图的单元格
+     */
+    Rect getImageUnitRect(int n, int m) {
+        if (n < 0 || n >= gridRows || m < 0 || m >= gridCols) {
+            return null;
+        }
+
+        int left = Math.min(imageWidth, m * cellSize);
+        int right = Math.min(imageWidth, left + cellSize);
+
+        int top = Math.min(imageHeight, n * cellSize);
+        int bottom = Math.min(imageHeight, top + cellSize);
+
+        if (left == right || top == bottom) {
+            return null;
+        }
+
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * 获取显示的单元格 rect
+     * Show Bitmap 坐标系
+     */
+    Rect getShowBitmapUnit(int n, int m) {
+        // 取 height 或 width 都可以，等比的
+        float bitmapRatio = showHeight / imageHeight;
+
+        float vw = cellSize * bitmapRatio;
+        float vh = cellSize * bitmapRatio;
+
+        float left = Math.min(m * vw, showWidth);
+        float right = Math.min(left + vw, showWidth);
+
+        float top = Math.min(n * vh, showHeight);
+        float bottom = Math.min(top + vh, showHeight);
+
+        return new Rect((int) left, (int) top, (int) right, (int) bottom);
+    }
+
+    /**
+     * 坐标转换, Show Bitmap 坐标转换为 View 坐标
+     */
+    Rect toViewCoordinate(Rect rect) {
+        if (rect == null) {
+            return new Rect();
+        }
+
+        int left = rect.left - viewLeft;
+        int top = rect.top - viewTop;
+
+        return new Rect(left, top, left + rect.width(), top + rect.height());
+    }
+}
@@ -0,0 +1,72 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * 测试用的模拟解析器：只有宽高，不读取任何数据
+ * - decodeRegion 记录请求的区域，返回按 SampleSize 缩小后大小的空白 bitmap
+ * - 可以模拟任意大小的图片，例如 10 万 * 10 万像素
+ */
+final class FakeRegionDecoder implements RegionDecoder {
+
+    private final int mWidth;
+    private final int mHeight;
+    private boolean mClosed = false;
+
+    /**
+     * 由 this 保护
+     */
+    private final ArrayList<Rect> mDecodedRects = new ArrayList<>();
+
+    FakeRegionDecoder(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public void open(InputStream source) {
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, int sampleSize, Bitmap.Config config) {
+        synchronized (this) {
+            mDecodedRects.add(new Rect(rect));
+        }
+
+        int w = Math.max(1, rect.width() / sampleSize);
+        int h = Math.max(1, rect.height() / sampleSize);
+        return Bitmap.createBitmap(w, h, config == null ? Bitmap.Config.ARGB_8888 : config);
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    synchronized ArrayList<Rect> getDecodedRects() {
+        return new ArrayList<>(mDecodedRects);
+    }
+
+    synchronized int getDecodeCount() {
+        return mDecodedRects.size();
+    }
+}
@@ -0,0 +1,82 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 内存局部解析的尺寸、Config 及边界
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class InMemoryRegionDecoderTest {
+
+    private final Bitmap mSource = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+    private final InMemoryRegionDecoder mDecoder = new InMemoryRegionDecoder(mSource);
+
+    /**
+     * linker 对不透明的图片要求 RGB_565，结果按要求的 Config 创建
+     */
+    @Test
+    public void honorsRequestedConfig() {
+        Bitmap bitmap = mDecoder.decodeRegion(new Rect(0, 0, 200, 100), 1, Bitmap.Config.RGB_565);
+        assertEquals(Bitmap.Config.RGB_565, bitmap.getConfig());
+        assertEquals(200, bitmap.getWidth());
+        assertEquals(100, bitmap.getHeight());
+    }
+
+    @Test
+    public void nullConfigFollowsSource() {
+        Bitmap bitmap = mDecoder.decodeRegion(new Rect(0, 0, 200, 100), 1, null);
+        assertEquals(Bitmap.Config.ARGB_8888, bitmap.getConfig());
+    }
+
+    @Test
+    public void scalesBySampleSize() {
+        Bitmap bitmap = mDecoder.decodeRegion(new Rect(0, 0, 400, 300), 4, Bitmap.Config.ARGB_8888);
+        assertEquals(100, bitmap.getWidth());
+        assertEquals(75, bitmap.getHeight());
+
+        bitmap = mDecoder.decodeRegion(new Rect(0, 0, 3, 3), 8, Bitmap.Config.ARGB_8888);
+        assertEquals(1, bitmap.getWidth());
+        assertEquals(1, bitmap.getHeight());
+    }
+
+    /**
+     * 超出原图的部分被裁掉，完全在原图外时没有结果
+     */
+    @Test
+    public void clipsToSource() {
+        Bitmap bitmap = mDecoder.decodeRegion(new Rect(300, 200, 500, 400), 1, Bitmap.Config.ARGB_8888);
+        assertEquals(100, bitmap.getWidth());
+        assertEquals(100, bitmap.getHeight());
+
+        assertNull(mDecoder.decodeRegion(new Rect(400, 0, 500, 100), 1, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * 取整张原图也返回新的 Bitmap，回收单元格不会回收原图
+     */
+    @Test
+    public void neverReturnsSource() {
+        Bitmap bitmap = mDecoder.decodeRegion(new Rect(0, 0, 400, 300), 1, Bitmap.Config.ARGB_8888);
+        assertNotSame(mSource, bitmap);
+        bitmap.recycle();
+        assertFalse(mSource.isRecycled());
+    }
+
+    @Test
+    public void closedDecoderReturnsNull() {
+        mDecoder.close();
+        assertNull(mDecoder.decodeRegion(new Rect(0, 0, 100, 100), 1, Bitmap.Config.ARGB_8888));
+    }
+}
@@ -0,0 +1,121 @@
+package com.phoenix.xphotoview;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按测得的解析速度选择单元格边长、预取圈数及中间层
+ * 1080 * 1920 的 View 一屏约 207 万像素，目标为单个单元格 60ms、一屏 250ms
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class XPhotoViewDecodeProfilerTest {
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final long MS = 1000000L;
+
+    private XPhotoViewDecodeProfiler mProfiler;
+
+    @Before
+    public void setUp() {
+        mProfiler = XPhotoViewDecodeProfiler.getInstance(RuntimeEnvironment.application);
+        mProfiler.reset();
+    }
+
+    /**
+     * 没有测量结果时与固定公式一致：单元格为 View 短边，不预取，不解析中间层
+     */
+    @Test
+    public void defaultsWithoutMeasurement() {
+        assertEquals(0f, mProfiler.getThroughput(), 0f);
+        assertEquals(VIEW_WIDTH, mProfiler.getCellSize(VIEW_WIDTH, VIEW_HEIGHT));
+        assertEquals(256, mProfiler.getCellSize(200, 300));
+        assertEquals(0, mProfiler.getPrefetchDepth(VIEW_WIDTH, VIEW_HEIGHT));
+        assertFalse(mProfiler.shouldDecodeIntermediate(VIEW_WIDTH, VIEW_HEIGHT));
+    }
+
+    @Test
+    public void ignoresTinyAndInvalidSamples() {
+        mProfiler.record(100 * 100, MS);
+        mProfiler.record(1000 * 1000, 0);
+        assertEquals(0f, mProfiler.getThroughput(), 0f);
+    }
+
+    /**
+     * 第一个样本直接采用，之后每个样本只移动 1/10
+     */
+    @Test
+    public void smoothsSamples() {
+        mProfiler.record(100000, MS);
+        assertEquals(100000f, mProfiler.getThroughput(), 1f);
+        mProfiler.record(200000, MS);
+        assertEquals(110000f, mProfiler.getThroughput(), 1f);
+
+        mProfiler.reset();
+        assertEquals(0f, mProfiler.getThroughput(), 0f);
+    }
+
+    /**
+     * 一屏只要约 2ms：单元格仍为 View 短边，预取两圈
+     */
+    @Test
+    public void fastDevicePrefetchesTwoRings() {
+        mProfiler.record(1000000, MS);
+        assertEquals(VIEW_WIDTH, mProfiler.getCellSize(VIEW_WIDTH, VIEW_HEIGHT));
+        assertEquals(2, mProfiler.getPrefetchDepth(VIEW_WIDTH, VIEW_HEIGHT));
+        assertFalse(mProfiler.shouldDecodeIntermediate(VIEW_WIDTH, VIEW_HEIGHT));
+    }
+
+    /**
+     * 一屏 100ms：超过目标的 1/4、不超过 1/2，预取一圈
+     */
+    @Test
+    public void mediumDevicePrefetchesOneRing() {
+        mProfiler.record((long) VIEW_WIDTH * VIEW_HEIGHT, 100 * MS);
+        assertEquals(VIEW_WIDTH, mProfiler.getCellSize(VIEW_WIDTH, VIEW_HEIGHT));
+        assertEquals(1, mProfiler.getPrefetchDepth(VIEW_WIDTH, VIEW_HEIGHT));
+        assertFalse(mProfiler.shouldDecodeIntermediate(VIEW_WIDTH, VIEW_HEIGHT));
+    }
+
+    /**
+     * 每毫秒 2000 像素：60ms 只够解析 346 * 346，一屏超过 1 秒，不预取并先解析中间层
+     */
+    @Test
+    public void slowDeviceShrinksCellsAndDecodesIntermediate() {
+        mProfiler.record(2000000, 1000 * MS);
+        int cellSize = mProfiler.getCellSize(VIEW_WIDTH, VIEW_HEIGHT);
+        assertEquals((int) Math.sqrt(2000 * 60), cellSize);
+        assertTrue((long) cellSize * cellSize <= 2000 * 60);
+        assertEquals(0, mProfiler.getPrefetchDepth(VIEW_WIDTH, VIEW_HEIGHT));
+        assertTrue(mProfiler.shouldDecodeIntermediate(VIEW_WIDTH, VIEW_HEIGHT));
+    }
+
+    /**
+     * 再慢也不低于最小边长 256
+     */
+    @Test
+    public void cellSizeHasFloor() {
+        mProfiler.record(20000, 1000 * MS);
+        assertEquals(256, mProfiler.getCellSize(VIEW_WIDTH, VIEW_HEIGHT));
+    }
+
+    /**
+     * 一屏的大小决定预取与中间层，同样的速度在小 View 上可以预取
+     */
+    @Test
+    public void selectionScalesWithViewSize() {
+        mProfiler.record(2000000, 1000 * MS);
+        assertTrue(mProfiler.shouldDecodeIntermediate(VIEW_WIDTH, VIEW_HEIGHT));
+        assertFalse(mProfiler.shouldDecodeIntermediate(300, 300));
+        assertEquals(2, mProfiler.getPrefetchDepth(300, 300));
+    }
+}
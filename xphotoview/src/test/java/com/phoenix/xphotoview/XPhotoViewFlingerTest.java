@@ -0,0 +1,79 @@
+package com.phoenix.xphotoview;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 样条进度表与 XPhotoViewFlinger.getSplineFlingDistance（Math.log / Math.exp 解析解）的对比
+ * 两者的耗时对比在 androidTest 的 XPhotoViewFlingerBenchmark 中
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class XPhotoViewFlingerTest {
+
+    private static final float[] VELOCITIES = {50f, 300f, 1000f, 4000f, 8000f, 24000f};
+
+    /**
+     * 逐帧的采样数，约等于 60fps 下 2 秒的惯性滑动
+     */
+    private static final int FRAMES = 120;
+
+    private XPhotoViewFlinger mFlinger;
+
+    @Before
+    public void setUp() {
+        mFlinger = new XPhotoViewFlinger(RuntimeEnvironment.application, null);
+    }
+
+    @Test
+    public void tableBoundsAreExact() {
+        assertEquals(0f, XPhotoViewFlinger.getSplinePosition(0f), 0f);
+        assertEquals(1f, XPhotoViewFlinger.getSplinePosition(1f), 0f);
+        assertEquals(0f, XPhotoViewFlinger.getSplinePosition(-0.5f), 0f);
+        assertEquals(1f, XPhotoViewFlinger.getSplinePosition(1.5f), 0f);
+    }
+
+    @Test
+    public void tableIsMonotonic() {
+        float last = 0f;
+        for (int i = 1; i <= 10000; ++i) {
+            float position = XPhotoViewFlinger.getSplinePosition(i / 10000f);
+            assertTrue("t " + i / 10000f, position >= last);
+            last = position;
+        }
+    }
+
+    /**
+     * 进行到 t 时剩余速度为 (1 - t) * v，已滑过的距离为 D(v) - D((1 - t) * v)
+     * 每个速度下逐帧比较，误差不超过总距离的 1e-4
+     */
+    @Test
+    public void tableMatchesFlingDistance() {
+        for (float velocity : VELOCITIES) {
+            double total = mFlinger.getSplineFlingDistance(velocity);
+            assertTrue("velocity " + velocity, total > 0);
+
+            double maxError = 0;
+            for (int frame = 0; frame <= FRAMES; ++frame) {
+                float t = frame * 1f / FRAMES;
+                double analytic = total - mFlinger.getSplineFlingDistance((1 - t) * velocity);
+                double table = XPhotoViewFlinger.getSplinePosition(t) * total;
+                maxError = Math.max(maxError, Math.abs(analytic - table));
+            }
+            assertTrue("velocity " + velocity + " error " + maxError + " of " + total,
+                    maxError <= total * 1e-4);
+        }
+    }
+
+    @Test
+    public void zeroVelocityHasNoDistance() {
+        assertEquals(0, mFlinger.getSplineFlingDistance(0f), 0);
+    }
+}
@@ -0,0 +1,201 @@
+package com.phoenix.xphotoview;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 掉帧判断及原因归类，直接以构造的 vsync 时间调用 doFrame，不依赖真实的刷新
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class XPhotoViewFrameTracerTest {
+
+    private static final long MS = 1000000L;
+    private static final long PERIOD = 1000000000L / 60;
+
+    private final List<XPhotoViewFrameTracer.Frame> mFrames = new ArrayList<>();
+    private XPhotoViewFrameTracer mTracer;
+    private long mVsync;
+
+    @Before
+    public void setUp() {
+        mFrames.clear();
+        mTracer = new XPhotoViewFrameTracer(new XPhotoViewFrameTracer.Callback() {
+            @Override
+            public void onFrame(XPhotoViewFrameTracer.Frame frame) {
+                mFrames.add(frame);
+            }
+        });
+        mVsync = 1000 * MS;
+    }
+
+    /**
+     * 静止后的第一帧没有上一个 vsync 可比，只看绘制耗时
+     */
+    @Test
+    public void firstFrameAfterIdle() {
+        XPhotoViewFrameTracer.Frame frame = frame(0, 0, 0, 5 * MS);
+        assertNotNull(frame);
+        assertFalse(frame.isJank());
+        assertEquals(XPhotoViewFrameTracer.Cause.NONE, frame.cause);
+        assertEquals(1, mTracer.getFrameCount());
+    }
+
+    @Test
+    public void onTimeFrameIsNotJank() {
+        frame(0, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(PERIOD, 2 * MS, 1 * MS, 6 * MS);
+        assertEquals(0, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.NONE, frame.cause);
+        assertEquals(0, mTracer.getJankCount());
+    }
+
+    /**
+     * 两个 vsync 相隔三个周期，漏掉两个；耗时最多的是手势计算
+     */
+    @Test
+    public void gestureJank() {
+        frame(0, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(3 * PERIOD, 30 * MS, 1 * MS, 4 * MS);
+        assertEquals(2, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.GESTURE, frame.cause);
+        assertEquals(2, mTracer.getMissedVsyncCount());
+        assertEquals(1, mTracer.getJankCount(XPhotoViewFrameTracer.Cause.GESTURE));
+    }
+
+    /**
+     * vsync 按时到达，但一帧的绘制超过一个周期，仍然算掉帧
+     */
+    @Test
+    public void tileLookupJank() {
+        frame(0, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(PERIOD, 1 * MS, 15 * MS, 20 * MS);
+        assertEquals(1, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.TILE_LOOKUP, frame.cause);
+        assertEquals(5 * MS, frame.getBitmapDrawNanos());
+    }
+
+    @Test
+    public void bitmapDrawJank() {
+        frame(0, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(PERIOD, 1 * MS, 2 * MS, 25 * MS);
+        assertEquals(1, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.BITMAP_DRAW, frame.cause);
+    }
+
+    /**
+     * 掉了帧，但本控件的耗时不到半个周期，归为其他
+     */
+    @Test
+    public void otherJank() {
+        frame(0, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(3 * PERIOD, 1 * MS, 0, 2 * MS);
+        assertEquals(2, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.OTHER, frame.cause);
+    }
+
+    /**
+     * 一帧没有活动即停止统计，之后的第一帧不与很久以前的 vsync 比较
+     */
+    @Test
+    public void idleStopsTracking() {
+        frame(0, 0, 0, 2 * MS);
+        mVsync += PERIOD;
+        mTracer.doFrame(mVsync);
+        assertEquals(1, mFrames.size());
+
+        XPhotoViewFrameTracer.Frame frame = frame(100 * PERIOD, 0, 0, 3 * MS);
+        assertEquals(0, frame.missedVsyncs);
+        assertEquals(2, mTracer.getFrameCount());
+        assertEquals(0, mTracer.getJankCount());
+    }
+
+    /**
+     * 观察到更短的 vsync 间隔后以它为刷新周期，90Hz 下 12ms 的绘制即为掉帧
+     */
+    @Test
+    public void adaptsToHigherRefreshRate() {
+        long period90 = 1000000000L / 90;
+        frame(0, 0, 0, 2 * MS);
+        frame(period90, 0, 0, 2 * MS);
+        XPhotoViewFrameTracer.Frame frame = frame(period90, 0, 1 * MS, 12 * MS);
+        assertEquals(1, frame.missedVsyncs);
+        assertEquals(XPhotoViewFrameTracer.Cause.BITMAP_DRAW, frame.cause);
+    }
+
+    /**
+     * 单元格数与重绘请求按帧累计，结束一帧后清零
+     */
+    @Test
+    public void countsTilesAndInvalidates() {
+        mTracer.onInvalidate();
+        mTracer.onInvalidate();
+        mTracer.addTiles(3, 2);
+        mTracer.addTiles(1, 0);
+        mTracer.addDrawTime(4 * MS);
+        mTracer.doFrame(mVsync);
+
+        XPhotoViewFrameTracer.Frame frame = mFrames.get(0);
+        assertEquals(4, frame.tilesDrawn);
+        assertEquals(2, frame.tilesMissing);
+        assertEquals(2, frame.invalidates);
+
+        frame = frame(PERIOD, 0, 0, 1 * MS);
+        assertEquals(0, frame.tilesDrawn);
+        assertEquals(0, frame.tilesMissing);
+        assertEquals(0, frame.invalidates);
+    }
+
+    @Test
+    public void summaryAndReset() {
+        frame(0, 0, 0, 2 * MS);
+        frame(PERIOD, 0, 0, 4 * MS);
+        frame(PERIOD, 1 * MS, 2 * MS, 25 * MS);
+
+        assertEquals(3, mTracer.getFrameCount());
+        assertEquals(1, mTracer.getJankCount());
+        assertEquals(25 * MS, mTracer.getMaxDrawNanos());
+        assertEquals((2 + 4 + 25) * MS / 3, mTracer.getAverageDrawNanos());
+        String dump = mTracer.dump();
+        assertTrue(dump, dump.contains("BITMAP_DRAW: 1"));
+        assertTrue(dump, dump.contains("recent jank:\n  draw 25.00ms"));
+
+        mTracer.reset();
+        assertEquals(0, mTracer.getFrameCount());
+        assertEquals(0, mTracer.getJankCount());
+        assertEquals(0, mTracer.getJankCount(XPhotoViewFrameTracer.Cause.BITMAP_DRAW));
+        assertFalse(mTracer.dump().contains("draw 25.00ms"));
+    }
+
+    /**
+     * 在上一个 vsync 之后 interval 纳秒处结束一帧
+     *
+     * @return 本帧的统计，没有活动时为 null
+     */
+    private XPhotoViewFrameTracer.Frame frame(long interval, long gesture, long lookup, long draw) {
+        int count = mFrames.size();
+        if (gesture > 0) {
+            mTracer.addGestureTime(gesture);
+        }
+        mTracer.addDrawTime(draw);
+        mTracer.addLookupTime(lookup);
+
+        mVsync += interval;
+        mTracer.doFrame(mVsync);
+        if (mFrames.size() == count) {
+            return null;
+        }
+        return mFrames.get(mFrames.size() - 1);
+    }
+}
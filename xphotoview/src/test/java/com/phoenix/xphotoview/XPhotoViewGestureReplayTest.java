@@ -0,0 +1,280 @@
+package com.phoenix.xphotoview;
+
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Robolectric 下的手势回放：SystemClock、Handler 及 Choreographer 都由主线程调度器驱动，
+ * 测试手动推进模拟时间，事件的派发时刻和回放报告是确定的
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class XPhotoViewGestureReplayTest {
+
+    private static final int RECORDED_WIDTH = 540;
+    private static final int RECORDED_HEIGHT = 960;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    private static final long START_DELAY_MS = 100;
+    private static final long SETTLE_MS = 500;
+
+    /**
+     * 录制的第一个事件时间，任意值，回放只看间隔
+     */
+    private static final long T0 = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private XPhotoViewGestureRecorder mRecording;
+    private RecordingView mView;
+    private XPhotoViewGestureReplayer.Report mReport;
+    private int mFinishCount;
+
+    private final XPhotoViewGestureReplayer.Callback mCallback = new XPhotoViewGestureReplayer.Callback() {
+        @Override
+        public void onReplayFinished(XPhotoViewGestureReplayer.Report report) {
+            mReport = report;
+            ++mFinishCount;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mRecording = recordGesture();
+        mView = new RecordingView();
+        mView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+        mReport = null;
+        mFinishCount = 0;
+    }
+
+    @Test
+    public void saveAndLoadKeepEvents() throws Exception {
+        File file = mFolder.newFile("gesture.bin");
+        mRecording.save(file);
+        XPhotoViewGestureRecorder loaded = XPhotoViewGestureRecorder.load(file);
+
+        assertEquals(mRecording.getEventCount(), loaded.getEventCount());
+        assertEquals(mRecording.getDuration(), loaded.getDuration());
+        assertEquals(RECORDED_WIDTH, loaded.getViewWidth());
+        assertEquals(RECORDED_HEIGHT, loaded.getViewHeight());
+
+        List<XPhotoViewGestureRecorder.Sample> expected = mRecording.getSamples();
+        List<XPhotoViewGestureRecorder.Sample> actual = loaded.getSamples();
+        for (int i = 0; i < expected.size(); ++i) {
+            XPhotoViewGestureRecorder.Sample e = expected.get(i);
+            XPhotoViewGestureRecorder.Sample a = actual.get(i);
+            assertEquals(e.time - T0, a.time);
+            assertEquals(e.action, a.action);
+            assertEquals(e.ids.length, a.ids.length);
+            for (int p = 0; p < e.ids.length; ++p) {
+                assertEquals(e.ids[p], a.ids[p]);
+                assertEquals(e.xs[p], a.xs[p], 0f);
+                assertEquals(e.ys[p], a.ys[p], 0f);
+            }
+        }
+    }
+
+    /**
+     * 事件按录制的间隔派发，坐标按 View 大小缩放，报告的时长由模拟时间得出
+     */
+    @Test
+    public void replayFollowsSimulatedClock() {
+        XPhotoViewGestureReplayer replayer = new XPhotoViewGestureReplayer(mView, mRecording);
+        replayer.setSettleTime(SETTLE_MS);
+
+        long start = SystemClock.uptimeMillis();
+        replayer.start(mCallback);
+        assertTrue(replayer.isRunning());
+
+        advance(START_DELAY_MS - 1);
+        assertTrue(mView.mEvents.isEmpty());
+        advance(1);
+        assertEquals(1, mView.mEvents.size());
+
+        runUntilFinished();
+
+        List<XPhotoViewGestureRecorder.Sample> samples = mRecording.getSamples();
+        assertEquals(samples.size(), mView.mEvents.size());
+        for (int i = 0; i < samples.size(); ++i) {
+            XPhotoViewGestureRecorder.Sample sample = samples.get(i);
+            Dispatched event = mView.mEvents.get(i);
+            assertEquals(start + START_DELAY_MS + sample.time - T0, event.time);
+            assertEquals(sample.getActionMasked(), event.action);
+            assertEquals(sample.ids.length, event.pointerCount);
+            assertEquals(sample.xs[0] * VIEW_WIDTH / RECORDED_WIDTH, event.x, 1e-3f);
+            assertEquals(sample.ys[0] * VIEW_HEIGHT / RECORDED_HEIGHT, event.y, 1e-3f);
+        }
+
+        assertEquals(1, mFinishCount);
+        assertNotNull(mReport);
+        assertEquals(samples.size(), mReport.events);
+        assertEquals(mRecording.getDuration() + SETTLE_MS, mReport.durationMs);
+        assertFalse(replayer.isRunning());
+        assertNull(mView.getFrameTracer());
+    }
+
+    /**
+     * 同一段录制回放两次，派发的事件序列（相对开始的时间、动作、坐标）完全一致
+     */
+    @Test
+    public void replayIsDeterministic() {
+        List<String> first = replayOnce();
+        mView.mEvents.clear();
+        List<String> second = replayOnce();
+        assertEquals(first, second);
+    }
+
+    /**
+     * 手指按下时取消，补发 CANCEL，之后不再派发也不回调，并恢复原来的帧追踪
+     */
+    @Test
+    public void cancelWhilePointerDown() {
+        XPhotoViewFrameTracer tracer = new XPhotoViewFrameTracer(null);
+        mView.setFrameTracer(tracer);
+
+        XPhotoViewGestureReplayer replayer = new XPhotoViewGestureReplayer(mView, mRecording);
+        replayer.setSettleTime(SETTLE_MS);
+        replayer.start(mCallback);
+        advance(START_DELAY_MS + 50);
+        int dispatched = mView.mEvents.size();
+        assertTrue(dispatched > 1);
+
+        replayer.cancel();
+        assertEquals(dispatched + 1, mView.mEvents.size());
+        assertEquals(MotionEvent.ACTION_CANCEL, mView.mEvents.get(dispatched).action);
+        assertSame(tracer, mView.getFrameTracer());
+
+        advance(START_DELAY_MS + mRecording.getDuration() + SETTLE_MS);
+        assertEquals(dispatched + 1, mView.mEvents.size());
+        assertEquals(0, mFinishCount);
+    }
+
+    private List<String> replayOnce() {
+        XPhotoViewGestureReplayer replayer = new XPhotoViewGestureReplayer(mView, mRecording);
+        replayer.setSettleTime(SETTLE_MS);
+        long start = SystemClock.uptimeMillis();
+        replayer.start(mCallback);
+        runUntilFinished();
+
+        List<String> events = new ArrayList<>();
+        for (Dispatched event : mView.mEvents) {
+            events.add((event.time - start) + " " + event.action + " " + event.pointerCount + " " + event.x + "," + event.y);
+        }
+        return events;
+    }
+
+    private void runUntilFinished() {
+        int finished = mFinishCount;
+        long limit = START_DELAY_MS + mRecording.getDuration() + SETTLE_MS;
+        for (long elapsed = 0; elapsed <= limit && mFinishCount == finished; elapsed += 10) {
+            advance(10);
+        }
+        assertEquals(finished + 1, mFinishCount);
+    }
+
+    private static void advance(long ms) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 单指拖动，再两指捏合，每 16ms 一个 MOVE
+     */
+    private static XPhotoViewGestureRecorder recordGesture() {
+        XPhotoViewGestureRecorder recorder = new XPhotoViewGestureRecorder();
+        long down = T0;
+        record(recorder, down, T0, MotionEvent.ACTION_DOWN, 100, 200);
+        for (int i = 1; i <= 10; ++i) {
+            record(recorder, down, T0 + i * 16, MotionEvent.ACTION_MOVE, 100 + i * 10, 200 + i * 5);
+        }
+        record(recorder, down, T0 + 176, MotionEvent.ACTION_UP, 200, 250);
+
+        down = T0 + 500;
+        record(recorder, down, down, MotionEvent.ACTION_DOWN, 200, 400);
+        record(recorder, down, down + 20, MotionEvent.ACTION_POINTER_DOWN | (1 << 8), 200, 400, 340, 560);
+        for (int i = 1; i <= 5; ++i) {
+            record(recorder, down, down + 20 + i * 16, MotionEvent.ACTION_MOVE,
+                    200 - i * 10, 400 - i * 10, 340 + i * 10, 560 + i * 10);
+        }
+        record(recorder, down, down + 120, MotionEvent.ACTION_POINTER_UP | (1 << 8), 150, 350, 390, 610);
+        record(recorder, down, down + 140, MotionEvent.ACTION_UP, 150, 350);
+        return recorder;
+    }
+
+    /**
+     * @param xy 每个触点的 x, y，触点 id 依次为 0, 1 ...
+     */
+    private static void record(XPhotoViewGestureRecorder recorder, long downTime, long eventTime, int action, float... xy) {
+        int count = xy.length / 2;
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[count];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[count];
+        for (int i = 0; i < count; ++i) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = xy[i * 2];
+            coords[i].y = xy[i * 2 + 1];
+        }
+
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, count, properties, coords,
+                0, 0, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        recorder.record(event, RECORDED_WIDTH, RECORDED_HEIGHT);
+        event.recycle();
+    }
+
+    private static final class Dispatched {
+        final long time;
+        final int action;
+        final int pointerCount;
+        final float x;
+        final float y;
+
+        Dispatched(MotionEvent event) {
+            time = event.getEventTime();
+            action = event.getActionMasked();
+            pointerCount = event.getPointerCount();
+            x = event.getX(0);
+            y = event.getY(0);
+        }
+    }
+
+    private static final class RecordingView extends XPhotoView {
+
+        final List<Dispatched> mEvents = new ArrayList<>();
+
+        RecordingView() {
+            super(RuntimeEnvironment.application);
+        }
+
+        @Override
+        public boolean dispatchTouchEvent(MotionEvent event) {
+            mEvents.add(new Dispatched(event));
+            return super.dispatchTouchEvent(event);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.phoenix.xphotoview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * GCE 延时的扫描及 Movie 时间轴的生成，不需要真实解码
+ */
+public class XPhotoViewGifEngineTest {
+
+    @Test
+    public void scanReadsEveryGraphicControlExtension() {
+        byte[] gif = gif(new int[]{4, 0, 10, 2});
+        assertArrayEquals(new int[]{40, 0, 100, 20}, XPhotoViewGifEngine.scanFrameDelays(gif));
+    }
+
+    @Test
+    public void scanFrameWithoutGraphicControlExtension() {
+        byte[] gif = gif(new int[]{-1, 5});
+        assertArrayEquals(new int[]{0, 50}, XPhotoViewGifEngine.scanFrameDelays(gif));
+    }
+
+    @Test
+    public void scanTruncatedData() {
+        assertEquals(0, XPhotoViewGifEngine.scanFrameDelays(new byte[]{'G', 'I', 'F'}).length);
+
+        byte[] gif = gif(new int[]{4, 4, 4});
+        byte[] truncated = Arrays.copyOf(gif, gif.length - 12);
+        assertEquals(2, XPhotoViewGifEngine.scanFrameDelays(truncated).length);
+    }
+
+    @Test
+    public void timelineKeepsRegularFrames() {
+        assertTimeline(new int[]{40, 60, 80},
+                new int[]{0, 40, 100},
+                new int[]{40, 60, 80});
+    }
+
+    /**
+     * 1 ~ 19ms 的帧在时间轴上有宽度，可以单独取到，只是按 100ms 显示
+     */
+    @Test
+    public void timelineSlowsDownTinyDelays() {
+        assertTimeline(new int[]{10, 10, 50},
+                new int[]{0, 10, 20},
+                new int[]{100, 100, 50});
+    }
+
+    /**
+     * 0 延时的帧与下一帧的 Movie 时间相同，合并成一帧，显示时长累加
+     */
+    @Test
+    public void timelineMergesZeroDelayFrames() {
+        assertTimeline(new int[]{40, 0, 0, 60, 80},
+                new int[]{0, 40, 100},
+                new int[]{40, 260, 80});
+    }
+
+    /**
+     * 最后一帧延时为 0 时单独保留，时间轴的末尾仍可取到
+     */
+    @Test
+    public void timelineKeepsTrailingZeroDelayFrame() {
+        assertTimeline(new int[]{40, 60, 0},
+                new int[]{0, 40, 100},
+                new int[]{40, 60, 100});
+    }
+
+    /**
+     * 全部为 0 时 Movie 的时长为 0，只能显示一帧
+     */
+    @Test
+    public void timelineAllZeroDelays() {
+        assertTimeline(new int[]{0, 0, 0},
+                new int[]{0},
+                new int[]{300});
+    }
+
+    private static void assertTimeline(int[] rawDelays, int[] expectedTimes, int[] expectedDelays) {
+        int[] times = new int[rawDelays.length];
+        int[] delays = new int[rawDelays.length];
+        int count = XPhotoViewGifEngine.buildTimeline(rawDelays, times, delays);
+        assertEquals(expectedTimes.length, count);
+        assertArrayEquals(expectedTimes, Arrays.copyOf(times, count));
+        assertArrayEquals(expectedDelays, Arrays.copyOf(delays, count));
+    }
+
+    /**
+     * 1 * 1 像素、2 色全局颜色表的 GIF，像素数据不是有效的 LZW，扫描只看块结构
+     *
+     * @param delays 每帧的延时（1/100 秒），负数表示该帧没有 GCE
+     */
+    private static byte[] gif(int[] delays) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(os, 'G', 'I', 'F', '8', '9', 'a');
+        write(os, 1, 0, 1, 0, 0x80, 0, 0);
+        write(os, 0, 0, 0, 0xff, 0xff, 0xff);
+
+        // 其他扩展块应该被跳过
+        write(os, 0x21, 0xFE, 3, 'x', 'y', 'z', 0);
+
+        for (int delay : delays) {
+            if (delay >= 0) {
+                write(os, 0x21, 0xF9, 4, 0, delay & 0xff, (delay >> 8) & 0xff, 0, 0);
+            }
+            write(os, 0x2C, 0, 0, 0, 0, 1, 0, 1, 0, 0);
+            write(os, 2, 2, 0x4c, 0x01, 0);
+        }
+        write(os, 0x3B);
+        return os.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream os, int... bytes) {
+        for (int b : bytes) {
+            os.write(b);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.phoenix.xphotoview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 10 万 * 10 万像素的图片经过网格、可见范围及稀疏索引，不需要真实解析
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class XPhotoViewGigapixelTest {
+
+    private static final int IMAGE_SIZE = 100000;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int CELL_SIZE = 1080;
+
+    /**
+     * 一屏最多覆盖的单元格数，不对齐时每个方向多一格
+     */
+    private static final int MAX_VISIBLE_CELLS = (VIEW_WIDTH / CELL_SIZE + 1) * ((VIEW_HEIGHT + CELL_SIZE - 1) / CELL_SIZE + 1);
+
+    private final FakeRegionDecoder mDecoder = new FakeRegionDecoder(IMAGE_SIZE, IMAGE_SIZE);
+
+    @Test
+    public void sizeGuardsDoNotOverflow() {
+        assertFalse(XPhotoViewLinker.isSmallImage(RuntimeEnvironment.application, IMAGE_SIZE, IMAGE_SIZE));
+        assertEquals(40000000000L, XPhotoViewMemoryGovernor.estimateSize(IMAGE_SIZE, IMAGE_SIZE, 1, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void gridCoversWholeImage() {
+        XPhotoViewViewport viewport = zoomedIn(0, 0);
+        int cells = (IMAGE_SIZE + CELL_SIZE - 1) / CELL_SIZE;
+        assertEquals(cells, viewport.gridRows);
+        assertEquals(cells, viewport.gridCols);
+
+        // 最后一个单元格不满 cellSize，右下角正好是原图边界
+        Rect last = viewport.getImageUnitRect(cells - 1, cells - 1);
+        assertNotNull(last);
+        assertEquals(IMAGE_SIZE, last.right);
+        assertEquals(IMAGE_SIZE, last.bottom);
+        assertEquals(IMAGE_SIZE - (cells - 1) * CELL_SIZE, last.width());
+    }
+
+    @Test
+    public void thumbnailFitsOneAtlasPage() {
+        int thumbSampleSize = XPhotoViewLinker.getThumbSampleSize(IMAGE_SIZE, IMAGE_SIZE, VIEW_WIDTH, VIEW_HEIGHT);
+        assertTrue(IMAGE_SIZE / thumbSampleSize <= XPhotoViewThumbAtlas.MAX_PAGE_SIZE);
+
+        XPhotoViewViewport viewport = new XPhotoViewViewport(VIEW_WIDTH, VIEW_HEIGHT, IMAGE_SIZE, IMAGE_SIZE,
+                VIEW_WIDTH, VIEW_WIDTH, 0, 0, thumbSampleSize, thumbSampleSize, CELL_SIZE);
+        XPhotoViewMemoryGovernor.Owner owner = XPhotoViewMemoryGovernor.getInstance(RuntimeEnvironment.application).newOwner(null);
+        XPhotoViewThumbAtlas atlas = new XPhotoViewThumbAtlas(viewport, thumbSampleSize, owner);
+        assertEquals(1, atlas.getPageCount());
+        assertEquals(new Rect(0, 0, IMAGE_SIZE, IMAGE_SIZE), atlas.getPage(0).imageRect);
+    }
+
+    /**
+     * 最小单元格边长下图集分为多页，每个单元格换算出的页都覆盖它，不按单元格建表
+     */
+    @Test
+    public void atlasPageOfEveryCell() {
+        int cellSize = 256;
+        int thumbSampleSize = 8;
+        XPhotoViewViewport viewport = new XPhotoViewViewport(VIEW_WIDTH, VIEW_HEIGHT, IMAGE_SIZE, IMAGE_SIZE,
+                VIEW_WIDTH, VIEW_WIDTH, 0, 0, thumbSampleSize, thumbSampleSize, cellSize);
+        XPhotoViewMemoryGovernor.Owner owner = XPhotoViewMemoryGovernor.getInstance(RuntimeEnvironment.application).newOwner(null);
+        XPhotoViewThumbAtlas atlas = new XPhotoViewThumbAtlas(viewport, thumbSampleSize, owner);
+        assertTrue("pages " + atlas.getPageCount(), atlas.getPageCount() > 1);
+
+        for (int n = 0; n < viewport.gridRows; ++n) {
+            for (int m = 0; m < viewport.gridCols; ++m) {
+                int index = atlas.getPageIndex(n, m);
+                assertTrue(index >= 0 && index < atlas.getPageCount());
+                assertTrue("cell " + n + ", " + m, atlas.getPage(index).imageRect.contains(viewport.getImageUnitRect(n, m)));
+            }
+        }
+    }
+
+    @Test
+    public void visibleCellsAtCorners() {
+        int[][] positions = {
+                {0, 0},
+                {IMAGE_SIZE / 2 + 17, IMAGE_SIZE / 2 + 311},
+                {IMAGE_SIZE - VIEW_WIDTH, IMAGE_SIZE - VIEW_HEIGHT},
+        };
+
+        for (int[] p : positions) {
+            XPhotoViewViewport viewport = zoomedIn(p[0], p[1]);
+            int count = 0;
+            for (Rect rect : visibleImageRects(viewport)) {
+                mDecoder.decodeRegion(rect, 1, Bitmap.Config.RGB_565);
+                ++count;
+            }
+            assertTrue("visible cells " + count, count > 0 && count <= MAX_VISIBLE_CELLS);
+        }
+
+        for (Rect rect : mDecoder.getDecodedRects()) {
+            assertTrue(rect.left >= 0 && rect.top >= 0 && rect.right <= IMAGE_SIZE && rect.bottom <= IMAGE_SIZE);
+            assertTrue(rect.width() <= CELL_SIZE && rect.height() <= CELL_SIZE);
+        }
+    }
+
+    /**
+     * 沿对角线漫游整张图，索引只保留可见单元格，不随已访问的单元格增长
+     */
+    @Test
+    public void indexStaysBoundedWhilePanning() {
+        XPhotoViewTileIndex<Rect> index = new XPhotoViewTileIndex<>();
+        int initialCapacity = index.capacity();
+        int visited = 0;
+
+        for (int offset = 0; offset <= IMAGE_SIZE - VIEW_HEIGHT; offset += 500) {
+            XPhotoViewViewport viewport = zoomedIn(Math.min(offset, IMAGE_SIZE - VIEW_WIDTH), offset);
+            Rect visible = viewport.getVisibleGrid();
+            for (int n = visible.top; n <= visible.bottom; ++n) {
+                for (int m = visible.left; m <= visible.right; ++m) {
+                    Rect rect = viewport.getImageUnitRect(n, m);
+                    if (rect != null && index.get(n, m) == null) {
+                        index.put(n, m, rect);
+                        ++visited;
+                    }
+                }
+            }
+            removeOutside(index, visible);
+            assertTrue("index size " + index.size(), index.size() <= MAX_VISIBLE_CELLS);
+        }
+
+        assertTrue(visited > IMAGE_SIZE / CELL_SIZE);
+        assertEquals(initialCapacity, index.capacity());
+    }
+
+    /**
+     * SampleSize 为 1 的视口，View 左上角位于原图 (left, top)
+     */
+    private static XPhotoViewViewport zoomedIn(int left, int top) {
+        return new XPhotoViewViewport(VIEW_WIDTH, VIEW_HEIGHT, IMAGE_SIZE, IMAGE_SIZE,
+                IMAGE_SIZE, IMAGE_SIZE, left, top, 1, 64, CELL_SIZE);
+    }
+
+    private static List<Rect> visibleImageRects(XPhotoViewViewport viewport) {
+        List<Rect> rects = new ArrayList<>();
+        Rect visible = viewport.getVisibleGrid();
+        for (int n = visible.top; n <= visible.bottom; ++n) {
+            for (int m = visible.left; m <= visible.right; ++m) {
+                Rect rect = viewport.getImageUnitRect(n, m);
+                if (rect != null) {
+                    rects.add(rect);
+                }
+            }
+        }
+        return rects;
+    }
+
+    /**
+     * 与 linker 回收不可见单元格的方式相同：先收集再删除
+     */
+    private static void removeOutside(XPhotoViewTileIndex<Rect> index, Rect visible) {
+        long[] keys = new long[index.size()];
+        int count = 0;
+        for (int i = 0; i < index.capacity(); ++i) {
+            long key = index.keyAt(i);
+            if (XPhotoViewTileIndex.isEmptyKey(key)) {
+                continue;
+            }
+            int n = XPhotoViewTileIndex.rowOf(key);
+            int m = XPhotoViewTileIndex.colOf(key);
+            if (n < visible.top || n > visible.bottom || m < visible.left || m > visible.right) {
+                keys[count++] = key;
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            index.remove(XPhotoViewTileIndex.rowOf(keys[i]), XPhotoViewTileIndex.colOf(keys[i]));
+        }
+    }
+}